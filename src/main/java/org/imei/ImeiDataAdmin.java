@@ -1,58 +1,923 @@
 package org.imei;
 
+import org.roaringbitmap.ImmutableRoaringBitmap;
+import org.roaringbitmap.LongIterator;
 import org.roaringbitmap.RoaringBitmap;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * 手机imei是15位，国产手机imei前两位是86，可以忽略不计
  * 提供imei存取的接口
+ * 线程安全：同一标签的写入由分段锁串行化，读取用乐观读不加锁，读到写入中途的状态时重试
+ * 持久化：open之后写入先记入预写日志，定期把每个标签的快照写到磁盘，重启时加载快照并只回放之后的日志
  * @author gwk
  */
-public class ImeiDataAdmin {
-    private static String prex = "86";
-
+public class ImeiDataAdmin implements Closeable {
     private ConcurrentMap<String, RoaringBitmap> data;
 
+    // 通过mmap加载的只读标签，首次写入时转为data中的RoaringBitmap
+    private ConcurrentMap<String, ImmutableRoaringBitmap> mapped;
+
+    // 每个标签的版本，写入时加一
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    // 每个标签最近一次取得的快照，版本未变时直接复用
+    private final ConcurrentMap<String, LabelSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    // 按标签分段的锁，段数为2的幂
+    private final StampedLock[] locks;
+
+    // 反查imei所在的标签，data中的标签在写入前登记
+    private final LabelDirectory directory = new LabelDirectory();
+
+    // 表达式结果的缓存，默认最多占用64mb
+    private final QueryCache queryCache = new QueryCache(64L << 20);
+
+    // 乐观读失败多少次后改为加读锁，避免写入频繁时一直重试
+    private static final int OPTIMISTIC_RETRIES = 3;
+
+    // 是否校验imei最后一位的Luhn校验码
+    private volatile boolean luhnCheck = false;
+
+    // 快照清单的文件名，内容为起始段号和每个标签的快照文件
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final String SNAPSHOT_SUFFIX = ".bitmap";
+
+    // 持久化目录和预写日志，open之前为null
+    private volatile File dir;
+
+    private volatile WriteAheadLog wal;
+
+    // 写入是否等待日志落盘
+    private volatile boolean syncWrites;
+
+    // 快照文件是否用压缩格式
+    private volatile boolean compressSnapshots = false;
+
+    private ScheduledExecutorService checkpointer;
+
+    // 上次快照时每个标签的版本和快照文件，版本未变的标签沿用原文件，由checkpointLock保护
+    private final Map<String, Long> checkpointVersions = new HashMap<>();
+
+    private final Map<String, String> checkpointFiles = new HashMap<>();
+
+    private final Object checkpointLock = new Object();
+
     public ImeiDataAdmin() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes 锁的段数，向上取为2的幂
+     */
+    public ImeiDataAdmin(int stripes) {
+        int n = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.locks = new StampedLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new StampedLock();
+        }
         // 可以注册为单例，服务启动时候只调用一次，此处简化
         if (this.data == null) {
             this.data = new ConcurrentHashMap<>();
         }
+        if (this.mapped == null) {
+            this.mapped = new ConcurrentHashMap<>();
+        }
+
+    }
 
+    /**
+     * 开启后，最后一位不满足Luhn校验的imei视为非法
+     * @param luhnCheck   是否校验
+     */
+    public void setLuhnCheck(boolean luhnCheck) {
+        this.luhnCheck = luhnCheck;
+    }
+
+    /**
+     * 开启后checkpoint用RoaringBitmap.serializeCompressed写快照，文件更小，重启时读盘更少，但解码比原格式慢
+     * 加载时按文件头识别格式，两种快照可以混用
+     * @param compressSnapshots   是否压缩
+     */
+    public void setCompressSnapshots(boolean compressSnapshots) {
+        this.compressSnapshots = compressSnapshots;
     }
 
     /**
      * 在label下插入一个imei
      * @param label   标签
      * @param imei    imei
-     * @return
+     * @return imei非法时返回false
      */
     public boolean setImei(String label, String imei) {
-        if (!checkImei(imei)) {
+        return setKey(label, ImeiParser.parse(imei, luhnCheck));
+    }
+
+    /**
+     * 在label下插入一个imei
+     * @param label   标签
+     * @param imei    15位imei的数值
+     * @return imei非法时返回false
+     */
+    public boolean setImei(String label, long imei) {
+        return setKey(label, ImeiParser.parse(imei, luhnCheck));
+    }
+
+    /**
+     * 在label下插入一个imei
+     * @param label   标签
+     * @param imei    ASCII编码的15位imei
+     * @return imei非法时返回false
+     */
+    public boolean setImei(String label, byte[] imei) {
+        return setKey(label, ImeiParser.parse(imei, 0, imei.length, luhnCheck));
+    }
+
+    private boolean setKey(String label, long key) {
+        if (key == ImeiParser.INVALID) {
             return false;
         }
-        long l = Long.parseLong(imei.substring(2));
-        if (data.get(label) == null) {
-            data.put(label, new RoaringBitmap());
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        StampedLock lock = lockOf(label);
+        long stamp = lock.writeLock();
+        try {
+            RoaringBitmap bitmap = writableBitmap(label);
+            directory.add(label, key);
+            bitmap.add(key);
+            versions.computeIfAbsent(label, k -> new AtomicLong()).incrementAndGet();
+            // 在锁内追加，同一标签的日志顺序与写入顺序一致
+            if (log != null) {
+                lsn = log.append(label, key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        data.get(label).add(l);
+        sync(log, lsn);
         return true;
     }
 
+    // 在锁外等待落盘，等待期间其他写者的记录可以并入同一次fsync
+    private void sync(WriteAheadLog log, long lsn) {
+        if (log != null && syncWrites) {
+            try {
+                log.sync(lsn);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 把一批key（去掉前缀86后的imei）并入label
+     * @param label   标签
+     * @param keys    key的集合
+     */
+    public void addAll(String label, RoaringBitmap keys) {
+        WriteAheadLog log = wal;
+        byte[] record = null;
+        if (log != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(keys.serializedSizeInBytes());
+            keys.serialize(buffer);
+            record = buffer.array();
+        }
+        long lsn = 0;
+        StampedLock lock = lockOf(label);
+        long stamp = lock.writeLock();
+        try {
+            RoaringBitmap bitmap = writableBitmap(label);
+            directory.addAll(label, keys);
+            bitmap.or(keys);
+            versions.computeIfAbsent(label, k -> new AtomicLong()).incrementAndGet();
+            if (log != null) {
+                lsn = log.append(WriteAheadLog.ADD_ALL, label, record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        sync(log, lsn);
+    }
+
+    /**
+     * 并行导入imei文件到label，文件每行一个imei，csv文件取第一列
+     * @param label   标签
+     * @param file    imei文件
+     * @return 导入结果，包括行数、非法行数和每秒处理的行数
+     * @throws IOException
+     */
+    public ImeiImporter.Result importFile(String label, File file) throws IOException {
+        return importFile(label, file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param label   标签
+     * @param file    imei文件
+     * @param pool    解析用的线程池
+     * @return 导入结果
+     * @throws IOException
+     */
+    public ImeiImporter.Result importFile(String label, File file, ForkJoinPool pool) throws IOException {
+        ImeiImporter.Result result = new ImeiImporter(pool, luhnCheck).read(file);
+        addAll(label, result.getBitmap());
+        return result;
+    }
+
+    // 调用者持有该标签的写锁
+    private RoaringBitmap writableBitmap(String label) {
+        RoaringBitmap bitmap = data.get(label);
+        if (bitmap == null) {
+            // computeIfAbsent保证只装入一个bitmap；先装入data再移除mapped，读者总能看到其中一个
+            bitmap = data.computeIfAbsent(label, k -> {
+                ImmutableRoaringBitmap m = mapped.get(k);
+                if (m == null) {
+                    return new RoaringBitmap();
+                }
+                RoaringBitmap b = m.toRoaringBitmap();
+                directory.addAll(k, b);
+                return b;
+            });
+            mapped.remove(label);
+        }
+        return bitmap;
+    }
+
     public boolean getIfExists(String label, String imei) {
-        if (!checkImei(imei)) {
+        return getIfExistsKey(label, ImeiParser.parse(imei, luhnCheck));
+    }
+
+    /**
+     * @param label   标签
+     * @param imei    15位imei的数值
+     * @return imei是否在label下，非法imei为false
+     */
+    public boolean getIfExists(String label, long imei) {
+        return getIfExistsKey(label, ImeiParser.parse(imei, luhnCheck));
+    }
+
+    /**
+     * @param label   标签
+     * @param imei    ASCII编码的15位imei
+     * @return imei是否在label下，非法imei为false
+     */
+    public boolean getIfExists(String label, byte[] imei) {
+        return getIfExistsKey(label, ImeiParser.parse(imei, 0, imei.length, luhnCheck));
+    }
+
+    private boolean getIfExistsKey(String label, long l) {
+        if (l == ImeiParser.INVALID) {
             return false;
         }
-        long l = Long.parseLong(imei.substring(2));
-        return data.get(label) != null && data.get(label).contains(l);
+        StampedLock lock = lockOf(label);
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) {
+                continue;
+            }
+            boolean found;
+            try {
+                found = contains(label, l);
+            } catch (RuntimeException e) {
+                // 读到了写入中途不一致的状态，validate一定失败
+                found = false;
+            }
+            if (lock.validate(stamp)) {
+                return found;
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return contains(label, l);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
-    private boolean checkImei(String imei) {
-        if (imei.length() != 15) {
-            return false;
+    // 调用者持有读锁或处于乐观读中
+    private boolean contains(String label, long l) {
+        RoaringBitmap bitmap = data.get(label);
+        if (bitmap != null) {
+            return bitmap.contains(l);
+        }
+        ImmutableRoaringBitmap m = mapped.get(label);
+        return m != null && m.contains(l);
+    }
+
+    private void containsAll(String label, long[] sorted, boolean[] found) {
+        RoaringBitmap bitmap = data.get(label);
+        if (bitmap != null) {
+            bitmap.containsAll(sorted, found);
+            return;
+        }
+        ImmutableRoaringBitmap m = mapped.get(label);
+        for (int i = 0; i < sorted.length; i++) {
+            found[i] = m != null && m.contains(sorted[i]);
+        }
+    }
+
+    /**
+     * 批量判断imei是否在label下，结果与imeis一一对应
+     * 排序后一次遍历bitmap，比逐个调用getIfExists少做重复的查找
+     * @param label   标签
+     * @param imeis   imei列表，顺序任意
+     * @return 每个imei是否存在，非法imei为false
+     */
+    public boolean[] getIfExists(String label, String[] imeis) {
+        boolean[] result = new boolean[imeis.length];
+        long[] values = new long[imeis.length];
+        int n = 0;
+        for (int i = 0; i < imeis.length; i++) {
+            values[i] = ImeiParser.parse(imeis[i], luhnCheck);
+            if (values[i] != ImeiParser.INVALID) {
+                n++;
+            }
+        }
+        long[] sorted = new long[n];
+        n = 0;
+        for (long value : values) {
+            if (value != ImeiParser.INVALID) {
+                sorted[n++] = value;
+            }
+        }
+        Arrays.sort(sorted);
+        boolean[] found = new boolean[n];
+        // 批量查询耗时较长，乐观读只尝试一次
+        StampedLock lock = lockOf(label);
+        long stamp = lock.tryOptimisticRead();
+        boolean valid = false;
+        if (stamp != 0) {
+            try {
+                containsAll(label, sorted, found);
+            } catch (RuntimeException e) {
+                // validate一定失败
+            }
+            valid = lock.validate(stamp);
+        }
+        if (!valid) {
+            stamp = lock.readLock();
+            try {
+                containsAll(label, sorted, found);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        for (int i = 0; i < imeis.length; i++) {
+            if (values[i] != ImeiParser.INVALID) {
+                result[i] = found[Arrays.binarySearch(sorted, values[i])];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 反查imei在哪些标签下
+     * 只检查在该imei的高16位下有值的标签和mmap加载的标签，不必逐个检查所有标签
+     * @param imei    imei
+     * @return 包含该imei的标签，按字典序；非法imei返回空列表
+     */
+    public List<String> getLabels(String imei) {
+        return getLabelsKey(ImeiParser.parse(imei, luhnCheck));
+    }
+
+    /**
+     * @param imei    15位imei的数值
+     * @return 包含该imei的标签，按字典序
+     */
+    public List<String> getLabels(long imei) {
+        return getLabelsKey(ImeiParser.parse(imei, luhnCheck));
+    }
+
+    private List<String> getLabelsKey(long key) {
+        if (key == ImeiParser.INVALID) {
+            return new ArrayList<>();
+        }
+        TreeSet<String> labels = new TreeSet<>();
+        for (String label : directory.candidates(key)) {
+            if (getIfExistsKey(label, key)) {
+                labels.add(label);
+            }
+        }
+        // mmap加载的标签没有登记，首次写入转为RoaringBitmap时才登记
+        for (String label : mapped.keySet()) {
+            if (!labels.contains(label) && getIfExistsKey(label, key)) {
+                labels.add(label);
+            }
+        }
+        return new ArrayList<>(labels);
+    }
+
+    /**
+     * 把标签文件mmap为只读bitmap，不反序列化，加载后立即可以查询
+     * @param label   标签
+     * @param file    saveLabel写出的文件
+     * @throws IOException
+     */
+    public void mapLabel(String label, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // 关闭channel后映射依然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ImmutableRoaringBitmap m = new ImmutableRoaringBitmap(buffer);
+            WriteAheadLog log = wal;
+            long lsn = 0;
+            StampedLock lock = lockOf(label);
+            long stamp = lock.writeLock();
+            try {
+                mapped.put(label, m);
+                data.remove(label);
+                versions.computeIfAbsent(label, k -> new AtomicLong()).incrementAndGet();
+                // 只记录路径，快照之前回放需要文件仍在
+                if (log != null) {
+                    lsn = log.append(WriteAheadLog.MAP, label, file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            if (log != null && syncWrites) {
+                log.sync(lsn);
+            }
+        }
+    }
+
+    /**
+     * 把标签序列化到文件，供mapLabel加载
+     * @param label   标签
+     * @param file    目标文件
+     * @return 标签不存在返回false
+     * @throws IOException
+     */
+    public boolean saveLabel(String label, File file) throws IOException {
+        StampedLock lock = lockOf(label);
+        long stamp = lock.writeLock();
+        try {
+            RoaringBitmap bitmap = data.get(label);
+            if (bitmap == null) {
+                return false;
+            }
+            bitmap.runOptimize();
+            // 降为读锁，写文件期间读者仍可乐观读，写者等待
+            stamp = lock.tryConvertToReadLock(stamp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                bitmap.serialize(out);
+            }
+        } finally {
+            lock.unlock(stamp);
         }
         return true;
     }
+
+    /**
+     * 取得标签当前版本的快照，之后的写入不影响快照的内容
+     * 快照与标签共享container，只需O(container个数)；写入方修改某个container前才复制它
+     * 版本未变时直接返回上次的快照
+     * @param label   标签
+     * @return 快照，标签不存在时是版本为0的空快照
+     */
+    public LabelSnapshot snapshot(String label) {
+        LabelSnapshot s = latestSnapshot(label);
+        if (s != null) {
+            return s;
+        }
+        // 取快照只需排除写者，读锁不会让该段上的乐观读失效
+        StampedLock lock = lockOf(label);
+        long stamp = lock.readLock();
+        try {
+            return snapshotLocked(label);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 取得多个标签在同一时刻的快照，用于需要一致视图的多标签查询
+     * @param labels  标签
+     * @return 标签到快照
+     */
+    public Map<String, LabelSnapshot> snapshot(String... labels) {
+        Map<String, LabelSnapshot> cached = latestSnapshots(labels);
+        if (cached != null) {
+            return cached;
+        }
+        // 按段的下标顺序加读锁，避免死锁
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String label : labels) {
+            stripes.add(stripeOf(label));
+        }
+        long[] stamps = new long[stripes.size()];
+        int n = 0;
+        for (int stripe : stripes) {
+            stamps[n++] = locks[stripe].readLock();
+        }
+        try {
+            Map<String, LabelSnapshot> result = new HashMap<>();
+            for (String label : labels) {
+                result.put(label, snapshotLocked(label));
+            }
+            return result;
+        } finally {
+            n = 0;
+            for (int stripe : stripes) {
+                locks[stripe].unlockRead(stamps[n++]);
+            }
+        }
+    }
+
+    /**
+     * 按标签的布尔表达式查询，如 (label1 OR label2) AND NOT label3，语法见LabelQuery
+     * 在所有相关标签同一时刻的快照上求值，求交时基数小的标签在前，中间结果为空时提前结束
+     * @param expression  表达式
+     * @return 结果的key（去掉前缀86后的imei），调用者可以修改
+     */
+    public RoaringBitmap query(String expression) {
+        return query(LabelQuery.parse(expression));
+    }
+
+    /**
+     * 结果先查缓存，涉及的标签都没有写入过才使用
+     * @param query   解析好的查询
+     * @return 结果的key，调用者可以修改
+     */
+    public RoaringBitmap query(LabelQuery query) {
+        String[] labels = query.getLabels().toArray(new String[0]);
+        QueryCache.Entry e = queryCache.get(query, currentVersions(labels), true);
+        if (e != null) {
+            return e.bitmap.snapshot();
+        }
+        Map<String, LabelSnapshot> snapshots = snapshot(labels);
+        RoaringBitmap result = query.evaluate(snapshots);
+        // 缓存与调用者各持一份，共享container，任何一方修改前才复制
+        RoaringBitmap cached = result.snapshot();
+        queryCache.put(query, new QueryCache.Entry(query, versionsOf(labels, snapshots), cached,
+                cached.getLongCardinality()));
+        return result;
+    }
+
+    /**
+     * 结果的个数，最后一步运算只计数
+     * @param expression  表达式
+     * @return 满足表达式的imei个数
+     */
+    public long count(String expression) {
+        LabelQuery query = LabelQuery.parse(expression);
+        String[] labels = query.getLabels().toArray(new String[0]);
+        QueryCache.Entry e = queryCache.get(query, currentVersions(labels), false);
+        if (e != null) {
+            return e.count;
+        }
+        Map<String, LabelSnapshot> snapshots = snapshot(labels);
+        long count = query.count(snapshots);
+        queryCache.put(query, new QueryCache.Entry(query, versionsOf(labels, snapshots), null, count));
+        return count;
+    }
+
+    /**
+     * @return 表达式结果的缓存，可以调整容量、查看命中率
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    private long[] currentVersions(String[] labels) {
+        long[] result = new long[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            AtomicLong version = versions.get(labels[i]);
+            result[i] = version == null ? 0 : version.get();
+        }
+        return result;
+    }
+
+    private static long[] versionsOf(String[] labels, Map<String, LabelSnapshot> snapshots) {
+        long[] result = new long[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            result[i] = snapshots.get(labels[i]).getVersion();
+        }
+        return result;
+    }
+
+    /**
+     * 逐个取出满足表达式的imei，字符串在遍历时才生成
+     * @param expression  表达式
+     * @return 15位imei，升序
+     */
+    public Iterator<String> queryImeis(String expression) {
+        final LongIterator keys = query(expression).getLongIterator();
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return ImeiParser.format(keys.next());
+            }
+        };
+    }
+
+    // 版本未变的快照，没有则返回null
+    private LabelSnapshot latestSnapshot(String label) {
+        LabelSnapshot s = snapshots.get(label);
+        AtomicLong version = versions.get(label);
+        if (s != null && s.getVersion() == (version == null ? 0 : version.get())) {
+            return s;
+        }
+        return null;
+    }
+
+    // 所有标签都有版本未变的快照时不加锁直接返回，否则返回null
+    // 取完后再比较一次版本：版本只增不减，两次相同说明两次之间的某一时刻各快照同时是最新的
+    private Map<String, LabelSnapshot> latestSnapshots(String[] labels) {
+        Map<String, LabelSnapshot> result = new HashMap<>();
+        for (String label : labels) {
+            LabelSnapshot s = latestSnapshot(label);
+            if (s == null) {
+                return null;
+            }
+            result.put(label, s);
+        }
+        long[] now = currentVersions(labels);
+        for (int i = 0; i < labels.length; i++) {
+            if (result.get(labels[i]).getVersion() != now[i]) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    // 调用者持有该标签的读锁或写锁；并发取快照时可能各自生成一份，内容相同
+    private LabelSnapshot snapshotLocked(String label) {
+        LabelSnapshot s = latestSnapshot(label);
+        if (s != null) {
+            return s;
+        }
+        AtomicLong version = versions.get(label);
+        RoaringBitmap bitmap = data.get(label);
+        if (bitmap != null) {
+            bitmap = bitmap.snapshot();
+        } else {
+            ImmutableRoaringBitmap m = mapped.get(label);
+            bitmap = m == null ? new RoaringBitmap() : m.toRoaringBitmap();
+        }
+        s = new LabelSnapshot(label, version == null ? 0 : version.get(), bitmap);
+        snapshots.put(label, s);
+        return s;
+    }
+
+    /**
+     * 打开持久化目录：并行加载最近一次的快照，回放之后的日志，再开始记录新的写入
+     * 应在写入之前调用；写入等待日志落盘，每10分钟做一次快照
+     * @param dir     持久化目录，不存在时创建
+     * @throws IOException
+     */
+    public void open(File dir) throws IOException {
+        open(dir, true, 10);
+    }
+
+    /**
+     * @param dir                 持久化目录，不存在时创建
+     * @param syncWrites          写入是否等待日志落盘；为false时由后台线程尽快落盘，崩溃时可能丢失最近的写入
+     * @param checkpointMinutes   快照的间隔（分钟），不大于0时只在调用checkpoint时快照
+     * @throws IOException
+     */
+    public void open(File dir, boolean syncWrites, long checkpointMinutes) throws IOException {
+        synchronized (checkpointLock) {
+            if (wal != null) {
+                throw new IllegalStateException("already opened: " + this.dir);
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+            long from = recover(dir);
+            List<Long> segments = WriteAheadLog.segments(dir);
+            long next = segments.isEmpty() ? from : Math.max(from, segments.get(segments.size() - 1) + 1);
+            WriteAheadLog.deleteBefore(dir, from);
+            this.dir = dir;
+            this.syncWrites = syncWrites;
+            this.wal = new WriteAheadLog(dir, next);
+            if (checkpointMinutes > 0) {
+                checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "imei-checkpoint");
+                    t.setDaemon(true);
+                    return t;
+                });
+                checkpointer.scheduleWithFixedDelay(() -> {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        // 下次重试，日志仍然完整
+                    }
+                }, checkpointMinutes, checkpointMinutes, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    // 加载快照并回放日志，此时还没有预写日志，回放的写入不会再次记录；返回快照对应的起始段号
+    private long recover(File dir) throws IOException {
+        File manifest = new File(dir, CHECKPOINT);
+        long from = 0;
+        if (manifest.exists()) {
+            Map<String, String> files = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+                from = in.readLong();
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    files.put(in.readUTF(), in.readUTF());
+                }
+            }
+            // 每个快照文件由一个任务mmap后反序列化
+            Map<String, ForkJoinTask<RoaringBitmap>> tasks = new HashMap<>();
+            for (Map.Entry<String, String> e : files.entrySet()) {
+                File file = new File(dir, e.getValue());
+                tasks.put(e.getKey(), ForkJoinPool.commonPool().submit(() -> loadSnapshot(file)));
+            }
+            for (Map.Entry<String, ForkJoinTask<RoaringBitmap>> e : tasks.entrySet()) {
+                String label = e.getKey();
+                RoaringBitmap bitmap = ImeiImporter.join(e.getValue());
+                directory.addAll(label, bitmap);
+                data.put(label, bitmap);
+                mapped.remove(label);
+                long version = versions.computeIfAbsent(label, k -> new AtomicLong()).incrementAndGet();
+                checkpointVersions.put(label, version);
+                checkpointFiles.put(label, files.get(label));
+            }
+        }
+        WriteAheadLog.replay(dir, from, (type, label, buffer) -> {
+            switch (type) {
+                case WriteAheadLog.SET:
+                    setKey(label, buffer.getLong());
+                    break;
+                case WriteAheadLog.ADD_ALL: {
+                    RoaringBitmap keys = new RoaringBitmap();
+                    keys.deserialize(buffer);
+                    addAll(label, keys);
+                    break;
+                }
+                case WriteAheadLog.MAP: {
+                    byte[] path = new byte[buffer.remaining()];
+                    buffer.get(path);
+                    mapLabel(label, new File(new String(path, StandardCharsets.UTF_8)));
+                    break;
+                }
+                default:
+                    throw new IOException("unknown log record type " + type);
+            }
+        });
+        return from;
+    }
+
+    private static RoaringBitmap loadSnapshot(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            RoaringBitmap bitmap = new RoaringBitmap();
+            if (RoaringBitmap.isCompressed(buffer)) {
+                bitmap.deserializeCompressed(buffer);
+            } else {
+                bitmap.deserialize(buffer);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * 把所有标签的快照写到磁盘，之后删除快照已经包含的日志段
+     * 快照在各标签的锁内取得，只需O(container个数)，写文件时不阻塞读写；上次快照之后没有写入的标签沿用原文件
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            WriteAheadLog log = wal;
+            if (log == null) {
+                throw new IllegalStateException("not opened");
+            }
+            // 换段之前追加的记录都已写入bitmap，之后取得的快照一定包含它们；回放从新段开始
+            long from = log.roll();
+            Set<String> labels = new HashSet<>(data.keySet());
+            labels.addAll(mapped.keySet());
+            Map<String, String> files = new HashMap<>();
+            for (String label : labels) {
+                LabelSnapshot s = snapshot(label);
+                String name = checkpointFiles.get(label);
+                if (name == null || !checkpointVersions.get(label).equals(s.getVersion())) {
+                    name = from + "-" + files.size() + SNAPSHOT_SUFFIX;
+                    writeSnapshot(s.getBitmap(), new File(dir, name), compressSnapshots);
+                    checkpointVersions.put(label, s.getVersion());
+                    checkpointFiles.put(label, name);
+                }
+                files.put(label, name);
+            }
+            // 先写临时文件再改名，清单总是完整的
+            File tmp = new File(dir, CHECKPOINT + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                out.writeLong(from);
+                out.writeInt(files.size());
+                for (Map.Entry<String, String> e : files.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            WriteAheadLog.deleteBefore(dir, from);
+            Set<String> live = new HashSet<>(files.values());
+            String[] names = dir.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(SNAPSHOT_SUFFIX) && !live.contains(name)) {
+                        new File(dir, name).delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeSnapshot(RoaringBitmap bitmap, File file, boolean compress) throws IOException {
+        if (compress) {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                bitmap.serializeCompressed(out);
+                out.getFD().sync();
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bitmap.serializedSizeInBytes());
+        bitmap.serialize(buffer);
+        buffer.flip();
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 停止定期快照并关闭预写日志，已追加的记录都会落盘
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (checkpointLock) {
+            if (checkpointer != null) {
+                checkpointer.shutdownNow();
+                checkpointer = null;
+            }
+            WriteAheadLog log = wal;
+            wal = null;
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
+    private int stripeOf(String label) {
+        int h = label.hashCode();
+        return (h ^ (h >>> 16)) & (locks.length - 1);
+    }
+
+    private StampedLock lockOf(String label) {
+        return locks[stripeOf(label)];
+    }
 }
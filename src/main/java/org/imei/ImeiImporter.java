@@ -0,0 +1,220 @@
+package org.imei;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 批量导入imei文件：按行切分为若干块并行解析，每块得到一个bitmap，最后合并
+ * 文件每行一个imei，csv文件取第一列
+ */
+public final class ImeiImporter {
+    // 每块的大小，按行对齐后略有出入
+    static final int CHUNK_SIZE = 32 << 20;
+
+    // 解析出的key先攒在数组里，满了再批量加入bitmap
+    private static final int BATCH_SIZE = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    private final boolean luhnCheck;
+
+    /**
+     * @param pool        解析用的线程池
+     * @param luhnCheck   是否校验Luhn校验码
+     */
+    public ImeiImporter(ForkJoinPool pool, boolean luhnCheck) {
+        this.pool = pool;
+        this.luhnCheck = luhnCheck;
+    }
+
+    /**
+     * 导入结果
+     */
+    public static final class Result {
+        private final RoaringBitmap bitmap;
+
+        private final long lines;
+
+        private final long invalid;
+
+        private final long nanos;
+
+        Result(RoaringBitmap bitmap, long lines, long invalid, long nanos) {
+            this.bitmap = bitmap;
+            this.lines = lines;
+            this.invalid = invalid;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return 文件中所有合法imei的key
+         */
+        public RoaringBitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * @return 非空行数
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return 非法imei的行数
+         */
+        public long getInvalid() {
+            return invalid;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return 每秒处理的行数
+         */
+        public double getLinesPerSecond() {
+            return nanos == 0 ? 0 : lines * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return lines + " lines, " + invalid + " invalid, " + (long) getLinesPerSecond() + " lines/s";
+        }
+    }
+
+    /**
+     * 读取整个文件
+     * @param file    imei文件
+     * @return 导入结果
+     * @throws IOException
+     */
+    public Result read(File file) throws IOException {
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long[] bounds = split(channel);
+            List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                final long from = bounds[i];
+                final long to = bounds[i + 1];
+                tasks.add(pool.submit(() -> parse(channel.map(FileChannel.MapMode.READ_ONLY, from, to - from))));
+            }
+            RoaringBitmap[] partials = new RoaringBitmap[tasks.size()];
+            long lines = 0;
+            long invalid = 0;
+            for (int i = 0; i < partials.length; i++) {
+                Result r = join(tasks.get(i));
+                partials[i] = r.bitmap;
+                lines += r.lines;
+                invalid += r.invalid;
+            }
+            return new Result(FastAggregation.or(partials), lines, invalid, System.nanoTime() - start);
+        }
+    }
+
+    // 按CHUNK_SIZE切分，每个边界后移到下一行的开头
+    private static long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer window = ByteBuffer.allocate(4096);
+        long pos = CHUNK_SIZE;
+        while (pos < size) {
+            long next = -1;
+            // 找到pos之后的第一个换行符
+            for (long p = pos; next < 0 && p < size; p += window.capacity()) {
+                window.clear();
+                int n = channel.read(window, p);
+                for (int i = 0; i < n; i++) {
+                    if (window.get(i) == '\n') {
+                        next = p + i + 1;
+                        break;
+                    }
+                }
+            }
+            if (next < 0 || next >= size) {
+                break;
+            }
+            bounds.add(next);
+            pos = next + CHUNK_SIZE;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    // 解析一块，块内都是完整的行
+    private Result parse(MappedByteBuffer chunk) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        long[] batch = new long[BATCH_SIZE];
+        int n = 0;
+        long lines = 0;
+        long invalid = 0;
+        int limit = chunk.limit();
+        int lineStart = 0;
+        for (int i = 0; i <= limit; i++) {
+            if (i < limit && chunk.get(i) != '\n') {
+                continue;
+            }
+            // 去掉行尾的\r，csv只取第一列
+            int end = i;
+            if (end > lineStart && chunk.get(end - 1) == '\r') {
+                end--;
+            }
+            for (int k = lineStart; k < end; k++) {
+                if (chunk.get(k) == ',') {
+                    end = k;
+                    break;
+                }
+            }
+            if (end > lineStart) {
+                lines++;
+                long key = ImeiParser.parse(chunk, lineStart, end - lineStart, luhnCheck);
+                if (key == ImeiParser.INVALID) {
+                    invalid++;
+                } else {
+                    batch[n++] = key;
+                    if (n == batch.length) {
+                        bitmap.addAll(batch, 0, n);
+                        n = 0;
+                    }
+                }
+            }
+            lineStart = i + 1;
+        }
+        bitmap.addAll(batch, 0, n);
+        return new Result(bitmap, lines, invalid, 0);
+    }
+
+    // 取得任务结果，任务抛出的IOException原样抛出
+    static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("task failed", e.getCause());
+        }
+    }
+}
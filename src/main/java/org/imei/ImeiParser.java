@@ -0,0 +1,143 @@
+package org.imei;
+
+import java.nio.ByteBuffer;
+
+/**
+ * imei解析，一次遍历完成数字、前缀86和可选的Luhn校验，直接得到bitmap中的48位key，不创建String
+ */
+public final class ImeiParser {
+    /**
+     * 解析失败时的返回值
+     */
+    public static final long INVALID = -1;
+
+    static final int LENGTH = 15;
+
+    // 去掉前缀86后的13位数字
+    private static final long PREFIX_BASE = 86_0000000000000L;
+
+    private static final long KEY_LIMIT = 1_0000000000000L;
+
+    private ImeiParser() {
+    }
+
+    /**
+     * @param imei  15位imei
+     * @param luhn  是否校验最后一位Luhn校验码
+     * @return 去掉前缀86后的key，非法时返回INVALID
+     */
+    public static long parse(CharSequence imei, boolean luhn) {
+        if (imei.length() != LENGTH || imei.charAt(0) != '8' || imei.charAt(1) != '6') {
+            return INVALID;
+        }
+        long key = 0;
+        // 前缀86在Luhn中的贡献：8 + (6 * 2 - 9)
+        int sum = 11;
+        for (int i = 2; i < LENGTH; i++) {
+            int d = imei.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return INVALID;
+            }
+            key = key * 10 + d;
+            sum += luhnDigit(i, d);
+        }
+        return luhn && sum % 10 != 0 ? INVALID : key;
+    }
+
+    /**
+     * @param imei  ASCII编码的imei
+     * @param off   起始下标
+     * @param len   长度，必须为15
+     * @param luhn  是否校验最后一位Luhn校验码
+     * @return 去掉前缀86后的key，非法时返回INVALID
+     */
+    public static long parse(byte[] imei, int off, int len, boolean luhn) {
+        if (len != LENGTH || imei[off] != '8' || imei[off + 1] != '6') {
+            return INVALID;
+        }
+        long key = 0;
+        int sum = 11;
+        for (int i = 2; i < LENGTH; i++) {
+            int d = imei[off + i] - '0';
+            if (d < 0 || d > 9) {
+                return INVALID;
+            }
+            key = key * 10 + d;
+            sum += luhnDigit(i, d);
+        }
+        return luhn && sum % 10 != 0 ? INVALID : key;
+    }
+
+    /**
+     * 按绝对位置读取，不修改buffer的position
+     * @param imei  ASCII编码的imei
+     * @param off   起始位置
+     * @param len   长度，必须为15
+     * @param luhn  是否校验最后一位Luhn校验码
+     * @return 去掉前缀86后的key，非法时返回INVALID
+     */
+    public static long parse(ByteBuffer imei, int off, int len, boolean luhn) {
+        if (len != LENGTH || imei.get(off) != '8' || imei.get(off + 1) != '6') {
+            return INVALID;
+        }
+        long key = 0;
+        int sum = 11;
+        for (int i = 2; i < LENGTH; i++) {
+            int d = imei.get(off + i) - '0';
+            if (d < 0 || d > 9) {
+                return INVALID;
+            }
+            key = key * 10 + d;
+            sum += luhnDigit(i, d);
+        }
+        return luhn && sum % 10 != 0 ? INVALID : key;
+    }
+
+    /**
+     * @param imei  15位imei的数值
+     * @param luhn  是否校验最后一位Luhn校验码
+     * @return 去掉前缀86后的key，非法时返回INVALID
+     */
+    public static long parse(long imei, boolean luhn) {
+        long key = imei - PREFIX_BASE;
+        if (key < 0 || key >= KEY_LIMIT) {
+            return INVALID;
+        }
+        if (luhn) {
+            int sum = 11;
+            long rest = key;
+            for (int i = LENGTH - 1; i >= 2; i--) {
+                sum += luhnDigit(i, (int) (rest % 10));
+                rest /= 10;
+            }
+            if (sum % 10 != 0) {
+                return INVALID;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * parse的逆运算
+     * @param key   去掉前缀86后的key
+     * @return 15位imei
+     */
+    public static String format(long key) {
+        char[] chars = new char[LENGTH];
+        chars[0] = '8';
+        chars[1] = '6';
+        for (int i = LENGTH - 1; i >= 2; i--) {
+            chars[i] = (char) ('0' + key % 10);
+            key /= 10;
+        }
+        return new String(chars);
+    }
+
+    // 从左数第i位（从0开始）在Luhn和中的贡献，奇数位乘2
+    private static int luhnDigit(int i, int d) {
+        if ((i & 1) == 0) {
+            return d;
+        }
+        return d < 5 ? 2 * d : 2 * d - 9;
+    }
+}
@@ -0,0 +1,107 @@
+package org.imei;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 反查imei所在标签用的目录：记录每个高16位key下有container的标签，反查时只检查这些标签
+ * 只增不减，标签被mapLabel替换后可能多出已不含该key的标签，反查时逐个确认
+ */
+final class LabelDirectory {
+    // 每个高16位key下的标签编号，升序，整体替换（写时复制），读不加锁
+    private final AtomicReferenceArray<int[]> slots = new AtomicReferenceArray<>(1 << 16);
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    // 编号到标签，先写入元素再发布数组
+    private volatile String[] names = new String[16];
+
+    private int count;
+
+    /**
+     * 在把key写入标签之前调用
+     * @param label   标签
+     * @param key     去掉前缀86后的imei
+     */
+    void add(String label, long key) {
+        add(idOf(label), (int) (key >>> 32));
+    }
+
+    /**
+     * @param label   标签
+     * @param keys    标签的全部或新增的key
+     */
+    void addAll(String label, RoaringBitmap keys) {
+        int id = idOf(label);
+        for (long v = keys.nextValue(0); v >= 0; v = keys.nextValue(((v >>> 32) + 1) << 32)) {
+            add(id, (int) (v >>> 32));
+        }
+    }
+
+    // 已有时只需一次二分查找；新增时复制数组后CAS替换
+    private void add(int id, int high) {
+        while (true) {
+            int[] current = slots.get(high);
+            int[] next;
+            if (current == null) {
+                next = new int[]{id};
+            } else {
+                int i = Arrays.binarySearch(current, id);
+                if (i >= 0) {
+                    return;
+                }
+                i = -i - 1;
+                next = new int[current.length + 1];
+                System.arraycopy(current, 0, next, 0, i);
+                next[i] = id;
+                System.arraycopy(current, i, next, i + 1, current.length - i);
+            }
+            if (slots.compareAndSet(high, current, next)) {
+                return;
+            }
+        }
+    }
+
+    private int idOf(String label) {
+        Integer id = ids.get(label);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(label);
+            if (id == null) {
+                String[] n = names;
+                if (count == n.length) {
+                    n = Arrays.copyOf(n, n.length * 2);
+                }
+                n[count] = label;
+                names = n;
+                id = count++;
+                ids.put(label, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param key 去掉前缀86后的imei
+     * @return 在key的高16位下可能有值的标签
+     */
+    List<String> candidates(long key) {
+        int[] current = slots.get((int) (key >>> 32));
+        List<String> result = new ArrayList<>();
+        if (current != null) {
+            String[] n = names;
+            for (int id : current) {
+                result.add(n[id]);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,447 @@
+package org.imei;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 标签的布尔表达式，如 (label1 OR label2) AND NOT label3
+ * 关键字AND、OR、NOT不区分大小写，含空格、括号或与关键字同名的标签用双引号括起，引号内用\转义
+ * 解析后规范化：嵌套的AND/OR展开，操作数排序去重，相同含义的表达式toString相同
+ * NOT只能作为AND的操作数，且该AND至少有一个不带NOT的操作数
+ */
+public final class LabelQuery {
+    private static final int LABEL = 0;
+
+    private static final int AND = 1;
+
+    private static final int OR = 2;
+
+    private static final int NOT = 3;
+
+    private final int op;
+
+    private final String label;
+
+    private final List<LabelQuery> operands;
+
+    // 规范化的文本，也用于排序和去重
+    private final String text;
+
+    private LabelQuery(int op, String label, List<LabelQuery> operands) {
+        this.op = op;
+        this.label = label;
+        this.operands = operands;
+        this.text = format();
+    }
+
+    /**
+     * @param expression  表达式
+     * @return 规范化的查询
+     * @throws IllegalArgumentException 表达式有语法错误或NOT的位置不合法
+     */
+    public static LabelQuery parse(String expression) {
+        Parser parser = new Parser(expression);
+        LabelQuery query = parser.parseOr();
+        if (parser.peek() != null) {
+            throw parser.error("unexpected " + parser.peek());
+        }
+        query.check(OR);
+        return query;
+    }
+
+    /**
+     * @return 表达式用到的标签
+     */
+    public Set<String> getLabels() {
+        Set<String> labels = new TreeSet<>();
+        collectLabels(labels);
+        return labels;
+    }
+
+    private void collectLabels(Set<String> labels) {
+        if (op == LABEL) {
+            labels.add(label);
+        } else {
+            for (LabelQuery q : operands) {
+                q.collectLabels(labels);
+            }
+        }
+    }
+
+    /**
+     * 在一组快照上求值
+     * @param snapshots   标签到快照，须包含getLabels中的所有标签
+     * @return 结果的key，调用者可以修改
+     */
+    public RoaringBitmap evaluate(Map<String, LabelSnapshot> snapshots) {
+        RoaringBitmap result = eval(snapshots, null);
+        // 结果可能就是某个快照的bitmap，返回写时复制的副本
+        Map<RoaringBitmap, Boolean> shared = new IdentityHashMap<>();
+        for (LabelSnapshot s : snapshots.values()) {
+            shared.put(s.getBitmap(), Boolean.TRUE);
+        }
+        return shared.containsKey(result) ? result.snapshot() : result;
+    }
+
+    /**
+     * 在一组快照上求结果的个数，最后一步运算只计数，不生成bitmap
+     * @param snapshots   标签到快照，须包含getLabels中的所有标签
+     * @return 结果的个数
+     */
+    public long count(Map<String, LabelSnapshot> snapshots) {
+        long[] count = new long[1];
+        RoaringBitmap result = eval(snapshots, count);
+        return result == null ? count[0] : result.getLongCardinality();
+    }
+
+    // count不为null时，若最后一步是两个bitmap的运算则只计数，结果放在count[0]并返回null
+    // 返回的bitmap可能是快照本身，不能修改
+    private RoaringBitmap eval(Map<String, LabelSnapshot> snapshots, long[] count) {
+        switch (op) {
+            case LABEL:
+                return bitmapOf(snapshots);
+            case OR:
+                return or(snapshots, count);
+            case AND:
+                return and(snapshots, count);
+            default:
+                throw new IllegalStateException("NOT outside AND");
+        }
+    }
+
+    private RoaringBitmap bitmapOf(Map<String, LabelSnapshot> snapshots) {
+        LabelSnapshot s = snapshots.get(label);
+        if (s == null) {
+            throw new IllegalArgumentException("no snapshot for label " + label);
+        }
+        return s.getBitmap();
+    }
+
+    private RoaringBitmap or(Map<String, LabelSnapshot> snapshots, long[] count) {
+        List<RoaringBitmap> parts = new ArrayList<>();
+        for (LabelQuery q : operands) {
+            RoaringBitmap b = q.eval(snapshots, null);
+            if (!b.isEmpty()) {
+                parts.add(b);
+            }
+        }
+        if (parts.isEmpty()) {
+            return new RoaringBitmap();
+        }
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        if (count != null && parts.size() == 2) {
+            count[0] = RoaringBitmap.orCardinality(parts.get(0), parts.get(1));
+            return null;
+        }
+        return FastAggregation.or(parts.toArray(new RoaringBitmap[parts.size()]));
+    }
+
+    // 不带NOT的操作数按估计的基数从小到大求交，再依次去掉带NOT的操作数，中途为空即返回
+    private RoaringBitmap and(Map<String, LabelSnapshot> snapshots, long[] count) {
+        List<LabelQuery> positive = new ArrayList<>();
+        List<LabelQuery> negative = new ArrayList<>();
+        for (LabelQuery q : operands) {
+            if (q.op == NOT) {
+                negative.add(q.operands.get(0));
+            } else {
+                positive.add(q);
+            }
+        }
+        Map<LabelQuery, Long> estimates = new IdentityHashMap<>();
+        for (LabelQuery q : operands) {
+            LabelQuery o = q.op == NOT ? q.operands.get(0) : q;
+            estimates.put(o, o.estimate(snapshots));
+        }
+        Comparator<LabelQuery> bySize = Comparator.comparing(estimates::get);
+        positive.sort(bySize);
+        // 大的先减，结果尽早变小
+        negative.sort(bySize.reversed());
+        if (estimates.get(positive.get(0)) == 0) {
+            return new RoaringBitmap();
+        }
+        int steps = positive.size() + negative.size();
+        RoaringBitmap result = positive.get(0).eval(snapshots, null);
+        for (int i = 1; i < steps && !result.isEmpty(); i++) {
+            boolean keep = i < positive.size();
+            LabelQuery next = keep ? positive.get(i) : negative.get(i - positive.size());
+            if (!keep && estimates.get(next) == 0) {
+                continue;
+            }
+            RoaringBitmap b = next.eval(snapshots, null);
+            if (count != null && i == steps - 1) {
+                count[0] = keep ? RoaringBitmap.andCardinality(result, b) : RoaringBitmap.andNotCardinality(result, b);
+                return null;
+            }
+            result = keep ? RoaringBitmap.and(result, b) : RoaringBitmap.andNot(result, b);
+        }
+        return result;
+    }
+
+    // 结果个数的上界，不做集合运算；快照被多个查询线程共享，只用不写任何状态的getLongCardinality
+    private long estimate(Map<String, LabelSnapshot> snapshots) {
+        switch (op) {
+            case LABEL:
+                return bitmapOf(snapshots).getLongCardinality();
+            case OR: {
+                long sum = 0;
+                for (LabelQuery q : operands) {
+                    sum += q.estimate(snapshots);
+                }
+                return sum;
+            }
+            default: {
+                long min = Long.MAX_VALUE;
+                for (LabelQuery q : operands) {
+                    if (q.op != NOT) {
+                        min = Math.min(min, q.estimate(snapshots));
+                    }
+                }
+                return min;
+            }
+        }
+    }
+
+    // parent为所在的运算，检查NOT的位置
+    private void check(int parent) {
+        if (op == NOT && parent != AND) {
+            throw new IllegalArgumentException("NOT must be an operand of AND: " + text);
+        }
+        if (op == AND) {
+            boolean positive = false;
+            for (LabelQuery q : operands) {
+                positive |= q.op != NOT;
+            }
+            if (!positive) {
+                throw new IllegalArgumentException("AND needs an operand without NOT: " + text);
+            }
+        }
+        if (operands != null) {
+            for (LabelQuery q : operands) {
+                q.check(op);
+            }
+        }
+    }
+
+    private static LabelQuery label(String label) {
+        return new LabelQuery(LABEL, label, null);
+    }
+
+    private static LabelQuery not(LabelQuery q) {
+        if (q.op == NOT) {
+            return q.operands.get(0);
+        }
+        return new LabelQuery(NOT, null, Collections.singletonList(q));
+    }
+
+    // 展开同类的子运算，排序去重，只剩一个操作数时返回它本身
+    private static LabelQuery combine(int op, List<LabelQuery> list) {
+        TreeSet<LabelQuery> set = new TreeSet<>(Comparator.comparing((LabelQuery q) -> q.text));
+        for (LabelQuery q : list) {
+            if (q.op == op) {
+                set.addAll(q.operands);
+            } else {
+                set.add(q);
+            }
+        }
+        if (set.size() == 1) {
+            return set.first();
+        }
+        return new LabelQuery(op, null, Collections.unmodifiableList(new ArrayList<>(set)));
+    }
+
+    private String format() {
+        switch (op) {
+            case LABEL:
+                return quote(label);
+            case NOT:
+                return "NOT " + operands.get(0).formatOperand();
+            default: {
+                StringBuilder sb = new StringBuilder();
+                for (LabelQuery q : operands) {
+                    if (sb.length() > 0) {
+                        sb.append(op == AND ? " AND " : " OR ");
+                    }
+                    sb.append(q.formatOperand());
+                }
+                return sb.toString();
+            }
+        }
+    }
+
+    private String formatOperand() {
+        return op == AND || op == OR ? "(" + text + ")" : text;
+    }
+
+    private static String quote(String label) {
+        boolean plain = !label.isEmpty() && !isKeyword(label);
+        for (int i = 0; i < label.length() && plain; i++) {
+            plain = isLabelChar(label.charAt(i));
+        }
+        if (plain) {
+            return label;
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static boolean isLabelChar(char c) {
+        return !Character.isWhitespace(c) && c != '(' && c != ')' && c != '"';
+    }
+
+    private static boolean isKeyword(String word) {
+        return "AND".equalsIgnoreCase(word) || "OR".equalsIgnoreCase(word) || "NOT".equalsIgnoreCase(word);
+    }
+
+    /**
+     * @return 规范化的表达式，可以再次解析
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LabelQuery && ((LabelQuery) o).text.equals(text);
+    }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
+
+    // 递归下降：or := and (OR and)*，and := unary (AND unary)*，unary := NOT unary | ( or ) | 标签
+    private static final class Parser {
+        private final String s;
+
+        private int pos;
+
+        // 当前词，peek时读入；quoted表示是引号括起的标签
+        private String token;
+
+        private boolean quoted;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        LabelQuery parseOr() {
+            List<LabelQuery> list = new ArrayList<>();
+            list.add(parseAnd());
+            while (keyword("OR")) {
+                list.add(parseAnd());
+            }
+            return combine(OR, list);
+        }
+
+        LabelQuery parseAnd() {
+            List<LabelQuery> list = new ArrayList<>();
+            list.add(parseUnary());
+            while (keyword("AND")) {
+                list.add(parseUnary());
+            }
+            return combine(AND, list);
+        }
+
+        LabelQuery parseUnary() {
+            if (keyword("NOT")) {
+                return not(parseUnary());
+            }
+            String t = peek();
+            if (t == null) {
+                throw error("unexpected end");
+            }
+            if (!quoted && t.equals("(")) {
+                next();
+                LabelQuery q = parseOr();
+                if (!")".equals(peek()) || quoted) {
+                    throw error("missing )");
+                }
+                next();
+                return q;
+            }
+            if (!quoted && (t.equals(")") || isKeyword(t))) {
+                throw error("unexpected " + t);
+            }
+            next();
+            return label(t);
+        }
+
+        private boolean keyword(String k) {
+            String t = peek();
+            if (t != null && !quoted && t.equalsIgnoreCase(k)) {
+                next();
+                return true;
+            }
+            return false;
+        }
+
+        private void next() {
+            token = null;
+        }
+
+        String peek() {
+            if (token != null) {
+                return token;
+            }
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+            if (pos == s.length()) {
+                return null;
+            }
+            char c = s.charAt(pos);
+            quoted = c == '"';
+            if (c == '(' || c == ')') {
+                pos++;
+                token = String.valueOf(c);
+            } else if (quoted) {
+                StringBuilder sb = new StringBuilder();
+                for (pos++; ; pos++) {
+                    if (pos == s.length()) {
+                        throw error("unterminated quote");
+                    }
+                    c = s.charAt(pos);
+                    if (c == '"') {
+                        pos++;
+                        break;
+                    }
+                    if (c == '\\' && pos + 1 < s.length()) {
+                        c = s.charAt(++pos);
+                    }
+                    sb.append(c);
+                }
+                token = sb.toString();
+            } else {
+                int start = pos;
+                while (pos < s.length() && isLabelChar(s.charAt(pos))) {
+                    pos++;
+                }
+                token = s.substring(start, pos);
+            }
+            return token;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " in: " + s);
+        }
+    }
+}
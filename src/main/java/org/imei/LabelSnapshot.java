@@ -0,0 +1,39 @@
+package org.imei;
+
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * 标签在某个版本时的只读快照，取得后不受之后写入的影响
+ */
+public final class LabelSnapshot {
+    private final String label;
+
+    private final long version;
+
+    private final RoaringBitmap bitmap;
+
+    LabelSnapshot(String label, long version, RoaringBitmap bitmap) {
+        this.label = label;
+        this.version = version;
+        this.bitmap = bitmap;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return 标签的版本，每次写入加一，标签不存在时为0
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 快照的内容，可能被多个读者共享，不要修改
+     * @return bitmap
+     */
+    public RoaringBitmap getBitmap() {
+        return bitmap;
+    }
+}
@@ -0,0 +1,165 @@
+package org.imei;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 标签表达式结果的缓存，按规范化的表达式查找，按占用的内存（RoaringBitmap.getSizeInBytes）限制总量，超出时淘汰最久未用的
+ * 每项记录求值时各标签的版本，取出时版本不一致即失效
+ */
+public final class QueryCache {
+    // 每项除bitmap外的大致开销
+    private static final int ENTRY_OVERHEAD = 64;
+
+    static final class Entry {
+        // 按LabelQuery.getLabels的顺序
+        final long[] versions;
+
+        // 只缓存了个数时为null；与调用者之间写时复制
+        final RoaringBitmap bitmap;
+
+        final long count;
+
+        final long weight;
+
+        Entry(LabelQuery query, long[] versions, RoaringBitmap bitmap, long count) {
+            this.versions = versions;
+            this.bitmap = bitmap;
+            this.count = count;
+            this.weight = ENTRY_OVERHEAD + 2L * query.toString().length() + 8L * versions.length
+                    + (bitmap == null ? 0 : bitmap.getSizeInBytes());
+        }
+    }
+
+    // 按访问顺序排列，最久未用的在前
+    private final LinkedHashMap<LabelQuery, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxWeight;
+
+    private long weight;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    QueryCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @param query       查询
+     * @param versions    各标签当前的版本
+     * @param needBitmap  是否需要结果的bitmap，否则只需要个数
+     * @return 有效的缓存项，没有时返回null
+     */
+    synchronized Entry get(LabelQuery query, long[] versions, boolean needBitmap) {
+        Entry e = entries.get(query);
+        if (e != null && !Arrays.equals(e.versions, versions)) {
+            remove(query, e);
+            invalidations++;
+            e = null;
+        }
+        if (e == null || (needBitmap && e.bitmap == null)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    synchronized void put(LabelQuery query, Entry e) {
+        if (e.weight > maxWeight) {
+            return;
+        }
+        Entry old = entries.get(query);
+        // 已有同版本的bitmap时不用只有个数的项替换
+        if (old != null && e.bitmap == null && old.bitmap != null && Arrays.equals(old.versions, e.versions)) {
+            return;
+        }
+        if (old != null) {
+            remove(query, old);
+        }
+        entries.put(query, e);
+        weight += e.weight;
+        evict();
+    }
+
+    private void remove(LabelQuery query, Entry e) {
+        entries.remove(query);
+        weight -= e.weight;
+    }
+
+    // 调用者持有this的锁
+    private void evict() {
+        Iterator<Map.Entry<LabelQuery, Entry>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().getValue().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param maxWeight   缓存的内存上限（字节），为0时不缓存
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return 当前缓存占用的内存（字节）
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return 因超出内存上限被淘汰的项数
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return 因标签被写入而失效的项数
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return entries.size() + " entries, " + weight + "/" + maxWeight + " bytes, " + hits + " hits, " + misses
+                + " misses, " + evictions + " evictions, " + invalidations + " invalidations";
+    }
+}
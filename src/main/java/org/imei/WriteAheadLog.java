@@ -0,0 +1,385 @@
+package org.imei;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 分段的预写日志。写者只把记录追加到内存缓冲，由一个后台线程把攒下的记录一次写入并fsync（组提交）
+ * 记录格式：int 长度，int crc32，byte 类型，short 标签长度，标签(UTF-8)，数据
+ */
+final class WriteAheadLog implements Closeable {
+    // 数据为long key
+    static final byte SET = 1;
+
+    // 数据为序列化的bitmap
+    static final byte ADD_ALL = 2;
+
+    // 数据为mapLabel的文件路径(UTF-8)
+    static final byte MAP = 3;
+
+    // 当前段超过该大小后换新段
+    static final long SEGMENT_SIZE = 64L << 20;
+
+    private static final String PREFIX = "wal-";
+
+    private static final String SUFFIX = ".log";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // 记录头：长度(4) + crc32(4)
+    private static final int HEADER = 8;
+
+    /**
+     * 回放时对每条记录的处理
+     */
+    interface Replayer {
+        void apply(byte type, String label, ByteBuffer data) throws IOException;
+    }
+
+    private final File dir;
+
+    private final Object lock = new Object();
+
+    // 以下字段由lock保护
+    private byte[] pending = new byte[BUFFER_SIZE];
+
+    private int count;
+
+    private byte[] spare = new byte[BUFFER_SIZE];
+
+    // 已追加和已落盘的记录数，记录的序号从1开始
+    private long appended;
+
+    private long synced;
+
+    private long segment;
+
+    private boolean rollRequested;
+
+    private boolean closed;
+
+    private IOException failure;
+
+    // 以下字段只由flusher线程访问
+    private FileChannel channel;
+
+    private long segmentBytes;
+
+    private final Thread flusher;
+
+    /**
+     * @param dir       日志目录
+     * @param segment   第一个段的段号，必须大于目录中已有的段
+     * @throws IOException
+     */
+    WriteAheadLog(File dir, long segment) throws IOException {
+        this.dir = dir;
+        this.segment = segment;
+        this.channel = create(segment);
+        this.flusher = new Thread(this::flushLoop, "imei-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private FileChannel create(long segment) throws IOException {
+        return FileChannel.open(file(dir, segment).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    static File file(File dir, long segment) {
+        return new File(dir, String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+
+    /**
+     * @param dir 日志目录
+     * @return 目录中已有的段号，升序
+     */
+    static List<Long> segments(File dir) {
+        List<Long> result = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return result;
+        }
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    result.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // 不是日志段
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * 删除段号小于segment的段
+     * @param dir       日志目录
+     * @param segment   段号
+     */
+    static void deleteBefore(File dir, long segment) {
+        for (long s : segments(dir)) {
+            if (s < segment) {
+                file(dir, s).delete();
+            }
+        }
+    }
+
+    /**
+     * 按顺序回放段号不小于from的所有记录，每段遇到不完整或校验失败的记录即停止（崩溃时未写完的尾部）
+     * @param dir       日志目录
+     * @param from      起始段号
+     * @param replayer  记录的处理
+     * @return 回放的记录数
+     * @throws IOException
+     */
+    static long replay(File dir, long from, Replayer replayer) throws IOException {
+        long records = 0;
+        CRC32 crc = new CRC32();
+        for (long s : segments(dir)) {
+            if (s < from) {
+                continue;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file(dir, s), "r");
+                 FileChannel channel = raf.getChannel()) {
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (in.remaining() >= HEADER) {
+                    int length = in.getInt(in.position());
+                    int checksum = in.getInt(in.position() + 4);
+                    if (length < 3 || length > in.remaining() - HEADER) {
+                        break;
+                    }
+                    ByteBuffer body = in.duplicate();
+                    body.position(in.position() + HEADER).limit(in.position() + HEADER + length);
+                    crc.reset();
+                    crc.update(body.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    byte type = body.get();
+                    byte[] label = new byte[body.getShort() & 0xFFFF];
+                    body.get(label);
+                    replayer.apply(type, new String(label, StandardCharsets.UTF_8), body.slice());
+                    in.position(in.position() + HEADER + length);
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @param label 标签
+     * @param key   key
+     * @return 记录的序号，传给sync等待落盘
+     * @throws IOException 日志已关闭或写入失败
+     */
+    long append(String label, long key) throws IOException {
+        byte[] record = record(SET, label, 8);
+        ByteBuffer.wrap(record, record.length - 8, 8).putLong(key);
+        return append(record);
+    }
+
+    /**
+     * @param type  ADD_ALL或MAP
+     * @param label 标签
+     * @param data  数据
+     * @return 记录的序号
+     * @throws IOException 日志已关闭或写入失败
+     */
+    long append(byte type, String label, byte[] data) throws IOException {
+        byte[] record = record(type, label, data.length);
+        System.arraycopy(data, 0, record, record.length - data.length, data.length);
+        return append(record);
+    }
+
+    // 分配整条记录并写好头部和标签，数据留给调用者
+    private static byte[] record(byte type, String label, int dataLength) {
+        byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("label too long: " + bytes.length + " bytes");
+        }
+        byte[] record = new byte[HEADER + 3 + bytes.length + dataLength];
+        ByteBuffer.wrap(record, HEADER, 3).put(type).putShort((short) bytes.length);
+        System.arraycopy(bytes, 0, record, HEADER + 3, bytes.length);
+        return record;
+    }
+
+    // 在锁外算好crc，锁内只做拷贝
+    private long append(byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER, record.length - HEADER);
+        ByteBuffer.wrap(record, 0, HEADER).putInt(record.length - HEADER).putInt((int) crc.getValue());
+        synchronized (lock) {
+            check();
+            if (count + record.length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, count + record.length));
+            }
+            System.arraycopy(record, 0, pending, count, record.length);
+            count += record.length;
+            if (count == record.length) {
+                lock.notifyAll();
+            }
+            return ++appended;
+        }
+    }
+
+    /**
+     * 等待序号不大于lsn的记录全部落盘
+     * @param lsn   append返回的序号
+     * @throws IOException 写入失败或等待时被中断
+     */
+    void sync(long lsn) throws IOException {
+        synchronized (lock) {
+            while (synced < lsn && failure == null) {
+                await();
+            }
+            if (synced < lsn) {
+                throw new IOException("write-ahead log failed", failure);
+            }
+        }
+    }
+
+    /**
+     * 把已追加的记录写入当前段后换新段
+     * @return 新段的段号，之前追加的记录都在更小的段中
+     * @throws IOException
+     */
+    long roll() throws IOException {
+        synchronized (lock) {
+            check();
+            rollRequested = true;
+            lock.notifyAll();
+            while (rollRequested && failure == null) {
+                await();
+            }
+            check();
+            return segment;
+        }
+    }
+
+    // 调用者持有lock
+    private void check() throws IOException {
+        if (failure != null) {
+            throw new IOException("write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IOException("write-ahead log closed");
+        }
+    }
+
+    // 调用者持有lock
+    private void await() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for write-ahead log");
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            int n;
+            long target;
+            boolean roll;
+            synchronized (lock) {
+                while (count == 0 && !rollRequested && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // 只由close结束
+                    }
+                }
+                if (count == 0 && !rollRequested) {
+                    return;
+                }
+                // 交换缓冲，写盘期间写者继续追加到另一个缓冲
+                batch = pending;
+                n = count;
+                pending = batch.length > 64 * BUFFER_SIZE ? new byte[BUFFER_SIZE] : spare;
+                spare = batch;
+                count = 0;
+                target = appended;
+                roll = rollRequested;
+            }
+            long next = -1;
+            try {
+                if (n > 0) {
+                    ByteBuffer out = ByteBuffer.wrap(batch, 0, n);
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    channel.force(false);
+                    segmentBytes += n;
+                }
+                if (roll || segmentBytes >= SEGMENT_SIZE) {
+                    synchronized (lock) {
+                        next = segment + 1;
+                    }
+                    FileChannel c = create(next);
+                    channel.close();
+                    channel = c;
+                    segmentBytes = 0;
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                synced = target;
+                if (next >= 0) {
+                    segment = next;
+                }
+                if (roll) {
+                    rollRequested = false;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 写完已追加的记录后关闭
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing write-ahead log");
+        } finally {
+            channel.close();
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw new IOException("write-ahead log failed", failure);
+            }
+        }
+    }
+}
@@ -4,9 +4,10 @@
  */
 package org.roaringbitmap;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.function.LongConsumer;
 
 /**
  * Simple container made of an array of 16-bit integers
@@ -70,19 +71,19 @@ public final class ArrayContainer extends Container implements Cloneable {
 
     /**
      * running time is in O(n) time if insert is not in order.
-     * 改为存储32bit
+     * 改为存储32bit，超过DEFAULT_MAX_SIZE后转为NestedContainer
      */
     @Override
     public Container add(final int x) {
-        // Transform the ArrayContainer to a BitmapContainer
+        // Transform the ArrayContainer to a NestedContainer
         // when cardinality = DEFAULT_MAX_SIZE
         if (cardinality >= DEFAULT_MAX_SIZE) {
-            // 超过阈值则转化为bitmap
-            BitmapContainer a = this.toBitmapContainer();
+            // 超过阈值则转化为两级的NestedContainer，32位空间下bitmap过大
+            NestedContainer a = this.toNestedContainer();
             a.add(x);
             return a;
         }
-        if ((cardinality == 0) || x > content[cardinality - 1]) {
+        if ((cardinality == 0) || Util.toLongUnsigned(x) > Util.toLongUnsigned(content[cardinality - 1])) {
             // 扩容
             if (cardinality >= this.content.length)
                 increaseCapacity();
@@ -107,6 +108,45 @@ public final class ArrayContainer extends Container implements Cloneable {
         return this;
     }
 
+    @Override
+    public Container and(final Container x) {
+        if (x instanceof ArrayContainer)
+            return and((ArrayContainer) x);
+        return super.and(x);
+    }
+
+    /**
+     * Intersection with another array container, galloping when the sizes
+     * differ a lot.
+     *
+     * @param value2 other container
+     * @return the intersection
+     */
+    public Container and(final ArrayContainer value2) {
+        final int[] buffer = new int[Math.min(cardinality, value2.cardinality)];
+        final int card = Util.unsignedIntersect2by2(content, cardinality, value2.content, value2.cardinality, buffer);
+        return new ArrayContainer(card, buffer);
+    }
+
+    @Override
+    public Container andNot(final Container x) {
+        if (x instanceof ArrayContainer)
+            return andNot((ArrayContainer) x);
+        return super.andNot(x);
+    }
+
+    /**
+     * Difference with another array container.
+     *
+     * @param value2 other container
+     * @return the difference
+     */
+    public Container andNot(final ArrayContainer value2) {
+        final int[] buffer = new int[cardinality];
+        final int card = Util.unsignedDifference(content, cardinality, value2.content, value2.cardinality, buffer);
+        return new ArrayContainer(card, buffer);
+    }
+
     @Override
     public boolean contains(final int x) {
         return Util.binarySearch(content, 0, cardinality, x) >= 0;
@@ -117,6 +157,18 @@ public final class ArrayContainer extends Container implements Cloneable {
         cardinality = 0;
     }
 
+    @Override
+    void containsAll(final long[] probes, final int begin, final int end, final boolean[] out) {
+        // 从上一个位置倍增查找，probes有序
+        int pos = -1;
+        for (int k = begin; k < end; ++k) {
+            final int x = Util.lowbits(probes[k]);
+            final int i = Util.advanceUntil(content, pos, cardinality, x);
+            out[k] = i < cardinality && content[i] == x;
+            pos = i - 1;
+        }
+    }
+
     @Override
     public ArrayContainer clone() {
         return new ArrayContainer(this.cardinality, this.content);
@@ -137,9 +189,44 @@ public final class ArrayContainer extends Container implements Cloneable {
         return false;
     }
 
+    /**
+     * Read an array container written by writeArray.
+     *
+     * @param in          little-endian input buffer
+     * @param cardinality number of values
+     * @return the container
+     */
+    static ArrayContainer deserialize(final ByteBuffer in, final int cardinality) {
+        final int[] content = new int[cardinality];
+        in.asIntBuffer().get(content);
+        in.position(in.position() + 4 * cardinality);
+        return new ArrayContainer(content);
+    }
+
+    @Override
+    public void fillLeastSignificant32bits(final long[] x, final int i, final long mask) {
+        for (int k = 0; k < this.cardinality; ++k)
+            x[k + i] = Util.toLongUnsigned(this.content[k]) | mask;
+    }
+
+    @Override
+    int fillLeastSignificant32bits(final long[] x, final int i, final long mask, final long from) {
+        final int begin = lowerBound(from);
+        final int n = Math.min(cardinality - begin, x.length - i);
+        for (int k = 0; k < n; ++k)
+            x[i + k] = Util.toLongUnsigned(this.content[begin + k]) | mask;
+        return n;
+    }
+
+    @Override
+    public void forEach(final long mask, final LongConsumer action) {
+        for (int k = 0; k < this.cardinality; ++k)
+            action.accept(Util.toLongUnsigned(this.content[k]) | mask);
+    }
+
     @Override
     protected int getArraySizeInBytes() {
-        return cardinality * 2;
+        return cardinality * 4;
     }
 
     @Override
@@ -148,9 +235,9 @@ public final class ArrayContainer extends Container implements Cloneable {
     }
 
     @Override
-    public IntegerIterator getIntegerIterator() {
+    IntegerIterator getIntegerIterator(final long from) {
         return new IntegerIterator() {
-            int pos = 0;
+            int pos = lowerBound(from);
 
             @Override
             public boolean hasNext() {
@@ -164,7 +251,7 @@ public final class ArrayContainer extends Container implements Cloneable {
 
             @Override
             public void remove() {
-                ArrayContainer.this.remove((short) (pos - 1));
+                ArrayContainer.this.remove(ArrayContainer.this.content[pos - 1]);
                 pos--;
             }
         };
@@ -172,8 +259,7 @@ public final class ArrayContainer extends Container implements Cloneable {
 
     @Override
     public int getSizeInBytes() {
-        return this.cardinality * 2 + 4;
-
+        return this.cardinality * 4 + 4;
     }
 
     @Override
@@ -184,6 +270,24 @@ public final class ArrayContainer extends Container implements Cloneable {
         return hash;
     }
 
+    // 逐个在x中查找，不分配内存
+    @Override
+    protected long intersectionCount(final Container x, final boolean any) {
+        if (x instanceof ArrayContainer) {
+            final ArrayContainer value2 = (ArrayContainer) x;
+            return Util.unsignedIntersectCardinality(content, cardinality, value2.content, value2.cardinality, any);
+        }
+        int count = 0;
+        for (int k = 0; k < cardinality; ++k) {
+            if (x.contains(content[k])) {
+                if (any)
+                    return 1;
+                ++count;
+            }
+        }
+        return count;
+    }
+
     /**
      * 扩容
      * TODO 评估下数据量，定制化扩容规则
@@ -197,10 +301,41 @@ public final class ArrayContainer extends Container implements Cloneable {
         this.content = Arrays.copyOf(this.content, newCapacity);
     }
 
+    @Override
+    IntegerIterator getReverseIntegerIterator(final long from) {
+        return new IntegerIterator() {
+            // 从后向前扫描content
+            int pos = lowerBound(from + 1) - 1;
+
+            @Override
+            public boolean hasNext() {
+                return pos >= 0;
+            }
+
+            @Override
+            public int next() {
+                return ArrayContainer.this.content[pos--];
+            }
+
+            @Override
+            public void remove() {
+                ArrayContainer.this.remove(ArrayContainer.this.content[pos + 1]);
+            }
+        };
+    }
+
+    // 第一个不小于x（无符号，可以为2^32）的位置
+    int lowerBound(final long x) {
+        if (x > 0xFFFFFFFFL)
+            return cardinality;
+        final int loc = Util.binarySearch(content, 0, cardinality, (int) x);
+        return loc >= 0 ? loc : -loc - 1;
+    }
+
     @Override
     public Iterator<Integer> iterator() {
         return new Iterator<Integer>() {
-            short pos = 0;
+            int pos = 0;
 
             @Override
             public boolean hasNext() {
@@ -214,7 +349,7 @@ public final class ArrayContainer extends Container implements Cloneable {
 
             @Override
             public void remove() {
-                ArrayContainer.this.remove((short) (pos - 1));
+                ArrayContainer.this.remove(ArrayContainer.this.content[pos - 1]);
                 pos--;
             }
         };
@@ -225,6 +360,23 @@ public final class ArrayContainer extends Container implements Cloneable {
         bitmapContainer.fillArray(content);
     }
 
+    @Override
+    long nextValue(final long from) {
+        final int pos = lowerBound(from);
+        return pos < cardinality ? Util.toLongUnsigned(content[pos]) : -1;
+    }
+
+    @Override
+    long previousValue(final long from) {
+        final int pos = lowerBound(from + 1) - 1;
+        return pos >= 0 ? Util.toLongUnsigned(content[pos]) : -1;
+    }
+
+    @Override
+    long rank(final long x) {
+        return lowerBound(x + 1);
+    }
+
     @Override
     public Container remove(final int x) {
         final int loc = Util.binarySearch(content, 0, cardinality, x);
@@ -236,9 +388,65 @@ public final class ArrayContainer extends Container implements Cloneable {
         return this;
     }
 
+    @Override
+    int select(final long j) {
+        return content[(int) j];
+    }
+
+    @Override
+    public Container runOptimize() {
+        if (cardinality == 0)
+            return this;
+        int runs = 1;
+        for (int k = 1; k < cardinality; ++k) {
+            if (Util.toLongUnsigned(content[k]) != Util.toLongUnsigned(content[k - 1]) + 1)
+                ++runs;
+        }
+        // run: 每段8字节，array: 每个值4字节
+        if (RunContainer.sizeInBytes(runs) >= cardinality * 4 + 4)
+            return this;
+        final RunContainer rc = new RunContainer();
+        long start = Util.toLongUnsigned(content[0]);
+        long prev = start;
+        for (int k = 1; k < cardinality; ++k) {
+            final long v = Util.toLongUnsigned(content[k]);
+            if (v != prev + 1) {
+                rc.appendRun(start, prev);
+                start = v;
+            }
+            prev = v;
+        }
+        rc.appendRun(start, prev);
+        return rc;
+    }
+
+    @Override
+    public Container or(final Container x) {
+        if (x instanceof ArrayContainer)
+            return or((ArrayContainer) x);
+        return super.or(x);
+    }
+
+    /**
+     * Union with another array container.
+     *
+     * @param value2 other container
+     * @return the union
+     */
+    public Container or(final ArrayContainer value2) {
+        final int[] buffer = new int[cardinality + value2.cardinality];
+        final int card = Util.unsignedUnion2by2(content, cardinality, value2.content, value2.cardinality, buffer);
+        return fromSortedArray(buffer, card);
+    }
+
     @Override
     public int serializedSizeInBytes() {
-        return cardinality * 2 + 2;
+        return cardinality * 4;
+    }
+
+    @Override
+    byte serializedType() {
+        return ARRAY_TYPE;
     }
 
     /**
@@ -252,6 +460,17 @@ public final class ArrayContainer extends Container implements Cloneable {
         return bc;
     }
 
+    /**
+     * Copies the data in a nested container.
+     *
+     * @return the nested container
+     */
+    public NestedContainer toNestedContainer() {
+        NestedContainer nc = new NestedContainer();
+        nc.loadData(this);
+        return nc;
+    }
+
     @Override
     public String toString() {
         if (this.cardinality == 0)
@@ -272,13 +491,29 @@ public final class ArrayContainer extends Container implements Cloneable {
         this.content = Arrays.copyOf(this.content, this.cardinality);
     }
 
-//    @Override
-//    protected void writeArray(DataOutput out) throws IOException {
-//        // little endian
-//        for (int k = 0; k < this.cardinality; ++k) {
-//            out.write((this.content[k]) & 0xFF);
-//            out.write((this.content[k] >>> 8) & 0xFF);
-//        }
-//    }
+    @Override
+    public Container xor(final Container x) {
+        if (x instanceof ArrayContainer)
+            return xor((ArrayContainer) x);
+        return super.xor(x);
+    }
 
+    /**
+     * Symmetric difference with another array container.
+     *
+     * @param value2 other container
+     * @return the symmetric difference
+     */
+    public Container xor(final ArrayContainer value2) {
+        final int[] buffer = new int[cardinality + value2.cardinality];
+        final int card = Util.unsignedExclusiveUnion2by2(content, cardinality, value2.content, value2.cardinality, buffer);
+        return fromSortedArray(buffer, card);
+    }
+
+    @Override
+    protected void writeArray(final ByteBuffer out) {
+        // 基数记录在key索引中，这里只写值
+        out.asIntBuffer().put(this.content, 0, this.cardinality);
+        out.position(out.position() + 4 * this.cardinality);
+    }
 }
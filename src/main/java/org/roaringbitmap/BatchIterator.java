@@ -0,0 +1,19 @@
+package org.roaringbitmap;
+
+/**
+ * 批量遍历，每次把一批值填入调用方提供的数组，分摊每个值的虚调用和边界检查
+ */
+public interface BatchIterator {
+    /**
+     * Fill the buffer with the next values, in increasing unsigned order.
+     *
+     * @param buffer destination, filled from index 0
+     * @return the number of values written, 0 once the iterator is exhausted
+     */
+    int nextBatch(long[] buffer);
+
+    /**
+     * @return whether there is another value
+     */
+    boolean hasNext();
+}
@@ -5,20 +5,47 @@
 
 package org.roaringbitmap;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.function.LongConsumer;
 
 /**
  * Simple bitset-like container.
  * container需要转载32bit的空间
+ * 32bit的空间如果一次性分配需要256MB，因此按页懒加载：
+ * 32 = 10（目录） + 10（页号） + 12（页内比特），每页64个long（512字节），
+ * 首次写入时才分配，并记录每页的基数，空页会被释放。
  */
 public final class BitmapContainer extends Container implements Cloneable {
-    protected static final int MAX_CAPACITY = 0x7fffffff;
+    protected static final long MAX_CAPACITY = 1L << 32;
+
+    // 每页 2^12 个比特，即64个long
+    static final int PAGE_BITS = 12;
+
+    static final int PAGE_WORDS = 1 << (PAGE_BITS - 6);
+
+    static final int WORD_MASK = PAGE_WORDS - 1;
+
+    // 两级目录，每级1024项
+    static final int DIR_BITS = 10;
+
+    static final int DIR_SIZE = 1 << DIR_BITS;
+
+    static final int DIR_MASK = DIR_SIZE - 1;
+
+    // 页的总数 2^20
+    static final int PAGE_COUNT = DIR_SIZE * DIR_SIZE;
 
-    // 需要 2的24次方长度的long数组 TODO 评估内存使用情况和稀疏性，是否通过增大阈值解决
     // 原有逻辑： 1024个long提供65536个比特，1024 * 64 = 65536  固定占据8kb内存空间
-    long[] bitmap;
+    // 现在 pages[目录][页号] 为一页，未写入过的目录和页均为null
+    long[][][] pages;
+
+    // 每页的基数，一页最多4096个比特，char足够
+    char[][] pageCardinality;
+
+    // 每个目录的基数，rank/select可以整段跳过目录
+    int[] dirCardinality;
 
     int cardinality;
 
@@ -27,8 +54,10 @@ public final class BitmapContainer extends Container implements Cloneable {
      */
     public BitmapContainer() {
         this.cardinality = 0;
-        // 固定大小容量
-        this.bitmap = new long[MAX_CAPACITY / 64];
+        // 只分配顶层目录，约4kb
+        this.pages = new long[DIR_SIZE][][];
+        this.pageCardinality = new char[DIR_SIZE][];
+        this.dirCardinality = new int[DIR_SIZE];
     }
 
     /**
@@ -36,59 +65,79 @@ public final class BitmapContainer extends Container implements Cloneable {
      * lastOfRun, inclusive caller must ensure that the range isn't so small
      * that an ArrayContainer should have been created instead
      *
-     * @param firstOfRun first index
-     * @param lastOfRun  last index (range is inclusive)
+     * @param firstOfRun first index (unsigned)
+     * @param lastOfRun  last index (unsigned, range is inclusive)
      */
     public BitmapContainer(final int firstOfRun, final int lastOfRun) {
-        this.cardinality = lastOfRun - firstOfRun + 1;
-        // 固定大小
-        this.bitmap = new long[MAX_CAPACITY / 64];
-        if (this.cardinality == MAX_CAPACITY) // perhaps a common case
-            Arrays.fill(bitmap, -1L);
-        else {
-            final int firstWord = firstOfRun / 64;
-            final int lastWord = lastOfRun / 64;
-            final int zeroPrefixLength = firstOfRun & 63;
-            final int zeroSuffixLength = 63 - (lastOfRun & 63);
-
-            Arrays.fill(bitmap, firstWord, lastWord + 1, -1L);
-            bitmap[firstWord] ^= ((1L << zeroPrefixLength) - 1);
-            final long blockOfOnes = (1L << zeroSuffixLength) - 1;
-            final long maskOnLeft = blockOfOnes << (64 - zeroSuffixLength);
-            bitmap[lastWord] ^= maskOnLeft;
-        }
+        this();
+        setRange(Util.toLongUnsigned(firstOfRun), Util.toLongUnsigned(lastOfRun) + 1);
     }
 
-    private BitmapContainer(int newCardinality, long[] newBitmap) {
-        this.cardinality = newCardinality;
-        this.bitmap = Arrays.copyOf(newBitmap, newBitmap.length);
+    private BitmapContainer(final BitmapContainer other) {
+        this();
+        this.cardinality = other.cardinality;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = other.pages[d];
+            if (dir == null)
+                continue;
+            final long[][] copy = new long[DIR_SIZE][];
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                if (dir[p] != null)
+                    copy[p] = dir[p].clone();
+            }
+            this.pages[d] = copy;
+            this.pageCardinality[d] = other.pageCardinality[d].clone();
+            this.dirCardinality[d] = other.dirCardinality[d];
+        }
     }
 
     @Override
     public Container add(int x) {
-        final long previous = bitmap[x / 64];
-        bitmap[x / 64] |= (1l << x);
-        cardinality += (previous ^ bitmap[x / 64]) >>> x;
+        final long[] page = pageForWrite(x >>> PAGE_BITS);
+        final int w = (x >>> 6) & WORD_MASK;
+        final long previous = page[w];
+        page[w] |= (1L << x);
+        if (previous != page[w]) {
+            ++pageCardinality[x >>> (PAGE_BITS + DIR_BITS)][(x >>> PAGE_BITS) & DIR_MASK];
+            ++dirCardinality[x >>> (PAGE_BITS + DIR_BITS)];
+            ++cardinality;
+        }
         return this;
     }
 
+    @Override
+    public Container and(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, AND, false);
+        return super.and(x);
+    }
+
+    @Override
+    public Container andNot(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, ANDNOT, false);
+        return super.andNot(x);
+    }
+
     @Override
     public void clear() {
         if (cardinality != 0) {
             cardinality = 0;
-            Arrays.fill(bitmap, 0);
+            Arrays.fill(pages, null);
+            Arrays.fill(pageCardinality, null);
+            Arrays.fill(dirCardinality, 0);
         }
     }
 
     @Override
     public BitmapContainer clone() {
-        return new BitmapContainer(this.cardinality, this.bitmap);
+        return new BitmapContainer(this);
     }
 
     @Override
-    public boolean contains(final int i) {
-        final int x = i;
-        return (bitmap[x / 64] & (1l << x)) != 0;
+    public boolean contains(final int x) {
+        final long[] page = page(x >>> PAGE_BITS);
+        return page != null && (page[(x >>> 6) & WORD_MASK] & (1L << x)) != 0;
     }
 
     @Override
@@ -97,11 +146,132 @@ public final class BitmapContainer extends Container implements Cloneable {
             BitmapContainer srb = (BitmapContainer) o;
             if (srb.cardinality != this.cardinality)
                 return false;
-            return Arrays.equals(this.bitmap, srb.bitmap);
+            // 非空页一定有数据，因此逐页比较即可，跳过两边都为空的目录
+            for (int d = 0; d < DIR_SIZE; ++d) {
+                final long[][] a = this.pages[d];
+                final long[][] b = srb.pages[d];
+                if (a == null && b == null)
+                    continue;
+                for (int p = 0; p < DIR_SIZE; ++p) {
+                    final long[] pa = a == null ? null : a[p];
+                    final long[] pb = b == null ? null : b[p];
+                    if (!Arrays.equals(pa, pb))
+                        return false;
+                }
+            }
+            return true;
         }
         return false;
     }
 
+    /**
+     * Read a bitmap container written by writeArray.
+     *
+     * @param in little-endian input buffer
+     * @return the container
+     */
+    static BitmapContainer deserialize(final ByteBuffer in) {
+        final BitmapContainer bc = new BitmapContainer();
+        final int count = in.getInt();
+        final int[] index = new int[count];
+        in.asIntBuffer().get(index);
+        in.position(in.position() + 4 * count);
+        for (int k = 0; k < count; ++k) {
+            final long[] page = new long[PAGE_WORDS];
+            in.asLongBuffer().get(page);
+            in.position(in.position() + 8 * PAGE_WORDS);
+            // 每页基数不落盘，读入时重新计算
+            int card = 0;
+            for (int w = 0; w < PAGE_WORDS; ++w)
+                card += Long.bitCount(page[w]);
+            if (card > 0)
+                bc.setPage(index[k], page, card);
+        }
+        return bc;
+    }
+
+    @Override
+    public void fillLeastSignificant32bits(final long[] x, final int i, final long mask) {
+        int pos = i;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                final long[] page = dir[p];
+                if (page == null)
+                    continue;
+                final long base = (long) ((d << DIR_BITS) | p) << PAGE_BITS | mask;
+                for (int k = 0; k < PAGE_WORDS; ++k) {
+                    long bitset = page[k];
+                    while (bitset != 0) {
+                        x[pos++] = base + k * 64 + Long.numberOfTrailingZeros(bitset);
+                        bitset &= bitset - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    int fillLeastSignificant32bits(final long[] x, final int i, final long mask, final long from) {
+        if (from >= MAX_CAPACITY)
+            return 0;
+        int pos = i;
+        int p = (int) (from >>> PAGE_BITS);
+        int w = (int) (from >>> 6) & WORD_MASK;
+        long first = -1L << from;
+        while (p < PAGE_COUNT && pos < x.length) {
+            final long[][] dir = pages[p >>> DIR_BITS];
+            if (dir == null) {
+                p = (p | DIR_MASK) + 1;
+                w = 0;
+                first = -1L;
+                continue;
+            }
+            final long[] page = dir[p & DIR_MASK];
+            if (page != null) {
+                final long base = (long) p << PAGE_BITS | mask;
+                for (; w < PAGE_WORDS; ++w) {
+                    long bitset = page[w] & first;
+                    first = -1L;
+                    while (bitset != 0) {
+                        if (pos == x.length)
+                            return pos - i;
+                        x[pos++] = base + w * 64 + Long.numberOfTrailingZeros(bitset);
+                        bitset &= bitset - 1;
+                    }
+                }
+            }
+            ++p;
+            w = 0;
+            first = -1L;
+        }
+        return pos - i;
+    }
+
+    @Override
+    public void forEach(final long mask, final LongConsumer action) {
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                final long[] page = dir[p];
+                if (page == null)
+                    continue;
+                final long base = (long) ((d << DIR_BITS) | p) << PAGE_BITS | mask;
+                for (int k = 0; k < PAGE_WORDS; ++k) {
+                    long bitset = page[k];
+                    while (bitset != 0) {
+                        action.accept(base + k * 64 + Long.numberOfTrailingZeros(bitset));
+                        bitset &= bitset - 1;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Fill the array with set bits
      *
@@ -109,12 +279,23 @@ public final class BitmapContainer extends Container implements Cloneable {
      */
     protected void fillArray(final int[] array) {
         int pos = 0;
-        for (int k = 0; k < bitmap.length; ++k) {
-            long bitset = bitmap[k];
-            while (bitset != 0) {
-                long t = bitset & -bitset;
-                array[pos++] = k * 64 + Long.bitCount(t - 1);
-                bitset ^= t;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                final long[] page = dir[p];
+                if (page == null)
+                    continue;
+                final int base = ((d << DIR_BITS) | p) << PAGE_BITS;
+                for (int k = 0; k < PAGE_WORDS; ++k) {
+                    long bitset = page[k];
+                    while (bitset != 0) {
+                        long t = bitset & -bitset;
+                        array[pos++] = base + k * 64 + Long.bitCount(t - 1);
+                        bitset ^= t;
+                    }
+                }
             }
         }
     }
@@ -122,7 +303,7 @@ public final class BitmapContainer extends Container implements Cloneable {
 
     @Override
     protected int getArraySizeInBytes() {
-        return MAX_CAPACITY / 8;
+        return getPageCount() * PAGE_WORDS * 8;
     }
 
     @Override
@@ -131,10 +312,10 @@ public final class BitmapContainer extends Container implements Cloneable {
     }
 
     @Override
-    public IntegerIterator getIntegerIterator() {
+    IntegerIterator getIntegerIterator(final long from) {
         return new IntegerIterator() {
-            int i = BitmapContainer.this.nextSetBit(0);
-            int j;
+            long i = BitmapContainer.this.nextSetBit(from);
+            long j;
 
             @Override
             public boolean hasNext() {
@@ -145,25 +326,142 @@ public final class BitmapContainer extends Container implements Cloneable {
             public int next() {
                 j = i;
                 i = BitmapContainer.this.nextSetBit(i + 1);
-                return (short) j;
+                return (int) j;
             }
 
             @Override
             public void remove() {
-                BitmapContainer.this.remove((short) j);
+                BitmapContainer.this.remove((int) j);
             }
         };
 
     }
 
+    /**
+     * Number of pages currently allocated.
+     *
+     * @return the page count
+     */
+    protected int getPageCount() {
+        int count = 0;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                if (dir[p] != null)
+                    ++count;
+            }
+        }
+        return count;
+    }
+
     @Override
     public int getSizeInBytes() {
-        return this.bitmap.length * 8;
+        int size = DIR_SIZE * 8;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            // 目录引用 + 每页基数
+            size += DIR_SIZE * 8 + DIR_SIZE * 2;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                if (dir[p] != null)
+                    size += PAGE_WORDS * 8;
+            }
+        }
+        return size;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.bitmap);
+        int hash = 0;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                if (dir[p] != null)
+                    hash = 31 * hash + ((d << DIR_BITS) | p) * 0xF0F0F0 + Arrays.hashCode(dir[p]);
+            }
+        }
+        return hash;
+    }
+
+    // 区间比现有的值还多时先转为行程编码，避免为整个区间分配页
+    @Override
+    public Container iadd(final long begin, final long end) {
+        if (end - begin > cardinality)
+            return toRunContainer().iadd(begin, end);
+        rangeOp(begin, end, OR);
+        return this;
+    }
+
+    @Override
+    public Container iand(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, AND, true);
+        return super.iand(x);
+    }
+
+    @Override
+    public Container iandNot(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, ANDNOT, true);
+        return super.iandNot(x);
+    }
+
+    @Override
+    public Container inot(final long begin, final long end) {
+        if (end - begin > cardinality)
+            return toRunContainer().inot(begin, end);
+        rangeOp(begin, end, XOR);
+        return cardinality <= ArrayContainer.DEFAULT_MAX_SIZE ? toArrayContainer() : this;
+    }
+
+    @Override
+    public Container ior(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, OR, true);
+        return super.ior(x);
+    }
+
+    @Override
+    public Container iremove(final long begin, final long end) {
+        rangeOp(begin, end, ANDNOT);
+        return cardinality <= ArrayContainer.DEFAULT_MAX_SIZE ? toArrayContainer() : this;
+    }
+
+    @Override
+    public Container ixor(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, XOR, true);
+        return super.ixor(x);
+    }
+
+    @Override
+    protected long intersectionCount(final Container x, final boolean any) {
+        if (!(x instanceof BitmapContainer))
+            return super.intersectionCount(x, any);
+        final BitmapContainer other = (BitmapContainer) x;
+        long count = 0;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] da = this.pages[d];
+            final long[][] db = other.pages[d];
+            if (da == null || db == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                final long[] pa = da[p];
+                final long[] pb = db[p];
+                if (pa == null || pb == null)
+                    continue;
+                for (int k = 0; k < PAGE_WORDS; ++k)
+                    count += Long.bitCount(pa[k] & pb[k]);
+                if (any && count > 0)
+                    return 1;
+            }
+        }
+        return count;
     }
 
     @Override
@@ -189,60 +487,318 @@ public final class BitmapContainer extends Container implements Cloneable {
     }
 
     protected void loadData(final ArrayContainer arrayContainer) {
-        this.cardinality = arrayContainer.cardinality;
         for (int k = 0; k < arrayContainer.cardinality; k++) {
-            final int x = arrayContainer.content[k];
-            bitmap[x / 64] |= (1l << x);
+            add(arrayContainer.content[k]);
         }
     }
 
     /**
      * Find the index of the next set bit greater or equal to i, returns -1
-     * if none found.
+     * if none found. Indexes are unsigned 32-bit values.
      *
      * @param i starting index
      * @return index of the next set bit
      */
-    public int nextSetBit(final int i) {
-        int x = i / 64;
-        if (x >= bitmap.length)
+    public long nextSetBit(final long i) {
+        if (i >= MAX_CAPACITY)
             return -1;
-        long w = bitmap[x];
-        w >>>= i;
-        if (w != 0) {
-            return i + Long.numberOfTrailingZeros(w);
-        }
-        ++x;
-        for (; x < bitmap.length; ++x) {
-            if (bitmap[x] != 0) {
-                return x * 64 + Long.numberOfTrailingZeros(bitmap[x]);
+        int p = (int) (i >>> PAGE_BITS);
+        int w = (int) (i >>> 6) & WORD_MASK;
+        long mask = -1L << i;
+        while (p < PAGE_COUNT) {
+            final long[][] dir = pages[p >>> DIR_BITS];
+            if (dir == null) {
+                // 整个目录为空，直接跳到下一个目录
+                p = (p | DIR_MASK) + 1;
+                w = 0;
+                mask = -1L;
+                continue;
             }
+            final long[] page = dir[p & DIR_MASK];
+            if (page != null) {
+                for (; w < PAGE_WORDS; ++w) {
+                    final long word = page[w] & mask;
+                    mask = -1L;
+                    if (word != 0)
+                        return ((long) p << PAGE_BITS) + (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+            }
+            ++p;
+            w = 0;
+            mask = -1L;
         }
         return -1;
     }
 
+    /**
+     * Find the index of the next clear bit greater or equal to i, returns
+     * 2^32 if none found. Indexes are unsigned 32-bit values.
+     *
+     * @param i starting index
+     * @return index of the next clear bit
+     */
+    public long nextClearBit(final long i) {
+        if (i >= MAX_CAPACITY)
+            return MAX_CAPACITY;
+        int p = (int) (i >>> PAGE_BITS);
+        int w = (int) (i >>> 6) & WORD_MASK;
+        long mask = -1L << i;
+        for (; p < PAGE_COUNT; ++p) {
+            final long[] page = page(p);
+            if (page == null)
+                return Math.max(i, (long) p << PAGE_BITS);
+            for (; w < PAGE_WORDS; ++w) {
+                final long word = ~page[w] & mask;
+                mask = -1L;
+                if (word != 0)
+                    return ((long) p << PAGE_BITS) + (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            w = 0;
+        }
+        return MAX_CAPACITY;
+    }
 
     @Override
-    public Container remove(final int i) {
-        final int x = i;
-        if (cardinality == ArrayContainer.DEFAULT_MAX_SIZE) { // this is
-            // the
-            // uncommon
-            // path
-            if ((bitmap[x / 64] & (1l << x)) != 0) {
-                --cardinality;
-                bitmap[x / 64] &= ~(1l << x);
-                return this.toArrayContainer();
+    long nextValue(final long from) {
+        return nextSetBit(from);
+    }
+
+    @Override
+    public Container or(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, OR, false);
+        return super.or(x);
+    }
+
+    /**
+     * Find the index of the previous set bit less than or equal to i,
+     * returns -1 if none found. Indexes are unsigned 32-bit values.
+     *
+     * @param i starting index, may be -1
+     * @return index of the previous set bit
+     */
+    public long previousSetBit(final long i) {
+        if (i < 0)
+            return -1;
+        final long from = Math.min(i, MAX_CAPACITY - 1);
+        int p = (int) (from >>> PAGE_BITS);
+        int w = (int) (from >>> 6) & WORD_MASK;
+        long mask = -1L >>> (63 - (from & 63));
+        while (p >= 0) {
+            final long[][] dir = pages[p >>> DIR_BITS];
+            if (dir == null) {
+                // 整个目录为空，直接跳到上一个目录
+                p = (p & ~DIR_MASK) - 1;
+                w = WORD_MASK;
+                mask = -1L;
+                continue;
+            }
+            final long[] page = dir[p & DIR_MASK];
+            if (page != null) {
+                for (; w >= 0; --w) {
+                    final long word = page[w] & mask;
+                    mask = -1L;
+                    if (word != 0)
+                        return ((long) p << PAGE_BITS) + (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+                }
             }
+            --p;
+            w = WORD_MASK;
+            mask = -1L;
         }
-        cardinality -= (bitmap[x / 64] & (1l << x)) >>> x;
-        bitmap[x / 64] &= ~(1l << x);
+        return -1;
+    }
+
+    @Override
+    long previousValue(final long from) {
+        return previousSetBit(from);
+    }
+
+    // 取得页，不存在返回null
+    private long[] page(final int p) {
+        final long[][] dir = pages[p >>> DIR_BITS];
+        return dir == null ? null : dir[p & DIR_MASK];
+    }
+
+    // 取得页，不存在则分配
+    private long[] pageForWrite(final int p) {
+        final int d = p >>> DIR_BITS;
+        long[][] dir = pages[d];
+        if (dir == null) {
+            dir = pages[d] = new long[DIR_SIZE][];
+            pageCardinality[d] = new char[DIR_SIZE];
+        }
+        long[] page = dir[p & DIR_MASK];
+        if (page == null)
+            page = dir[p & DIR_MASK] = new long[PAGE_WORDS];
+        return page;
+    }
+
+    @Override
+    long rank(final long x) {
+        final int last = (int) (x >>> PAGE_BITS);
+        final int lastDir = last >>> DIR_BITS;
+        long count = 0;
+        // 之前的目录和页直接累加基数
+        for (int d = 0; d < lastDir; ++d)
+            count += dirCardinality[d];
+        final char[] cards = pageCardinality[lastDir];
+        if (cards == null)
+            return count;
+        for (int p = 0; p < (last & DIR_MASK); ++p)
+            count += cards[p];
+        final long[] page = page(last);
+        if (page == null)
+            return count;
+        final int w = (int) (x >>> 6) & WORD_MASK;
+        for (int k = 0; k < w; ++k)
+            count += Long.bitCount(page[k]);
+        return count + Long.bitCount(page[w] & (-1L >>> (63 - (x & 63))));
+    }
+
+    @Override
+    public Container remove(final int x) {
+        final long[] page = page(x >>> PAGE_BITS);
+        if (page == null)
+            return this;
+        final int w = (x >>> 6) & WORD_MASK;
+        if ((page[w] & (1L << x)) == 0)
+            return this;
+        page[w] &= ~(1L << x);
+        --cardinality;
+        final int d = x >>> (PAGE_BITS + DIR_BITS);
+        final int p = (x >>> PAGE_BITS) & DIR_MASK;
+        --dirCardinality[d];
+        // 页空了就释放
+        if (--pageCardinality[d][p] == 0)
+            pages[d][p] = null;
+        // the uncommon path
+        if (cardinality == ArrayContainer.DEFAULT_MAX_SIZE)
+            return this.toArrayContainer();
         return this;
     }
 
+    @Override
+    int select(final long j) {
+        long left = j;
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            if (left >= dirCardinality[d]) {
+                left -= dirCardinality[d];
+                continue;
+            }
+            final char[] cards = pageCardinality[d];
+            for (int p = 0; ; ++p) {
+                if (left >= cards[p]) {
+                    left -= cards[p];
+                    continue;
+                }
+                final long[] page = pages[d][p];
+                for (int w = 0; ; ++w) {
+                    final int bits = Long.bitCount(page[w]);
+                    if (left < bits)
+                        return ((d << DIR_BITS | p) << PAGE_BITS) + (w << 6) + Util.select(page[w], (int) left);
+                    left -= bits;
+                }
+            }
+        }
+        throw new IllegalArgumentException("select " + j + " when the cardinality is " + cardinality);
+    }
+
+    @Override
+    public Container runOptimize() {
+        // 段数达到该值后行程编码不会更小
+        final RunContainer rc = toRunContainer(getArraySizeInBytes() / 8);
+        return rc == null ? this : rc;
+    }
+
     @Override
     public int serializedSizeInBytes() {
-        return MAX_CAPACITY / 8;
+        return 4 + getPageCount() * (PAGE_WORDS * 8 + 4);
+    }
+
+    @Override
+    byte serializedType() {
+        return BITMAP_TYPE;
+    }
+
+    // 替换一页，page为null表示删除该页
+    private void setPage(final int p, final long[] page, final int card) {
+        final int d = p >>> DIR_BITS;
+        if (pages[d] == null) {
+            if (page == null)
+                return;
+            pages[d] = new long[DIR_SIZE][];
+            pageCardinality[d] = new char[DIR_SIZE];
+        }
+        cardinality += card - pageCardinality[d][p & DIR_MASK];
+        dirCardinality[d] += card - pageCardinality[d][p & DIR_MASK];
+        pageCardinality[d][p & DIR_MASK] = (char) card;
+        pages[d][p & DIR_MASK] = page;
+    }
+
+    // 按页对[start, end)做位运算（OR置1，ANDNOT清0，XOR翻转），并重新计数
+    private void rangeOp(final long start, final long end, final int op) {
+        if (start >= end)
+            return;
+        final int firstPage = (int) (start >>> PAGE_BITS);
+        final int lastPage = (int) ((end - 1) >>> PAGE_BITS);
+        for (int p = firstPage; p <= lastPage; ++p) {
+            final long[] page = op == ANDNOT ? page(p) : pageForWrite(p);
+            if (page == null)
+                continue;
+            final long pageStart = (long) p << PAGE_BITS;
+            final int from = (int) (Math.max(start, pageStart) - pageStart);
+            final int to = (int) (Math.min(end, pageStart + (1 << PAGE_BITS)) - pageStart);
+            final int firstWord = from >>> 6;
+            final int lastWord = (to - 1) >>> 6;
+            for (int w = firstWord; w <= lastWord; ++w) {
+                long mask = -1L;
+                if (w == firstWord)
+                    mask &= -1L << from;
+                if (w == lastWord)
+                    mask &= -1L >>> -to;
+                if (op == OR)
+                    page[w] |= mask;
+                else if (op == ANDNOT)
+                    page[w] &= ~mask;
+                else
+                    page[w] ^= mask;
+            }
+            // 整页重新计数，空页释放
+            int card = 0;
+            for (int k = 0; k < PAGE_WORDS; ++k)
+                card += Long.bitCount(page[k]);
+            setPage(p, card == 0 ? null : page, card);
+        }
+    }
+
+    /**
+     * Set all bits in [start, end), unsigned 32-bit indexes.
+     *
+     * @param start first index
+     * @param end   last index (exclusive)
+     */
+    protected void setRange(final long start, final long end) {
+        rangeOp(start, end, OR);
+    }
+
+    @Override
+    RunContainer toRunContainer() {
+        return toRunContainer(Integer.MAX_VALUE);
+    }
+
+    // 转为行程编码，段数达到maxRuns时放弃并返回null
+    private RunContainer toRunContainer(final int maxRuns) {
+        final RunContainer rc = new RunContainer();
+        long start = nextSetBit(0);
+        while (start >= 0) {
+            if (rc.nbrruns >= maxRuns)
+                return null;
+            final long end = nextClearBit(start);
+            rc.appendRun(start, end - 1);
+            start = nextSetBit(end);
+        }
+        return rc;
     }
 
     /**
@@ -260,7 +816,7 @@ public final class BitmapContainer extends Container implements Cloneable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("{");
-        int i = this.nextSetBit(0);
+        long i = this.nextSetBit(0);
         while (i >= 0) {
             sb.append(i);
             i = this.nextSetBit(i + 1);
@@ -271,7 +827,114 @@ public final class BitmapContainer extends Container implements Cloneable {
         return sb.toString();
     }
 
+    /**
+     * Page by page bitwise operation with another bitmap container; pages
+     * absent on both sides are skipped.
+     *
+     * @param other   other container
+     * @param op      one of AND, OR, XOR, ANDNOT
+     * @param inPlace whether this container may be modified
+     * @return the result, converted to an array container when small
+     */
+    private Container wordOp(final BitmapContainer other, final int op, final boolean inPlace) {
+        final BitmapContainer answer = inPlace ? this : new BitmapContainer();
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] da = this.pages[d];
+            final long[][] db = other.pages[d];
+            if (da == null && db == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                final long[] pa = da == null ? null : da[p];
+                final long[] pb = db == null ? null : db[p];
+                final int page = (d << DIR_BITS) | p;
+                if (pa == null || pb == null) {
+                    // 只有一边有该页
+                    if (pa != null && op != AND) {
+                        if (!inPlace)
+                            answer.setPage(page, pa.clone(), pageCardinality[d][p]);
+                    } else if (pa != null) {
+                        if (inPlace)
+                            answer.setPage(page, null, 0);
+                    } else if (pb != null && (op == OR || op == XOR)) {
+                        answer.setPage(page, pb.clone(), other.pageCardinality[d][p]);
+                    }
+                    continue;
+                }
+                final long[] words = inPlace ? pa : new long[PAGE_WORDS];
+                int card = 0;
+                for (int k = 0; k < PAGE_WORDS; ++k) {
+                    final long w;
+                    switch (op) {
+                        case AND:
+                            w = pa[k] & pb[k];
+                            break;
+                        case OR:
+                            w = pa[k] | pb[k];
+                            break;
+                        case XOR:
+                            w = pa[k] ^ pb[k];
+                            break;
+                        default:
+                            w = pa[k] & ~pb[k];
+                    }
+                    words[k] = w;
+                    card += Long.bitCount(w);
+                }
+                answer.setPage(page, card == 0 ? null : words, card);
+            }
+        }
+        if (answer.cardinality <= ArrayContainer.DEFAULT_MAX_SIZE)
+            return answer.toArrayContainer();
+        return answer;
+    }
+
+    @Override
+    public Container xor(final Container x) {
+        if (x instanceof BitmapContainer)
+            return wordOp((BitmapContainer) x, XOR, false);
+        return super.xor(x);
+    }
+
+    /**
+     * Releases directories without any allocated page.
+     */
     @Override
     public void trim() {
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            final long[][] dir = pages[d];
+            if (dir == null)
+                continue;
+            boolean empty = true;
+            for (int p = 0; p < DIR_SIZE && empty; ++p)
+                empty = dir[p] == null;
+            if (empty) {
+                pages[d] = null;
+                pageCardinality[d] = null;
+            }
+        }
+    }
+
+    @Override
+    protected void writeArray(final ByteBuffer out) {
+        // 页数，全部页号，再依次写每页的64个long；页号有序，便于按页号二分查找
+        out.putInt(getPageCount());
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            if (pages[d] == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                if (pages[d][p] != null)
+                    out.putInt((d << DIR_BITS) | p);
+            }
+        }
+        for (int d = 0; d < DIR_SIZE; ++d) {
+            if (pages[d] == null)
+                continue;
+            for (int p = 0; p < DIR_SIZE; ++p) {
+                if (pages[d][p] != null) {
+                    out.asLongBuffer().put(pages[d][p]);
+                    out.position(out.position() + 8 * PAGE_WORDS);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,318 @@
+package org.roaringbitmap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 压缩的序列化格式，适合快照文件：有序的低32位值按差值变长编码，连续段只记录起点和长度。
+ * 与容器类型无关，逐字节流式读写，读取时每个container攒成run或有序数组后一次构造。
+ * 格式见RoaringBitmap.serializeCompressed。
+ */
+final class CompressedFormat {
+    // 连续段至少这么长才编码为run，更短的按差值逐个编码（差值为0时每个值1字节）
+    static final int MIN_RUN = 3;
+
+    // 攒够这么多个零散值就输出一个块
+    private static final int LITERAL_BLOCK = 256;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // 有序数组最多这么多个值
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private CompressedFormat() {
+    }
+
+    /**
+     * Write the containers to the stream. The output is buffered
+     * internally and flushed to out before returning.
+     *
+     * @param array the containers
+     * @param out   output stream
+     * @throws IOException if the stream fails
+     */
+    static void write(final RoaringArray array, final OutputStream out) throws IOException {
+        final Encoder encoder = new Encoder(out);
+        encoder.writeInt(RoaringBitmap.COMPRESSED_COOKIE | RoaringBitmap.COMPRESSED_VERSION << 16);
+        encoder.writeVar(array.size());
+        int previousKey = -1;
+        for (int i = 0; i < array.size(); ++i) {
+            final int key = Util.toIntUnsigned(array.getKeyAtIndex(i));
+            encoder.writeVar(key - previousKey - 1);
+            previousKey = key;
+            encoder.writeContainer(array.getContainerAtIndex(i));
+        }
+        encoder.flush();
+    }
+
+    /**
+     * Read containers written by write.
+     *
+     * @param in source of bytes, read one at a time and never past the end
+     *           of the bitmap
+     * @return the containers
+     * @throws IOException if the data is corrupted or the stream fails
+     */
+    static RoaringArray read(final ByteSource in) throws IOException {
+        final int cookie = readInt(in);
+        if ((cookie & 0xFFFF) != RoaringBitmap.COMPRESSED_COOKIE)
+            throw new IOException("not a compressed bitmap, cookie " + Integer.toHexString(cookie));
+        if (cookie >>> 16 > RoaringBitmap.COMPRESSED_VERSION)
+            throw new IOException("unsupported compressed version " + (cookie >>> 16));
+        final long size = readVar(in);
+        if (size > 1 << 16)
+            throw new IOException("invalid container count " + size);
+        final RoaringArray array = new RoaringArray();
+        long key = -1;
+        for (long i = 0; i < size; ++i) {
+            key += readVar(in) + 1;
+            if (key > 0xFFFF)
+                throw new IOException("invalid key " + key);
+            array.append((short) key, readContainer(in));
+        }
+        return array;
+    }
+
+    static boolean isCompressed(final int cookie) {
+        return (cookie & 0xFFFF) == RoaringBitmap.COMPRESSED_COOKIE;
+    }
+
+    // 一个container：若干块，块头为 (值的个数 << 1) | 是否run，块头为0表示结束
+    // run块：起点与上一个值之差-1；零散块：每个值与上一个值之差-1
+    private static Container readContainer(final ByteSource in) throws IOException {
+        // 没有run块时值直接进有序数组，遇到第一个run块后改为攒run
+        int[] values = new int[16];
+        int count = 0;
+        RunContainer runs = null;
+        long previous = -1;
+        long card = 0;
+        long header;
+        while ((header = readVar(in)) != 0) {
+            final long n = header >>> 1;
+            // 块长度在分配之前检查，损坏的数据不能导致超大的数组
+            if ((header & 1) != 0) {
+                if (n == 0 || n > 1L << 32)
+                    throw new IOException("invalid run length " + n);
+                if (runs == null)
+                    runs = toRuns(values, count);
+                final long start = previous + readGap(in) + 1;
+                previous = start + n - 1;
+                checkValue(previous);
+                runs.appendRun(start, previous);
+            } else {
+                if (n > LITERAL_BLOCK)
+                    throw new IOException("invalid literal block length " + n);
+                // 数组放不下时同样改为攒run
+                if (runs == null && count + n > MAX_ARRAY_SIZE)
+                    runs = toRuns(values, count);
+                if (runs == null && count + n > values.length)
+                    values = Arrays.copyOf(values,
+                            (int) Math.min(MAX_ARRAY_SIZE, Math.max(2L * values.length, count + n)));
+                for (long k = 0; k < n; ++k) {
+                    previous += readGap(in) + 1;
+                    checkValue(previous);
+                    if (runs == null)
+                        values[count++] = (int) previous;
+                    else
+                        runs.appendRun(previous, previous);
+                }
+            }
+            card += n;
+        }
+        if (card == 0)
+            throw new IOException("empty container");
+        // 零散块中的连续段不超过2，有序数组不会比run大
+        if (runs == null)
+            return Container.fromSortedArray(values, count);
+        // 与RoaringBitmap.addAll相同的选择：run更小时保留run，否则展开为有序数组；超出int的只能保留run
+        if (card > MAX_ARRAY_SIZE
+                || RunContainer.sizeInBytes(runs.nbrruns) < (card > ArrayContainer.DEFAULT_MAX_SIZE ? 2 : 4) * card)
+            return runs;
+        values = new int[(int) card];
+        count = 0;
+        for (int r = 0; r < runs.nbrruns; ++r) {
+            final long start = Util.toLongUnsigned(runs.valueslength[2 * r]);
+            final long end = start + Util.toLongUnsigned(runs.valueslength[2 * r + 1]);
+            for (long v = start; v <= end; ++v)
+                values[count++] = (int) v;
+        }
+        return Container.fromSortedArray(values, count);
+    }
+
+    private static RunContainer toRuns(final int[] values, final int count) {
+        final RunContainer runs = new RunContainer();
+        for (int k = 0; k < count; ++k)
+            runs.appendRun(Util.toLongUnsigned(values[k]), Util.toLongUnsigned(values[k]));
+        return runs;
+    }
+
+    // 与上一个值之差-1，不超过低32位的范围，之后的加法不会溢出
+    private static long readGap(final ByteSource in) throws IOException {
+        final long gap = readVar(in);
+        if (gap < 0 || gap > 0xFFFFFFFFL)
+            throw new IOException("value out of range, gap " + gap);
+        return gap;
+    }
+
+    private static void checkValue(final long v) throws IOException {
+        if (v > 0xFFFFFFFFL)
+            throw new IOException("value out of range " + v);
+    }
+
+    private static int readInt(final ByteSource in) throws IOException {
+        int x = 0;
+        for (int k = 0; k < 4; ++k)
+            x |= in.read() << (8 * k);
+        return x;
+    }
+
+    // 无符号LEB128
+    private static long readVar(final ByteSource in) throws IOException {
+        long x = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            x |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return x;
+        }
+        throw new IOException("malformed variable-length integer");
+    }
+
+    /**
+     * 逐字节读取，读到结尾抛出EOFException
+     */
+    abstract static class ByteSource {
+        abstract int read() throws IOException;
+    }
+
+    static ByteSource source(final InputStream in) {
+        return new ByteSource() {
+            @Override
+            int read() throws IOException {
+                final int b = in.read();
+                if (b < 0)
+                    throw new EOFException("truncated compressed bitmap");
+                return b;
+            }
+        };
+    }
+
+    static ByteSource source(final ByteBuffer in) {
+        return new ByteSource() {
+            @Override
+            int read() throws IOException {
+                try {
+                    return in.get() & 0xFF;
+                } catch (BufferUnderflowException e) {
+                    throw new EOFException("truncated compressed bitmap");
+                }
+            }
+        };
+    }
+
+    private static final class Encoder {
+        private final OutputStream out;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private int pos = 0;
+
+        // 当前container中尚未输出的零散值
+        private final long[] literals = new long[LITERAL_BLOCK];
+
+        private int literalCount = 0;
+
+        // 上一个已输出的值
+        private long previous;
+
+        Encoder(final OutputStream out) {
+            this.out = out;
+        }
+
+        void writeContainer(final Container c) throws IOException {
+            previous = -1;
+            if (c instanceof RunContainer) {
+                final RunContainer rc = (RunContainer) c;
+                for (int r = 0; r < rc.nbrruns; ++r) {
+                    final long start = Util.toLongUnsigned(rc.valueslength[2 * r]);
+                    run(start, start + Util.toLongUnsigned(rc.valueslength[2 * r + 1]));
+                }
+            } else {
+                // 逐个值合并为连续段
+                final IntegerIterator it = c.getIntegerIterator();
+                long start = -1, end = -2;
+                while (it.hasNext()) {
+                    final long v = Util.toLongUnsigned(it.next());
+                    if (v != end + 1) {
+                        if (start >= 0)
+                            run(start, end);
+                        start = v;
+                    }
+                    end = v;
+                }
+                if (start >= 0)
+                    run(start, end);
+            }
+            flushLiterals();
+            writeVar(0);
+        }
+
+        private void run(final long start, final long end) throws IOException {
+            if (end - start + 1 >= MIN_RUN) {
+                flushLiterals();
+                writeVar((end - start + 1) << 1 | 1);
+                writeVar(start - previous - 1);
+                previous = end;
+                return;
+            }
+            for (long v = start; v <= end; ++v) {
+                literals[literalCount++] = v;
+                if (literalCount == LITERAL_BLOCK)
+                    flushLiterals();
+            }
+        }
+
+        private void flushLiterals() throws IOException {
+            if (literalCount == 0)
+                return;
+            writeVar((long) literalCount << 1);
+            for (int k = 0; k < literalCount; ++k) {
+                writeVar(literals[k] - previous - 1);
+                previous = literals[k];
+            }
+            literalCount = 0;
+        }
+
+        void writeInt(final int x) throws IOException {
+            for (int k = 0; k < 4; ++k)
+                writeByte(x >>> (8 * k));
+        }
+
+        void writeVar(long x) throws IOException {
+            while ((x & ~0x7FL) != 0) {
+                writeByte((int) (x & 0x7F) | 0x80);
+                x >>>= 7;
+            }
+            writeByte((int) x);
+        }
+
+        private void writeByte(final int b) throws IOException {
+            if (pos == buffer.length) {
+                out.write(buffer, 0, pos);
+                pos = 0;
+            }
+            buffer[pos++] = (byte) b;
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+    }
+}
@@ -6,6 +6,9 @@
 package org.roaringbitmap;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
 
 /**
  * Base container class.
@@ -14,17 +17,53 @@ import java.io.IOException;
  */
 public abstract class Container implements Iterable<Integer>, Cloneable {
 
+    // 集合运算类型
+    static final int AND = 0;
+
+    static final int OR = 1;
+
+    static final int XOR = 2;
+
+    static final int ANDNOT = 3;
+
+    // 序列化格式中的container类型，NestedContainer的子container沿用前三个
+    static final byte ARRAY_TYPE = 0;
+
+    static final byte BITMAP_TYPE = 1;
+
+    static final byte RUN_TYPE = 2;
+
+    static final byte NESTED_TYPE = 3;
+
+    // 被快照引用后置为true且不再清除，此后不能原地修改，写入前先复制，
+    // 见RoaringArray.getWritableContainerAtIndex
+    boolean shared = false;
+
+    /**
+     * Create a container from values sorted in unsigned order: an
+     * ArrayContainer when small enough, a NestedContainer otherwise.
+     *
+     * @param values sorted values (the array may be kept by the container)
+     * @param length number of values to use
+     * @return a new container
+     */
+    static Container fromSortedArray(final int[] values, final int length) {
+        if (length <= ArrayContainer.DEFAULT_MAX_SIZE)
+            return new ArrayContainer(length == values.length ? values : Arrays.copyOf(values, length));
+        return NestedContainer.fromSortedArray(values, length);
+    }
+
     /**
      * Create a container initialized with a range of consecutive values
      *
-     * @param start first index
-     * @param last  last index (range in inclusive)
+     * @param start first index (unsigned)
+     * @param last  last index (unsigned, range in inclusive)
      * @return a new container initialized with the specified values
      */
     public static Container rangeOfOnes(final int start, final int last) {
-        // 超过该阈值，会将ArrayContainer替换成BitmapContainer，大约8kb
-        if (last - start + 1 > ArrayContainer.DEFAULT_MAX_SIZE)
-            return new BitmapContainer(start, last);
+        // 超过该阈值，使用行程编码，整段只占8个字节
+        if (Util.toLongUnsigned(last) - Util.toLongUnsigned(start) + 1 > ArrayContainer.DEFAULT_MAX_SIZE)
+            return new RunContainer(start, last);
         return new ArrayContainer(start, last);
     }
 
@@ -36,6 +75,252 @@ public abstract class Container implements Iterable<Integer>, Cloneable {
      */
     public abstract Container add(int x);
 
+    /**
+     * Computes the intersection of this container with the provided
+     * container. Neither container is modified.
+     * 通用实现：遍历基数较小的一方，在另一方中查找
+     *
+     * @param x other container
+     * @return the intersection
+     */
+    public Container and(final Container x) {
+        final Container small = getLongCardinality() <= x.getLongCardinality() ? this : x;
+        final Container large = small == this ? x : this;
+        final int[] buffer = new int[small.getCardinality()];
+        int pos = 0;
+        final IntegerIterator it = small.getIntegerIterator();
+        while (it.hasNext()) {
+            final int v = it.next();
+            if (large.contains(v))
+                buffer[pos++] = v;
+        }
+        return fromSortedArray(buffer, pos);
+    }
+
+    /**
+     * Computes the cardinality of the intersection without materialising
+     * it.
+     *
+     * @param x other container
+     * @return the cardinality of the intersection
+     */
+    public long andCardinality(final Container x) {
+        return intersectionCount(x, false);
+    }
+
+    /**
+     * Computes the difference of this container with the provided
+     * container. Neither container is modified.
+     *
+     * @param x other container
+     * @return the difference
+     */
+    public Container andNot(final Container x) {
+        if (getLongCardinality() <= x.getLongCardinality()) {
+            final int[] buffer = new int[getCardinality()];
+            int pos = 0;
+            final IntegerIterator it = getIntegerIterator();
+            while (it.hasNext()) {
+                final int v = it.next();
+                if (!x.contains(v))
+                    buffer[pos++] = v;
+            }
+            return fromSortedArray(buffer, pos);
+        }
+        return clone().removeAll(x);
+    }
+
+    // 逐个加入x中的值
+    private Container addAll(final Container x) {
+        Container answer = this;
+        final IntegerIterator it = x.getIntegerIterator();
+        while (it.hasNext())
+            answer = answer.add(it.next());
+        return answer;
+    }
+
+    /**
+     * Add all values in [begin, end), as unsigned 32-bit values. The
+     * current container may be modified and should no longer be used.
+     *
+     * @param begin first value (inclusive)
+     * @param end   last value (exclusive), at most 2^32
+     * @return the new container
+     */
+    public Container iadd(final long begin, final long end) {
+        // 大区间按行程编码运算，避免逐个值处理
+        if (end - begin > ArrayContainer.DEFAULT_MAX_SIZE)
+            return toRunContainer().or(new RunContainer((int) begin, (int) (end - 1)));
+        return ior(rangeOfOnes((int) begin, (int) (end - 1)));
+    }
+
+    /**
+     * Computes the in-place intersection of this container with the
+     * provided container. The current container may be modified and
+     * should no longer be used; the provided container is not modified.
+     *
+     * @param x other container
+     * @return the intersection
+     */
+    public Container iand(final Container x) {
+        return and(x);
+    }
+
+    /**
+     * Checks whether the two containers have at least one value in
+     * common, stopping at the first one found.
+     *
+     * @param x other container
+     * @return whether they intersect
+     */
+    public boolean intersects(final Container x) {
+        return intersectionCount(x, true) > 0;
+    }
+
+    /**
+     * Counts the values present in both containers without allocating a
+     * result. Subclasses override this for the container pairs they can
+     * count faster.
+     *
+     * @param x   other container
+     * @param any whether to stop at the first common value (returning 1)
+     * @return the cardinality of the intersection, or 0/1 when any is set
+     */
+    protected long intersectionCount(final Container x, final boolean any) {
+        if (x instanceof ArrayContainer)
+            return x.intersectionCount(this, any);
+        // 满的container的int基数为0，按long比较才不会去遍历2^32个值
+        final Container small = getLongCardinality() <= x.getLongCardinality() ? this : x;
+        final Container large = small == this ? x : this;
+        long count = 0;
+        final IntegerIterator it = small.getIntegerIterator();
+        while (it.hasNext()) {
+            if (large.contains(it.next())) {
+                if (any)
+                    return 1;
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes the in-place difference of this container with the provided
+     * container. The current container may be modified and should no
+     * longer be used; the provided container is not modified.
+     *
+     * @param x other container
+     * @return the difference
+     */
+    public Container iandNot(final Container x) {
+        if (x.getLongCardinality() < getLongCardinality())
+            return removeAll(x);
+        return andNot(x);
+    }
+
+    /**
+     * Flip all values in [begin, end), as unsigned 32-bit values. The
+     * current container may be modified and should no longer be used.
+     *
+     * @param begin first value (inclusive)
+     * @param end   last value (exclusive), at most 2^32
+     * @return the new container
+     */
+    public Container inot(final long begin, final long end) {
+        if (end - begin > ArrayContainer.DEFAULT_MAX_SIZE)
+            return toRunContainer().xor(new RunContainer((int) begin, (int) (end - 1)));
+        return ixor(rangeOfOnes((int) begin, (int) (end - 1)));
+    }
+
+    /**
+     * Computes the in-place union of this container with the provided
+     * container. The current container may be modified and should no
+     * longer be used; the provided container is not modified.
+     *
+     * @param x other container
+     * @return the union
+     */
+    public Container ior(final Container x) {
+        if (x.getLongCardinality() <= getLongCardinality())
+            return addAll(x);
+        return or(x);
+    }
+
+    /**
+     * Computes the in-place symmetric difference of this container with
+     * the provided container. The current container may be modified and
+     * should no longer be used; the provided container is not modified.
+     *
+     * @param x other container
+     * @return the symmetric difference
+     */
+    public Container ixor(final Container x) {
+        if (x.getLongCardinality() <= getLongCardinality())
+            return flipAll(x);
+        return xor(x);
+    }
+
+    /**
+     * Remove all values in [begin, end), as unsigned 32-bit values. The
+     * current container may be modified and should no longer be used.
+     *
+     * @param begin first value (inclusive)
+     * @param end   last value (exclusive), at most 2^32
+     * @return the new container
+     */
+    public Container iremove(final long begin, final long end) {
+        if (end - begin > ArrayContainer.DEFAULT_MAX_SIZE)
+            return toRunContainer().andNot(new RunContainer((int) begin, (int) (end - 1)));
+        return iandNot(rangeOfOnes((int) begin, (int) (end - 1)));
+    }
+
+    // 逐个翻转x中的值
+    private Container flipAll(final Container x) {
+        Container answer = this;
+        final IntegerIterator it = x.getIntegerIterator();
+        while (it.hasNext()) {
+            final int v = it.next();
+            answer = answer.contains(v) ? answer.remove(v) : answer.add(v);
+        }
+        return answer;
+    }
+
+    /**
+     * Computes the union of this container with the provided container.
+     * Neither container is modified.
+     * 通用实现：复制基数较大的一方，再加入另一方的值
+     *
+     * @param x other container
+     * @return the union
+     */
+    public Container or(final Container x) {
+        final Container small = getLongCardinality() <= x.getLongCardinality() ? this : x;
+        final Container large = small == this ? x : this;
+        return large.clone().addAll(small);
+    }
+
+    // 逐个删除x中的值
+    private Container removeAll(final Container x) {
+        Container answer = this;
+        final IntegerIterator it = x.getIntegerIterator();
+        while (it.hasNext())
+            answer = answer.remove(it.next());
+        return answer;
+    }
+
+    /**
+     * Computes the symmetric difference of this container with the
+     * provided container. Neither container is modified.
+     *
+     * @param x other container
+     * @return the symmetric difference
+     */
+    public Container xor(final Container x) {
+        final Container small = getLongCardinality() <= x.getLongCardinality() ? this : x;
+        final Container large = small == this ? x : this;
+        return large.clone().flipAll(small);
+    }
+
     /**
      * Empties the container
      */
@@ -53,17 +338,52 @@ public abstract class Container implements Iterable<Integer>, Cloneable {
     public abstract boolean contains(int x);
 
     /**
-     * Fill the least significant 16 bits of the integer array, starting at
-     * index index, with the short values from this container. The caller is
-     * responsible to allocate enough room. The most significant 16 bits of
-     * each integer are given by the most significant bits of the provided
-     * mask.
+     * Batched contains: out[k] is set for each probe in probes[begin, end),
+     * using the least significant 32 bits of the probes. The probes must be
+     * sorted so that subclasses can search forward from the last match.
+     *
+     * @param probes sorted values
+     * @param begin  first index
+     * @param end    end index (exclusive)
+     * @param out    results, indexed like probes
+     */
+    void containsAll(final long[] probes, final int begin, final int end, final boolean[] out) {
+        for (int k = begin; k < end; ++k)
+            out[k] = contains(Util.lowbits(probes[k]));
+    }
+
+    /**
+     * Fill the least significant 32 bits of the long array, starting at
+     * index i, with the unsigned values from this container. The caller is
+     * responsible to allocate enough room. The most significant bits of
+     * each long are given by the provided mask.
      * 改为32位整形
      * @param x    provided array
      * @param i    starting index
      * @param mask indicates most significant bits
      */
-    // public abstract void fillLeastSignificant16bits(int[] x, int i, int mask);
+    public abstract void fillLeastSignificant32bits(long[] x, int i, long mask);
+
+    /**
+     * Fill x from index i with the values not smaller than from, until x
+     * is full or the container is exhausted.
+     *
+     * @param x    provided array
+     * @param i    starting index
+     * @param mask indicates most significant bits
+     * @param from first unsigned value to copy, may be 2^32
+     * @return the number of values written
+     */
+    abstract int fillLeastSignificant32bits(long[] x, int i, long mask, long from);
+
+    /**
+     * Pass each unsigned value of the container to the consumer, in
+     * increasing order, with the most significant bits given by the mask.
+     *
+     * @param mask   indicates most significant bits
+     * @param action called for each value
+     */
+    public abstract void forEach(long mask, LongConsumer action);
 
     /**
      * Size of the underlying array
@@ -80,12 +400,74 @@ public abstract class Container implements Iterable<Integer>, Cloneable {
      */
     public abstract int getCardinality();
 
+    /**
+     * Checks whether the container has no value. Unlike getCardinality()
+     * this does not overflow for containers holding 2^31 values or more.
+     *
+     * @return whether the container is empty
+     */
+    public boolean isEmpty() {
+        return getCardinality() == 0;
+    }
+
+    /**
+     * Computes the distinct number of values in the container, without
+     * wrapping for a full container.
+     *
+     * @return the cardinality
+     */
+    long getLongCardinality() {
+        return Util.toLongUnsigned(getCardinality());
+    }
+
     /**
      * Iterator to visit the short values in the container
      *
      * @return iterator
      */
-    public abstract IntegerIterator getIntegerIterator();
+    public IntegerIterator getIntegerIterator() {
+        return getIntegerIterator(0);
+    }
+
+    /**
+     * Iterator starting at the first value not smaller than from.
+     *
+     * @param from unsigned value, may be 2^32 (empty iterator)
+     * @return iterator
+     */
+    abstract IntegerIterator getIntegerIterator(long from);
+
+    /**
+     * Iterator visiting the values not larger than from, in decreasing
+     * unsigned order.
+     *
+     * @param from unsigned value, may be -1 (empty iterator)
+     * @return iterator
+     */
+    IntegerIterator getReverseIntegerIterator(final long from) {
+        return new IntegerIterator() {
+            long next = previousValue(from);
+
+            long last;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public int next() {
+                last = next;
+                next = previousValue(next - 1);
+                return (int) last;
+            }
+
+            @Override
+            public void remove() {
+                Container.this.remove((int) last);
+            }
+        };
+    }
 
     /**
      * Computes an estimate of the memory usage of this container. The
@@ -95,6 +477,33 @@ public abstract class Container implements Iterable<Integer>, Cloneable {
      */
     public abstract int getSizeInBytes();
 
+    /**
+     * The smallest value not smaller than from.
+     *
+     * @param from unsigned value, may be 2^32
+     * @return the unsigned value, or -1 if there is none
+     */
+    long nextValue(final long from) {
+        final IntegerIterator it = getIntegerIterator(from);
+        return it.hasNext() ? Util.toLongUnsigned(it.next()) : -1;
+    }
+
+    /**
+     * The largest value not larger than from.
+     *
+     * @param from unsigned value, may be -1
+     * @return the unsigned value, or -1 if there is none
+     */
+    abstract long previousValue(long from);
+
+    /**
+     * Number of values not larger than x.
+     *
+     * @param x unsigned value
+     * @return the rank
+     */
+    abstract long rank(long x);
+
     /**
      * Remove the short from this container. May create a new container.
      *
@@ -104,22 +513,84 @@ public abstract class Container implements Iterable<Integer>, Cloneable {
     public abstract Container remove(int x);
 
     /**
-     * Report the number of bytes required to serialize this container.
+     * The j-th smallest value, counting from 0.
+     *
+     * @param j index, smaller than the cardinality
+     * @return the unsigned value
+     */
+    abstract int select(long j);
+
+    /**
+     * Convert to run containers when it is more efficient.
+     *
+     * @return the new container (may be this)
+     */
+    public abstract Container runOptimize();
+
+    /**
+     * Report the number of bytes required to serialize this container,
+     * exactly what writeArray writes.
      *
      * @return the size in bytes
      */
     public abstract int serializedSizeInBytes();
 
+    /**
+     * Type of the container in the serialized format.
+     *
+     * @return one of ARRAY_TYPE, BITMAP_TYPE, RUN_TYPE, NESTED_TYPE
+     */
+    abstract byte serializedType();
+
+    /**
+     * The same values as a run container.
+     *
+     * @return a run container (may be this)
+     */
+    RunContainer toRunContainer() {
+        final RunContainer rc = new RunContainer();
+        final IntegerIterator it = getIntegerIterator();
+        while (it.hasNext()) {
+            final long v = Util.toLongUnsigned(it.next());
+            rc.appendRun(v, v);
+        }
+        return rc;
+    }
+
     /**
      * If possible, recover wasted memory.
      */
     public abstract void trim();
 
     /**
-     * Write just the underlying array.
+     * Write just the underlying array, see RoaringBitmap.serialize for the
+     * layout.
      *
-     * @param out output stream
-     * @throws IOException
+     * @param out little-endian output buffer
      */
-    // protected abstract void writeArray(DataOutput out) throws IOException;
+    protected abstract void writeArray(ByteBuffer out);
+
+    /**
+     * Read a container written by writeArray.
+     *
+     * @param in          little-endian buffer positioned at the container
+     * @param type        serialized type
+     * @param cardinality cardinality from the key index
+     * @return the container
+     * @throws IOException if the type is unknown
+     */
+    static Container deserialize(final ByteBuffer in, final byte type, final int cardinality) throws IOException {
+        switch (type) {
+            case ARRAY_TYPE:
+                return ArrayContainer.deserialize(in, cardinality);
+            case BITMAP_TYPE:
+                return BitmapContainer.deserialize(in);
+            case RUN_TYPE:
+                return RunContainer.deserialize(in);
+            case NESTED_TYPE:
+                return NestedContainer.deserialize(in);
+            default:
+                throw new IOException("unknown container type " + type);
+        }
+    }
 }
@@ -0,0 +1,197 @@
+package org.roaringbitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * 多个bitmap一次性求并集/交集，避免两两合并产生的中间结果。
+ */
+public final class FastAggregation {
+
+    private FastAggregation() {
+    }
+
+    /**
+     * Compute the intersection of many bitmaps at once. The provided
+     * bitmaps are *not* modified.
+     *
+     * @param bitmaps input bitmaps
+     * @return the intersection
+     */
+    public static RoaringBitmap and(final RoaringBitmap... bitmaps) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        if (bitmaps.length == 0)
+            return answer;
+        // 从container最少的bitmap出发，只需检查它的key
+        final RoaringBitmap[] sorted = bitmaps.clone();
+        Arrays.sort(sorted, new Comparator<RoaringBitmap>() {
+            @Override
+            public int compare(RoaringBitmap a, RoaringBitmap b) {
+                return Integer.compare(a.highLowContainer.size(), b.highLowContainer.size());
+            }
+        });
+        final RoaringArray first = sorted[0].highLowContainer;
+        final Container[] group = new Container[sorted.length];
+        for (int i = 0; i < first.size(); ++i) {
+            final short key = first.getKeyAtIndex(i);
+            group[0] = first.getContainerAtIndex(i);
+            int count = 1;
+            for (; count < sorted.length; ++count) {
+                group[count] = sorted[count].highLowContainer.getContainer(key);
+                if (group[count] == null)
+                    break;
+            }
+            if (count < sorted.length)
+                continue;
+            // 基数小的先求交，结果尽早变小或为空
+            Arrays.sort(group, new Comparator<Container>() {
+                @Override
+                public int compare(Container a, Container b) {
+                    return Long.compare(a.getLongCardinality(), b.getLongCardinality());
+                }
+            });
+            Container c = group.length == 1 ? group[0].clone() : group[0].and(group[1]);
+            for (int k = 2; k < group.length && !c.isEmpty(); ++k)
+                c = c.iand(group[k]);
+            if (!c.isEmpty())
+                answer.highLowContainer.append(key, c);
+        }
+        return answer;
+    }
+
+    /**
+     * Compute the intersection of many bitmaps at once.
+     *
+     * @param bitmaps input bitmaps
+     * @return the intersection
+     */
+    public static RoaringBitmap and(final Iterator<RoaringBitmap> bitmaps) {
+        return and(toArray(bitmaps));
+    }
+
+    /**
+     * Compute the union of many bitmaps at once. Containers sharing a key
+     * are gathered with a priority queue and OR-ed into one scratch
+     * container whose cardinality is only computed at the end. The
+     * provided bitmaps are *not* modified.
+     *
+     * @param bitmaps input bitmaps
+     * @return the union
+     */
+    public static RoaringBitmap or(final RoaringBitmap... bitmaps) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        // 每个bitmap当前所在的container下标，按当前key（无符号）排序
+        final int[] positions = new int[bitmaps.length];
+        final PriorityQueue<Integer> pq = new PriorityQueue<Integer>(Math.max(1, bitmaps.length),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return Integer.compare(keyAt(bitmaps, positions, a), keyAt(bitmaps, positions, b));
+                    }
+                });
+        for (int i = 0; i < bitmaps.length; ++i) {
+            if (bitmaps[i].highLowContainer.size() > 0)
+                pq.add(i);
+        }
+        final ArrayList<Container> group = new ArrayList<Container>();
+        while (!pq.isEmpty()) {
+            final int key = keyAt(bitmaps, positions, pq.peek());
+            group.clear();
+            while (!pq.isEmpty() && keyAt(bitmaps, positions, pq.peek()) == key) {
+                final int i = pq.poll();
+                group.add(bitmaps[i].highLowContainer.getContainerAtIndex(positions[i]));
+                if (++positions[i] < bitmaps[i].highLowContainer.size())
+                    pq.add(i);
+            }
+            answer.highLowContainer.append((short) key, or(group));
+        }
+        return answer;
+    }
+
+    /**
+     * Compute the union of many bitmaps at once.
+     *
+     * @param bitmaps input bitmaps
+     * @return the union
+     */
+    public static RoaringBitmap or(final Iterator<RoaringBitmap> bitmaps) {
+        return or(toArray(bitmaps));
+    }
+
+    // 同一key下的container求并集
+    private static Container or(final ArrayList<Container> group) {
+        if (group.size() == 1)
+            return group.get(0).clone();
+        boolean dense = false;
+        for (Container c : group)
+            dense |= c instanceof BitmapContainer || c instanceof NestedContainer;
+        if (!dense)
+            // 稀疏的值分散在很多16位子key下，惰性并集要为每个子key分配8kb
+            return orSparse(group);
+        final NestedContainer scratch = new NestedContainer();
+        for (Container c : group)
+            scratch.lazyIOr(c);
+        return scratch.repairAfterLazy();
+    }
+
+    // 全是array或run时，array的值与run分别按归并树两两合并，共log(k)层，每层的代价与输入总量成正比
+    private static Container orSparse(final ArrayList<Container> group) {
+        final ArrayList<int[]> arrays = new ArrayList<int[]>();
+        final ArrayList<Integer> lengths = new ArrayList<Integer>();
+        final ArrayList<RunContainer> runs = new ArrayList<RunContainer>();
+        for (Container c : group) {
+            if (c instanceof RunContainer) {
+                runs.add((RunContainer) c);
+            } else {
+                final ArrayContainer ac = (ArrayContainer) c;
+                arrays.add(ac.content);
+                lengths.add(ac.cardinality);
+            }
+        }
+        // 只有一个run container时它就是输入，最后要复制
+        final boolean oneRun = runs.size() == 1;
+        while (arrays.size() > 1) {
+            int n = 0;
+            for (int k = 0; k < arrays.size(); k += 2, ++n) {
+                if (k + 1 == arrays.size()) {
+                    arrays.set(n, arrays.get(k));
+                    lengths.set(n, lengths.get(k));
+                    continue;
+                }
+                final int[] buffer = new int[lengths.get(k) + lengths.get(k + 1)];
+                lengths.set(n, Util.unsignedUnion2by2(arrays.get(k), lengths.get(k),
+                        arrays.get(k + 1), lengths.get(k + 1), buffer));
+                arrays.set(n, buffer);
+            }
+            arrays.subList(n, arrays.size()).clear();
+            lengths.subList(n, lengths.size()).clear();
+        }
+        while (runs.size() > 1) {
+            int n = 0;
+            for (int k = 0; k < runs.size(); k += 2, ++n)
+                runs.set(n, k + 1 == runs.size() ? runs.get(k) : runs.get(k).or(runs.get(k + 1)));
+            runs.subList(n, runs.size()).clear();
+        }
+        // 没有run时至少有两个array，归并结果是新分配的
+        if (runs.isEmpty())
+            return Container.fromSortedArray(arrays.get(0), lengths.get(0));
+        final Container r = oneRun ? runs.get(0).clone() : runs.get(0);
+        if (arrays.isEmpty())
+            return r;
+        return r.ior(Container.fromSortedArray(arrays.get(0), lengths.get(0)));
+    }
+
+    private static int keyAt(final RoaringBitmap[] bitmaps, final int[] positions, final int i) {
+        return Util.toIntUnsigned(bitmaps[i].highLowContainer.getKeyAtIndex(positions[i]));
+    }
+
+    private static RoaringBitmap[] toArray(final Iterator<RoaringBitmap> bitmaps) {
+        final ArrayList<RoaringBitmap> list = new ArrayList<RoaringBitmap>();
+        while (bitmaps.hasNext())
+            list.add(bitmaps.next());
+        return list.toArray(new RoaringBitmap[list.size()]);
+    }
+}
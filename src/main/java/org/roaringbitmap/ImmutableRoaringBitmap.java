@@ -0,0 +1,478 @@
+package org.roaringbitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.LongConsumer;
+
+/**
+ * 只读bitmap，直接在序列化后的ByteBuffer（可以是MappedByteBuffer）上查询，不反序列化。
+ * 格式见RoaringBitmap.serialize。只使用绝对位置读取，可被多个线程同时访问。
+ */
+public final class ImmutableRoaringBitmap implements Iterable<Long> {
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    /**
+     * Wrap a bitmap serialized by RoaringBitmap.serialize, starting at the
+     * position of the buffer. The content of the buffer must not change
+     * afterwards; the position of the buffer is not modified.
+     *
+     * @param buffer the serialized bitmap
+     * @throws IOException if the data is not a serialized bitmap
+     */
+    public ImmutableRoaringBitmap(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < RoaringBitmap.HEADER_SIZE)
+            throw new IOException("not a serialized bitmap, only " + in.remaining() + " bytes");
+        final int cookie = in.getInt(0);
+        if ((cookie & 0xFFFF) != RoaringBitmap.SERIAL_COOKIE)
+            throw new IOException("not a serialized bitmap, cookie " + Integer.toHexString(cookie));
+        if (cookie >>> 16 > RoaringBitmap.SERIAL_VERSION)
+            throw new IOException("unsupported serial version " + (cookie >>> 16));
+        final int length = in.getInt(4);
+        if (length < RoaringBitmap.HEADER_SIZE || length > in.limit())
+            throw new IOException("invalid serialized length " + length);
+        in.limit(length);
+        this.buffer = in;
+        this.size = in.getInt(8);
+        if (size < 0 || RoaringBitmap.HEADER_SIZE + (long) size * RoaringBitmap.INDEX_ENTRY_SIZE > length)
+            throw new IOException("invalid container count " + size);
+    }
+
+    /**
+     * Bitwise AND (intersection) operation. Only the containers whose keys
+     * appear in both bitmaps are decoded.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap and(final ImmutableRoaringBitmap x1, final ImmutableRoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < x1.size && pos2 < x2.size) {
+            final short s1 = x1.getKeyAtIndex(pos1);
+            final short s2 = x2.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = x1.getContainerAtIndex(pos1).iand(x2.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    answer.highLowContainer.append(s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                ++pos1;
+            } else {
+                ++pos2;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Cardinality of the bitwise AND (intersection) operation.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return cardinality of the intersection
+     */
+    public static long andCardinality(final ImmutableRoaringBitmap x1, final ImmutableRoaringBitmap x2) {
+        long answer = 0;
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < x1.size && pos2 < x2.size) {
+            final short s1 = x1.getKeyAtIndex(pos1);
+            final short s2 = x2.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                answer += x1.getContainerAtIndex(pos1).andCardinality(x2.getContainerAtIndex(pos2));
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                ++pos1;
+            } else {
+                ++pos2;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Bitwise ANDNOT (difference) operation.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap andNot(final ImmutableRoaringBitmap x1, final ImmutableRoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < x1.size && pos2 < x2.size) {
+            final short s1 = x1.getKeyAtIndex(pos1);
+            final short s2 = x2.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = x1.getContainerAtIndex(pos1).iandNot(x2.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    answer.highLowContainer.append(s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                answer.highLowContainer.append(s1, x1.getContainerAtIndex(pos1));
+                ++pos1;
+            } else {
+                ++pos2;
+            }
+        }
+        for (; pos1 < x1.size; ++pos1)
+            answer.highLowContainer.append(x1.getKeyAtIndex(pos1), x1.getContainerAtIndex(pos1));
+        return answer;
+    }
+
+    /**
+     * Checks whether the value is included, without decoding any
+     * container.
+     *
+     * @param x value (48 bits)
+     * @return whether the value is included
+     */
+    public boolean contains(final long x) {
+        final int i = getIndex(Util.highbits(x));
+        if (i < 0)
+            return false;
+        final int entry = RoaringBitmap.HEADER_SIZE + i * RoaringBitmap.INDEX_ENTRY_SIZE;
+        final int card = buffer.getInt(entry + 3);
+        final int offset = buffer.getInt(entry + 7);
+        final int low = Util.lowbits(x);
+        switch (buffer.get(entry + 2)) {
+            case Container.ARRAY_TYPE:
+                return searchInt(offset, 4, card, low) >= 0;
+            case Container.BITMAP_TYPE: {
+                // 先按页号二分，再取页内的long
+                final int pageCount = buffer.getInt(offset);
+                final int p = searchInt(offset + 4, 4, pageCount, low >>> BitmapContainer.PAGE_BITS);
+                if (p < 0)
+                    return false;
+                final int words = offset + 4 + 4 * pageCount + p * BitmapContainer.PAGE_WORDS * 8;
+                return (buffer.getLong(words + ((low >>> 6) & BitmapContainer.WORD_MASK) * 8) & (1L << low)) != 0;
+            }
+            case Container.RUN_TYPE: {
+                final int r = floorRun(offset + 4, 8, buffer.getInt(offset), low);
+                if (r < 0)
+                    return false;
+                final int run = offset + 4 + 8 * r;
+                return Util.toLongUnsigned(low) - Util.toLongUnsigned(buffer.getInt(run))
+                        <= Util.toLongUnsigned(buffer.getInt(run + 4));
+            }
+            case Container.NESTED_TYPE:
+                return nestedContains(offset, low);
+            default:
+                return false;
+        }
+    }
+
+    // 在ByteBuffer中查找floor：起点（无符号）不大于x的最后一段，stride为每项的字节数
+    private int floorRun(final int pos, final int stride, final int n, final int x) {
+        final int i = searchInt(pos, stride, n, x);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Pass each value to the consumer in increasing unsigned order,
+     * decoding one container at a time.
+     *
+     * @param action called for each value
+     */
+    public void forEachLong(final LongConsumer action) {
+        for (int i = 0; i < size; ++i) {
+            final long hs = (long) Util.toIntUnsigned(getKeyAtIndex(i)) << 32;
+            getContainerAtIndex(i).forEach(hs, action);
+        }
+    }
+
+    /**
+     * Returns the number of distinct values in the bitmap, read from the
+     * key index.
+     *
+     * @return the cardinality
+     */
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; ++i)
+            cardinality += buffer.getInt(RoaringBitmap.HEADER_SIZE + i * RoaringBitmap.INDEX_ENTRY_SIZE + 3);
+        return cardinality;
+    }
+
+    /**
+     * Returns the number of distinct values in the bitmap, read from the
+     * key index. Unlike getCardinality() it does not overflow past 2^31
+     * values.
+     *
+     * @return the cardinality
+     */
+    public long getLongCardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; ++i) {
+            // 索引中的基数按无符号读；container不会为空，为0时是满的2^32个值
+            final long card = Util.toLongUnsigned(
+                    buffer.getInt(RoaringBitmap.HEADER_SIZE + i * RoaringBitmap.INDEX_ENTRY_SIZE + 3));
+            cardinality += card == 0 ? 1L << 32 : card;
+        }
+        return cardinality;
+    }
+
+    /**
+     * Decode one container.
+     *
+     * @param i index in the key index
+     * @return a new heap container
+     */
+    Container getContainerAtIndex(final int i) {
+        final int entry = RoaringBitmap.HEADER_SIZE + i * RoaringBitmap.INDEX_ENTRY_SIZE;
+        // 每次使用独立的副本，不修改共享buffer的position
+        final ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.position(buffer.getInt(entry + 7));
+        try {
+            return Container.deserialize(in, buffer.get(entry + 2), buffer.getInt(entry + 3));
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupted serialized bitmap", e);
+        }
+    }
+
+    // 二分查找key，先判断最后一个
+    private int getIndex(final short x) {
+        if (size > 0 && getKeyAtIndex(size - 1) == x)
+            return size - 1;
+        return searchShort(RoaringBitmap.HEADER_SIZE, RoaringBitmap.INDEX_ENTRY_SIZE, size, x);
+    }
+
+    short getKeyAtIndex(final int i) {
+        return buffer.getShort(RoaringBitmap.HEADER_SIZE + i * RoaringBitmap.INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * Checks whether the two bitmaps intersect.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return whether they have at least one value in common
+     */
+    public static boolean intersects(final ImmutableRoaringBitmap x1, final ImmutableRoaringBitmap x2) {
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < x1.size && pos2 < x2.size) {
+            final short s1 = x1.getKeyAtIndex(pos1);
+            final short s2 = x2.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                if (x1.getContainerAtIndex(pos1).intersects(x2.getContainerAtIndex(pos2)))
+                    return true;
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                ++pos1;
+            } else {
+                ++pos2;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Iterate over the values in increasing unsigned order, decoding one
+     * container at a time.
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            int pos = 0;
+
+            long hs;
+
+            IntegerIterator iter;
+
+            @Override
+            public boolean hasNext() {
+                while (iter == null || !iter.hasNext()) {
+                    if (pos >= size)
+                        return false;
+                    hs = (long) Util.toIntUnsigned(getKeyAtIndex(pos)) << 32;
+                    iter = getContainerAtIndex(pos++).getIntegerIterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return hs | Util.toLongUnsigned(iter.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("immutable bitmap");
+            }
+        };
+    }
+
+    // 嵌套container：子container个数，key，类型，基数-1，偏移，见NestedContainer.writeArray
+    private boolean nestedContains(final int offset, final int low) {
+        final int n = buffer.getInt(offset);
+        final int k = searchShort(offset + 4, 2, n, (short) (low >>> 16));
+        if (k < 0)
+            return false;
+        final int card = Util.toIntUnsigned(buffer.getShort(offset + 4 + 3 * n + 2 * k)) + 1;
+        final int sub = offset + buffer.getInt(offset + 4 + 5 * n + 4 * k);
+        final int x = low & 0xFFFF;
+        switch (buffer.get(offset + 4 + 2 * n + k)) {
+            case Container.ARRAY_TYPE:
+                return searchShort(sub, 2, card, (short) x) >= 0;
+            case Container.BITMAP_TYPE:
+                return (buffer.getLong(sub + (x >>> 6) * 8) & (1L << x)) != 0;
+            case Container.RUN_TYPE: {
+                final int r = searchShort(sub + 2, 4, Util.toIntUnsigned(buffer.getShort(sub)), (short) x);
+                if (r == -1)
+                    return false;
+                final int run = sub + 2 + 4 * (r >= 0 ? r : -r - 2);
+                return x - Util.toIntUnsigned(buffer.getShort(run)) <= Util.toIntUnsigned(buffer.getShort(run + 2));
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Bitwise OR (union) operation.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap or(final ImmutableRoaringBitmap x1, final ImmutableRoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < x1.size && pos2 < x2.size) {
+            final short s1 = x1.getKeyAtIndex(pos1);
+            final short s2 = x2.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                answer.highLowContainer.append(s1, x1.getContainerAtIndex(pos1).ior(x2.getContainerAtIndex(pos2)));
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                answer.highLowContainer.append(s1, x1.getContainerAtIndex(pos1));
+                ++pos1;
+            } else {
+                answer.highLowContainer.append(s2, x2.getContainerAtIndex(pos2));
+                ++pos2;
+            }
+        }
+        for (; pos1 < x1.size; ++pos1)
+            answer.highLowContainer.append(x1.getKeyAtIndex(pos1), x1.getContainerAtIndex(pos1));
+        for (; pos2 < x2.size; ++pos2)
+            answer.highLowContainer.append(x2.getKeyAtIndex(pos2), x2.getContainerAtIndex(pos2));
+        return answer;
+    }
+
+    // 在ByteBuffer中按无符号二分查找int，stride为每项的字节数
+    private int searchInt(final int pos, final int stride, final int n, final int key) {
+        final long ikey = Util.toLongUnsigned(key);
+        int low = 0, high = n - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final long v = Util.toLongUnsigned(buffer.getInt(pos + middle * stride));
+            if (v < ikey)
+                low = middle + 1;
+            else if (v > ikey)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    // 在ByteBuffer中按无符号二分查找short，stride为每项的字节数
+    private int searchShort(final int pos, final int stride, final int n, final short key) {
+        final int ikey = Util.toIntUnsigned(key);
+        int low = 0, high = n - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int v = Util.toIntUnsigned(buffer.getShort(pos + middle * stride));
+            if (v < ikey)
+                low = middle + 1;
+            else if (v > ikey)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Number of bytes of the serialized bitmap.
+     *
+     * @return the size in bytes
+     */
+    public int serializedSizeInBytes() {
+        return buffer.limit();
+    }
+
+    /**
+     * Copy the content into a mutable bitmap.
+     *
+     * @return a new bitmap
+     */
+    public RoaringBitmap toRoaringBitmap() {
+        final RoaringBitmap answer = new RoaringBitmap();
+        for (int i = 0; i < size; ++i)
+            answer.highLowContainer.append(getKeyAtIndex(i), getContainerAtIndex(i));
+        return answer;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        final Iterator<Long> it = iterator();
+        while (it.hasNext()) {
+            sb.append(it.next());
+            if (it.hasNext())
+                sb.append(",");
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Bitwise XOR (symmetric difference) operation.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap xor(final ImmutableRoaringBitmap x1, final ImmutableRoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < x1.size && pos2 < x2.size) {
+            final short s1 = x1.getKeyAtIndex(pos1);
+            final short s2 = x2.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = x1.getContainerAtIndex(pos1).ixor(x2.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    answer.highLowContainer.append(s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                answer.highLowContainer.append(s1, x1.getContainerAtIndex(pos1));
+                ++pos1;
+            } else {
+                answer.highLowContainer.append(s2, x2.getContainerAtIndex(pos2));
+                ++pos2;
+            }
+        }
+        for (; pos1 < x1.size; ++pos1)
+            answer.highLowContainer.append(x1.getKeyAtIndex(pos1), x1.getContainerAtIndex(pos1));
+        for (; pos2 < x2.size; ++pos2)
+            answer.highLowContainer.append(x2.getKeyAtIndex(pos2), x2.getContainerAtIndex(pos2));
+        return answer;
+    }
+}
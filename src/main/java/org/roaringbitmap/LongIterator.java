@@ -0,0 +1,21 @@
+package org.roaringbitmap;
+
+/**
+ * 长整形 Iterator，遍历48位的完整值，不装箱
+ */
+public interface LongIterator {
+    /**
+     * @return whether there is another value
+     */
+    boolean hasNext();
+
+    /**
+     * @return next value
+     */
+    long next();
+
+    /**
+     * remove current value
+     */
+    void remove();
+}
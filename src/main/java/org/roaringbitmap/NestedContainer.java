@@ -0,0 +1,947 @@
+package org.roaringbitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.LongConsumer;
+
+/**
+ * 两级roaring container：32位低位再拆成16位key + 16位值，
+ * 值存放在原版roaring的array/bitmap/run子container中。
+ * ArrayContainer超过DEFAULT_MAX_SIZE后转为该container，插入为O(log n)。
+ */
+public final class NestedContainer extends Container implements Cloneable {
+    private static final int DEFAULT_INIT_SIZE = 4;
+
+    // 子container的key，按无符号有序
+    short[] keys;
+
+    ShortContainer[] values;
+
+    int size = 0;
+
+    int cardinality = 0;
+
+    // 子container的前缀基数，用到时才补算，见PrefixCardinalities
+    private volatile PrefixCardinalities prefix;
+
+    /**
+     * Create an empty nested container
+     */
+    public NestedContainer() {
+        this.keys = new short[DEFAULT_INIT_SIZE];
+        this.values = new ShortContainer[DEFAULT_INIT_SIZE];
+    }
+
+    /**
+     * Create a nested container from values sorted in unsigned order.
+     *
+     * @param values sorted values
+     * @param length number of values to use
+     * @return a new container
+     */
+    static NestedContainer fromSortedArray(final int[] values, final int length) {
+        final NestedContainer nc = new NestedContainer();
+        int start = 0;
+        while (start < length) {
+            // 高16位相同的一段
+            final int hs = values[start] >>> 16;
+            int end = start + 1;
+            while (end < length && values[end] >>> 16 == hs)
+                ++end;
+            final int card = end - start;
+            ShortContainer c;
+            if (card > ShortArrayContainer.DEFAULT_MAX_SIZE) {
+                final ShortBitmapContainer bc = new ShortBitmapContainer();
+                for (int k = start; k < end; ++k)
+                    bc.bitmap[(values[k] & 0xFFFF) >>> 6] |= 1L << values[k];
+                bc.cardinality = card;
+                c = bc;
+            } else {
+                final short[] content = new short[card];
+                for (int k = start; k < end; ++k)
+                    content[k - start] = (short) values[k];
+                c = new ShortArrayContainer(card, content);
+            }
+            nc.append((short) hs, c);
+            start = end;
+        }
+        return nc;
+    }
+
+    private NestedContainer(final NestedContainer other) {
+        this.size = other.size;
+        this.cardinality = other.cardinality;
+        this.keys = Arrays.copyOf(other.keys, other.size);
+        this.values = new ShortContainer[other.size];
+        for (int k = 0; k < other.size; ++k)
+            this.values[k] = other.values[k].clone();
+    }
+
+    @Override
+    public Container add(final int x) {
+        final short hb = (short) (x >>> 16);
+        final int i = getIndex(hb);
+        if (i >= 0) {
+            final ShortContainer c = values[i];
+            final int before = c.getCardinality();
+            values[i] = c.add((short) x);
+            cardinality += values[i].getCardinality() - before;
+            invalidateFrom(i);
+        } else {
+            insertNewKeyValueAt(-i - 1, hb, new ShortArrayContainer().add((short) x));
+            ++cardinality;
+        }
+        return this;
+    }
+
+    @Override
+    public Container and(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, AND, false);
+        return super.and(x);
+    }
+
+    @Override
+    public Container andNot(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, ANDNOT, false);
+        return super.andNot(x);
+    }
+
+    // 追加一个子container，key必须大于现有的key
+    private void append(final short key, final ShortContainer value) {
+        insertNewKeyValueAt(size, key, value);
+        cardinality += value.getCardinality();
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        cardinality = 0;
+        prefix = null;
+    }
+
+    @Override
+    public NestedContainer clone() {
+        return new NestedContainer(this);
+    }
+
+    @Override
+    public boolean contains(final int x) {
+        final int i = getIndex((short) (x >>> 16));
+        return i >= 0 && values[i].contains((short) x);
+    }
+
+    @Override
+    void containsAll(final long[] probes, final int begin, final int end, final boolean[] out) {
+        // 按16位key分组，与keys同步前进
+        int pos = -1;
+        int start = begin;
+        while (start < end) {
+            final short hs = (short) (probes[start] >>> 16);
+            int stop = start + 1;
+            while (stop < end && (short) (probes[stop] >>> 16) == hs)
+                ++stop;
+            final int i = Util.advanceUntil(keys, pos, size, hs);
+            if (i < size && keys[i] == hs) {
+                for (int k = start; k < stop; ++k)
+                    out[k] = values[i].contains((short) probes[k]);
+            } else {
+                Arrays.fill(out, start, stop, false);
+            }
+            pos = i - 1;
+            start = stop;
+        }
+    }
+
+    /**
+     * Read a nested container written by writeArray.
+     *
+     * @param in little-endian input buffer
+     * @return the container
+     * @throws IOException if a sub-container type is unknown
+     */
+    static NestedContainer deserialize(final ByteBuffer in) throws IOException {
+        final int start = in.position();
+        final int size = in.getInt();
+        final NestedContainer nc = new NestedContainer();
+        nc.keys = new short[size];
+        nc.values = new ShortContainer[size];
+        final byte[] types = new byte[size];
+        final short[] cards = new short[size];
+        final int[] offsets = new int[size];
+        in.asShortBuffer().get(nc.keys);
+        in.position(in.position() + 2 * size);
+        in.get(types);
+        in.asShortBuffer().get(cards);
+        in.position(in.position() + 2 * size);
+        in.asIntBuffer().get(offsets);
+        in.position(in.position() + 4 * size);
+        for (int k = 0; k < size; ++k) {
+            in.position(start + offsets[k]);
+            nc.values[k] = ShortContainer.deserialize(in, types[k], Util.toIntUnsigned(cards[k]) + 1);
+            nc.cardinality += nc.values[k].getCardinality();
+        }
+        nc.size = size;
+        return nc;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof NestedContainer) {
+            NestedContainer srb = (NestedContainer) o;
+            if (srb.cardinality != this.cardinality || srb.size != this.size)
+                return false;
+            for (int i = 0; i < size; ++i) {
+                if (keys[i] != srb.keys[i] || !values[i].equals(srb.values[i]))
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void fillLeastSignificant32bits(final long[] x, final int i, final long mask) {
+        int pos = i;
+        for (int k = 0; k < size; ++k) {
+            final long hs = (long) Util.toIntUnsigned(keys[k]) << 16 | mask;
+            final ShortIterator it = values[k].getShortIterator();
+            while (it.hasNext())
+                x[pos++] = hs | Util.toIntUnsigned(it.next());
+        }
+    }
+
+    @Override
+    int fillLeastSignificant32bits(final long[] x, final int i, final long mask, final long from) {
+        if (from > 0xFFFFFFFFL)
+            return 0;
+        int pos = i;
+        int k = Util.unsignedBinarySearch(keys, 0, size, (short) (from >>> 16));
+        ShortIterator it = null;
+        if (k >= 0)
+            it = values[k].getShortIterator((int) from & 0xFFFF);
+        else
+            k = -k - 1;
+        for (; k < size; ++k) {
+            final long hs = (long) Util.toIntUnsigned(keys[k]) << 16 | mask;
+            if (it == null)
+                it = values[k].getShortIterator();
+            while (it.hasNext()) {
+                if (pos == x.length)
+                    return pos - i;
+                x[pos++] = hs | Util.toIntUnsigned(it.next());
+            }
+            it = null;
+        }
+        return pos - i;
+    }
+
+    @Override
+    public void forEach(final long mask, final LongConsumer action) {
+        for (int k = 0; k < size; ++k) {
+            final long hs = (long) Util.toIntUnsigned(keys[k]) << 16 | mask;
+            final ShortIterator it = values[k].getShortIterator();
+            while (it.hasNext())
+                action.accept(hs | Util.toIntUnsigned(it.next()));
+        }
+    }
+
+    @Override
+    protected int getArraySizeInBytes() {
+        int size = 0;
+        for (int k = 0; k < this.size; ++k)
+            size += 2 + values[k].getSizeInBytes();
+        return size;
+    }
+
+    @Override
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    // 二分查找key，先判断最后一个（顺序插入最常见）
+    protected int getIndex(final short x) {
+        if ((size == 0) || (keys[size - 1] == x))
+            return size - 1;
+        return Util.unsignedBinarySearch(keys, 0, size, x);
+    }
+
+    @Override
+    IntegerIterator getIntegerIterator(final long from) {
+        return new IntegerIterator() {
+            int pos = -1;
+
+            ShortIterator iter;
+
+            int hs;
+
+            // 预取的下一个值（无符号），-1表示没有
+            long nextValue = -1;
+
+            int x;
+
+            IntegerIterator init() {
+                if (from > 0xFFFFFFFFL)
+                    return this;
+                // 跳过key更小的子container，key相同时在子container内定位
+                final int i = Util.unsignedBinarySearch(keys, 0, size, (short) (from >>> 16));
+                if (i >= 0) {
+                    pos = i;
+                    iter = values[i].getShortIterator((int) from & 0xFFFF);
+                    hs = Util.toIntUnsigned(keys[i]) << 16;
+                } else {
+                    pos = -i - 2;
+                }
+                advance();
+                return this;
+            }
+
+            private void advance() {
+                while (iter == null || !iter.hasNext()) {
+                    if (++pos >= NestedContainer.this.size) {
+                        nextValue = -1;
+                        return;
+                    }
+                    iter = values[pos].getShortIterator();
+                    hs = Util.toIntUnsigned(keys[pos]) << 16;
+                }
+                nextValue = Util.toLongUnsigned(hs | Util.toIntUnsigned(iter.next()));
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextValue >= 0;
+            }
+
+            @Override
+            public int next() {
+                x = (int) nextValue;
+                advance();
+                return x;
+            }
+
+            @Override
+            public void remove() {
+                NestedContainer.this.remove(x);
+                if (nextValue < 0)
+                    return;
+                // 子container可能被替换或删除，重新定位到预取的值之后
+                final int next = (int) nextValue;
+                pos = getIndex((short) (next >>> 16));
+                iter = values[pos].getShortIterator((next & 0xFFFF) + 1);
+            }
+        }.init();
+    }
+
+    @Override
+    public int getSizeInBytes() {
+        return getArraySizeInBytes() + 8;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int k = 0; k < size; ++k)
+            hash = 31 * hash + keys[k] * 0xF0F0F0 + values[k].hashCode();
+        return hash;
+    }
+
+    @Override
+    public Container iadd(final long begin, final long end) {
+        return rangeOp(begin, end, OR);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Container iand(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, AND, true);
+        return super.iand(x);
+    }
+
+    @Override
+    public Container iandNot(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, ANDNOT, true);
+        return super.iandNot(x);
+    }
+
+    @Override
+    public Container inot(final long begin, final long end) {
+        return rangeOp(begin, end, XOR);
+    }
+
+    @Override
+    public Container ior(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, OR, true);
+        return super.ior(x);
+    }
+
+    @Override
+    public Container iremove(final long begin, final long end) {
+        return rangeOp(begin, end, ANDNOT);
+    }
+
+    @Override
+    public Container ixor(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, XOR, true);
+        return super.ixor(x);
+    }
+
+    @Override
+    protected long intersectionCount(final Container x, final boolean any) {
+        if (!(x instanceof NestedContainer))
+            return super.intersectionCount(x, any);
+        final NestedContainer other = (NestedContainer) x;
+        long count = 0;
+        int pos1 = 0;
+        int pos2 = 0;
+        while (pos1 < size && pos2 < other.size) {
+            final int k1 = Util.toIntUnsigned(keys[pos1]);
+            final int k2 = Util.toIntUnsigned(other.keys[pos2]);
+            if (k1 == k2) {
+                count += values[pos1].andCardinality(other.values[pos2], any);
+                if (any && count > 0)
+                    return 1;
+                ++pos1;
+                ++pos2;
+            } else if (k1 < k2) {
+                pos1 = Util.advanceUntil(keys, pos1, size, other.keys[pos2]);
+            } else {
+                pos2 = Util.advanceUntil(other.keys, pos2, other.size, keys[pos1]);
+            }
+        }
+        return count;
+    }
+
+    private void insertNewKeyValueAt(final int i, final short key, final ShortContainer value) {
+        if (size == keys.length) {
+            final int newCapacity = size < DEFAULT_INIT_SIZE ? DEFAULT_INIT_SIZE
+                    : size < 1024 ? 2 * size : 5 * size / 4;
+            keys = Arrays.copyOf(keys, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        keys[i] = key;
+        values[i] = value;
+        ++size;
+        invalidateFrom(i);
+    }
+
+    private void invalidateFrom(final int i) {
+        final PrefixCardinalities p = prefix;
+        if (p != null && i < p.valid)
+            prefix = p.truncate(i);
+    }
+
+    // 前end项有效的前缀基数；不够时在局部数组中补算全部size项，算完再整体发布
+    private long[] prefixSums(final int end) {
+        final PrefixCardinalities p = prefix;
+        if (p != null && p.valid >= end)
+            return p.sums;
+        final long[] sums = new long[size];
+        int k = 0;
+        long sum = 0;
+        if (p != null) {
+            k = p.valid;
+            System.arraycopy(p.sums, 0, sums, 0, k);
+            sum = sums[k - 1];
+        }
+        for (; k < size; ++k) {
+            sum += values[k].getCardinality();
+            sums[k] = sum;
+        }
+        prefix = new PrefixCardinalities(sums, size);
+        return sums;
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            final IntegerIterator si = NestedContainer.this.getIntegerIterator();
+
+            @Override
+            public boolean hasNext() {
+                return si.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                return si.next();
+            }
+
+            @Override
+            public void remove() {
+                si.remove();
+            }
+        };
+    }
+
+    /**
+     * Lazy in-place union used by FastAggregation: every touched
+     * sub-container becomes a bitmap and is OR-ed word by word without
+     * maintaining cardinalities, except fully covered ones, which become a
+     * single full run. Call repairAfterLazy() once done.
+     * 惰性并集，基数在repairAfterLazy中统一计算
+     *
+     * @param x container to merge in (not modified)
+     */
+    void lazyIOr(final Container x) {
+        if (x instanceof NestedContainer) {
+            final NestedContainer nc = (NestedContainer) x;
+            for (int k = 0; k < nc.size; ++k) {
+                final ShortContainer c = nc.values[k];
+                if (isFull(c)) {
+                    lazyFull(nc.keys[k]);
+                    continue;
+                }
+                final long[] words = lazyWords(nc.keys[k]);
+                if (words == null)
+                    continue;
+                if (c instanceof ShortBitmapContainer) {
+                    final long[] src = ((ShortBitmapContainer) c).bitmap;
+                    for (int w = 0; w < ShortBitmapContainer.WORDS; ++w)
+                        words[w] |= src[w];
+                } else if (c instanceof ShortRunContainer) {
+                    final ShortRunContainer rc = (ShortRunContainer) c;
+                    for (int i = 0; i < rc.nbrruns; ++i)
+                        Util.setBitmapRange(words, rc.getStart(i), rc.getEnd(i) + 1);
+                } else {
+                    final ShortArrayContainer ac = (ShortArrayContainer) c;
+                    for (int i = 0; i < ac.cardinality; ++i)
+                        words[Util.toIntUnsigned(ac.content[i]) >>> 6] |= 1L << ac.content[i];
+                }
+            }
+        } else if (x instanceof RunContainer) {
+            final RunContainer rc = (RunContainer) x;
+            for (int i = 0; i < rc.nbrruns; ++i) {
+                final long start = rc.getStart(i);
+                final long end = rc.getEnd(i) + 1;
+                // 一段可能跨多个子container，整个被覆盖的子container直接用满的行程编码
+                for (long hs = start >>> 16; hs <= (end - 1) >>> 16; ++hs) {
+                    final long base = hs << 16;
+                    final int from = (int) (Math.max(start, base) - base);
+                    final int to = (int) (Math.min(end, base + (1 << 16)) - base);
+                    if (to - from == 1 << 16) {
+                        lazyFull((short) hs);
+                        continue;
+                    }
+                    final long[] words = lazyWords((short) hs);
+                    if (words != null)
+                        Util.setBitmapRange(words, from, to);
+                }
+            }
+        } else if (x instanceof BitmapContainer) {
+            // 一页64个long，16页对应一个子container
+            final BitmapContainer bc = (BitmapContainer) x;
+            for (int d = 0; d < BitmapContainer.DIR_SIZE; ++d) {
+                final long[][] dir = bc.pages[d];
+                if (dir == null)
+                    continue;
+                for (int p = 0; p < BitmapContainer.DIR_SIZE; ++p) {
+                    if (dir[p] == null)
+                        continue;
+                    final int page = (d << BitmapContainer.DIR_BITS) | p;
+                    final long[] words = lazyWords((short) (page >>> 4));
+                    if (words == null)
+                        continue;
+                    final int offset = (page & 15) * BitmapContainer.PAGE_WORDS;
+                    for (int w = 0; w < BitmapContainer.PAGE_WORDS; ++w)
+                        words[offset + w] |= dir[p][w];
+                }
+            }
+        } else {
+            final IntegerIterator it = x.getIntegerIterator();
+            while (it.hasNext()) {
+                final int v = it.next();
+                final long[] words = lazyWords((short) (v >>> 16));
+                if (words != null)
+                    words[(v & 0xFFFF) >>> 6] |= 1L << v;
+            }
+        }
+    }
+
+    // 满的16位子container
+    private static boolean isFull(final ShortContainer c) {
+        return c instanceof ShortRunContainer && c.getCardinality() == 1 << 16;
+    }
+
+    // 整个16位key都被覆盖时换成满的行程编码，不再分配bitmap
+    private void lazyFull(final short key) {
+        final int i = getIndex(key);
+        if (i < 0) {
+            insertNewKeyValueAt(-i - 1, key, ShortRunContainer.range(0, 1 << 16));
+        } else if (!isFull(values[i])) {
+            values[i] = ShortRunContainer.range(0, 1 << 16);
+            invalidateFrom(i);
+        }
+    }
+
+    // 取得key对应的bitmap子container的words，不存在或不是bitmap则转换；已经满了返回null
+    private long[] lazyWords(final short key) {
+        final int i = getIndex(key);
+        if (i < 0) {
+            final ShortBitmapContainer bc = new ShortBitmapContainer();
+            insertNewKeyValueAt(-i - 1, key, bc);
+            return bc.bitmap;
+        }
+        if (isFull(values[i]))
+            return null;
+        if (!(values[i] instanceof ShortBitmapContainer)) {
+            values[i] = new ShortBitmapContainer(0, values[i].toWords().clone());
+            invalidateFrom(i);
+        }
+        return ((ShortBitmapContainer) values[i]).bitmap;
+    }
+
+    protected void loadData(final ArrayContainer arrayContainer) {
+        for (int k = 0; k < arrayContainer.cardinality; ++k)
+            add(arrayContainer.content[k]);
+    }
+
+    /**
+     * Walks both key arrays in merge order and combines sub-containers with
+     * equal keys.
+     *
+     * @param x       other container
+     * @param op      one of AND, OR, XOR, ANDNOT
+     * @param inPlace whether sub-containers of this container may be reused
+     * @return the result, converted to an array container when small
+     */
+    private Container merge(final NestedContainer x, final int op, final boolean inPlace) {
+        final NestedContainer answer = new NestedContainer();
+        int pos1 = 0;
+        int pos2 = 0;
+        while (pos1 < size || pos2 < x.size) {
+            final int k1 = pos1 < size ? Util.toIntUnsigned(keys[pos1]) : Integer.MAX_VALUE;
+            final int k2 = pos2 < x.size ? Util.toIntUnsigned(x.keys[pos2]) : Integer.MAX_VALUE;
+            if (k1 == k2) {
+                final ShortContainer c;
+                switch (op) {
+                    case AND:
+                        c = values[pos1].and(x.values[pos2]);
+                        break;
+                    case OR:
+                        c = values[pos1].or(x.values[pos2]);
+                        break;
+                    case XOR:
+                        c = values[pos1].xor(x.values[pos2]);
+                        break;
+                    default:
+                        c = values[pos1].andNot(x.values[pos2]);
+                }
+                if (c.getCardinality() > 0)
+                    answer.append(keys[pos1], c);
+                ++pos1;
+                ++pos2;
+            } else if (k1 < k2) {
+                if (op != AND)
+                    answer.append(keys[pos1], inPlace ? values[pos1] : values[pos1].clone());
+                ++pos1;
+            } else {
+                if (op == OR || op == XOR)
+                    answer.append(x.keys[pos2], x.values[pos2].clone());
+                ++pos2;
+            }
+            if (op == AND && (pos1 == size || pos2 == x.size))
+                break;
+            if (op == ANDNOT && pos1 == size)
+                break;
+        }
+        if (answer.cardinality <= ArrayContainer.DEFAULT_MAX_SIZE)
+            return answer.toArrayContainer();
+        return answer;
+    }
+
+    @Override
+    public Container or(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, OR, false);
+        return super.or(x);
+    }
+
+    @Override
+    long previousValue(final long from) {
+        if (from < 0)
+            return -1;
+        final long x = Math.min(from, 0xFFFFFFFFL);
+        int k = Util.unsignedBinarySearch(keys, 0, size, (short) (x >>> 16));
+        if (k >= 0) {
+            final int v = values[k].previousValue((int) x & 0xFFFF);
+            if (v >= 0)
+                return (long) Util.toIntUnsigned(keys[k]) << 16 | v;
+            --k;
+        } else {
+            k = -k - 2;
+        }
+        // 上一个子container的最大值
+        return k < 0 ? -1 : (long) Util.toIntUnsigned(keys[k]) << 16 | values[k].previousValue(0xFFFF);
+    }
+
+    @Override
+    long rank(final long x) {
+        final int i = getIndex((short) (x >>> 16));
+        final int pos = i >= 0 ? i : -i - 1;
+        final long before = pos == 0 ? 0 : prefixSums(pos)[pos - 1];
+        if (i < 0)
+            return before;
+        return before + values[i].cardinalityInRange(0, (int) (x & 0xFFFF) + 1);
+    }
+
+    @Override
+    public Container remove(final int x) {
+        final int i = getIndex((short) (x >>> 16));
+        if (i < 0)
+            return this;
+        final ShortContainer c = values[i];
+        final int before = c.getCardinality();
+        values[i] = c.remove((short) x);
+        final int after = values[i].getCardinality();
+        if (after == before)
+            return this;
+        cardinality += after - before;
+        invalidateFrom(i);
+        if (after == 0)
+            removeAtIndex(i);
+        // the uncommon path
+        if (cardinality == ArrayContainer.DEFAULT_MAX_SIZE)
+            return toArrayContainer();
+        return this;
+    }
+
+    private void removeAtIndex(final int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        values[--size] = null;
+        invalidateFrom(i);
+    }
+
+    // 32位行程编码下的段数，跨子container相接的段只计一次
+    int numberOfRuns() {
+        int runs = 0;
+        for (int k = 0; k < size; ++k) {
+            runs += values[k].numberOfRuns();
+            if (k > 0 && Util.toIntUnsigned(keys[k]) == Util.toIntUnsigned(keys[k - 1]) + 1
+                    && values[k - 1].contains(Util.maxLowBit()) && values[k].contains((short) 0))
+                --runs;
+        }
+        return runs;
+    }
+
+    // 按16位key拆分[begin, end)，逐个子container做区间运算，一次性重建keys/values
+    private Container rangeOp(final long begin, final long end, final int op) {
+        final int firstKey = (int) (begin >>> 16);
+        final int lastKey = (int) ((end - 1) >>> 16);
+        final int capacity = op == ANDNOT ? size : size + lastKey - firstKey + 1;
+        final short[] newKeys = new short[capacity];
+        final ShortContainer[] newValues = new ShortContainer[capacity];
+        int n = 0, k = 0;
+        while (k < size && Util.toIntUnsigned(keys[k]) < firstKey) {
+            newKeys[n] = keys[k];
+            newValues[n++] = values[k++];
+        }
+        for (int hs = firstKey; hs <= lastKey; ++hs) {
+            final ShortContainer c = k < size && Util.toIntUnsigned(keys[k]) == hs ? values[k++] : null;
+            if (c == null && op == ANDNOT)
+                continue;
+            final int from = hs == firstKey ? (int) (begin & 0xFFFF) : 0;
+            final int to = hs == lastKey ? (int) ((end - 1) & 0xFFFF) + 1 : 1 << 16;
+            final ShortRunContainer range = ShortRunContainer.range(from, to);
+            // 与区间运算后往往有长的连续段，顺便选最小的表示
+            final ShortContainer answer;
+            if (c == null || op == OR && to - from == 1 << 16)
+                answer = range;
+            else if (op == OR)
+                answer = c.or(range).runOptimize();
+            else if (op == ANDNOT)
+                answer = c.andNot(range).runOptimize();
+            else
+                answer = c.xor(range).runOptimize();
+            if (answer.getCardinality() > 0) {
+                newKeys[n] = (short) hs;
+                newValues[n++] = answer;
+            }
+        }
+        while (k < size) {
+            newKeys[n] = keys[k];
+            newValues[n++] = values[k++];
+        }
+        keys = newKeys;
+        values = newValues;
+        size = n;
+        prefix = null;
+        cardinality = 0;
+        for (int i = 0; i < size; ++i)
+            cardinality += values[i].getCardinality();
+        if (op != OR && cardinality <= ArrayContainer.DEFAULT_MAX_SIZE)
+            return toArrayContainer();
+        return this;
+    }
+
+    /**
+     * Recompute cardinalities after lazyIOr, converting sparse
+     * sub-containers back to arrays.
+     *
+     * @return this container, or an array container when small
+     */
+    Container repairAfterLazy() {
+        cardinality = 0;
+        prefix = null;
+        // 满的container有2^32个值，超出int
+        long total = 0;
+        for (int k = 0; k < size; ++k) {
+            if (values[k] instanceof ShortBitmapContainer) {
+                final ShortBitmapContainer bc = (ShortBitmapContainer) values[k];
+                int card = 0;
+                for (int w = 0; w < ShortBitmapContainer.WORDS; ++w)
+                    card += Long.bitCount(bc.bitmap[w]);
+                bc.cardinality = card;
+                if (card <= ShortArrayContainer.DEFAULT_MAX_SIZE)
+                    values[k] = bc.toArrayContainer();
+            }
+            cardinality += values[k].getCardinality();
+            total += values[k].getCardinality();
+        }
+        if (total == 1L << 32)
+            return new RunContainer(0, -1);
+        if (cardinality <= ArrayContainer.DEFAULT_MAX_SIZE)
+            return toArrayContainer();
+        return this;
+    }
+
+    /**
+     * Convert every sub-container to its smallest representation, and the
+     * whole container to a RunContainer when that is smaller still.
+     *
+     * @return this or a new container
+     */
+    @Override
+    public Container runOptimize() {
+        for (int k = 0; k < size; ++k) {
+            final ShortContainer c = values[k].runOptimize();
+            if (c == values[k])
+                continue;
+            // 与快照共享时不能原地替换子container，复制后再优化
+            if (shared)
+                return clone().runOptimize();
+            values[k] = c;
+        }
+        final int runs = numberOfRuns();
+        if (RunContainer.sizeInBytes(runs) >= getArraySizeInBytes())
+            return this;
+        final RunContainer rc = new RunContainer();
+        for (int k = 0; k < size; ++k) {
+            final long hs = Util.toIntUnsigned(keys[k]) << 16;
+            final ShortRunContainer src = ShortRunContainer.from(values[k]);
+            for (int i = 0; i < src.nbrruns; ++i)
+                rc.appendRun(hs + src.getStart(i), hs + src.getEnd(i));
+        }
+        return rc;
+    }
+
+    @Override
+    int select(final long j) {
+        final long[] cumulative = prefixSums(size);
+        if (j >= 0 && size > 0 && j < cumulative[size - 1]) {
+            // 二分查找第一个前缀基数大于j的子container
+            int low = 0, high = size - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (cumulative[mid] <= j)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            final long before = low == 0 ? 0 : cumulative[low - 1];
+            return Util.toIntUnsigned(keys[low]) << 16 | values[low].select((int) (j - before));
+        }
+        throw new IllegalArgumentException("select " + j + " when the cardinality is " + cardinality);
+    }
+
+    @Override
+    public int serializedSizeInBytes() {
+        int size = 4 + 9 * this.size;
+        for (int k = 0; k < this.size; ++k)
+            size += values[k].serializedSizeInBytes();
+        return size;
+    }
+
+    @Override
+    byte serializedType() {
+        return NESTED_TYPE;
+    }
+
+    /**
+     * Copies the data to an array container
+     *
+     * @return the array container
+     */
+    public ArrayContainer toArrayContainer() {
+        final int[] content = new int[cardinality];
+        int pos = 0;
+        for (int k = 0; k < size; ++k) {
+            final int hs = Util.toIntUnsigned(keys[k]) << 16;
+            final ShortIterator it = values[k].getShortIterator();
+            while (it.hasNext())
+                content[pos++] = hs | Util.toIntUnsigned(it.next());
+        }
+        return new ArrayContainer(content);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        final IntegerIterator it = getIntegerIterator();
+        while (it.hasNext()) {
+            sb.append(Util.toLongUnsigned(it.next()));
+            if (it.hasNext())
+                sb.append(",");
+        }
+        return sb.append("}").toString();
+    }
+
+    @Override
+    public Container xor(final Container x) {
+        if (x instanceof NestedContainer)
+            return merge((NestedContainer) x, XOR, false);
+        return super.xor(x);
+    }
+
+    @Override
+    public void trim() {
+        keys = Arrays.copyOf(keys, size);
+        values = Arrays.copyOf(values, size);
+        for (int k = 0; k < size; ++k)
+            values[k].trim();
+    }
+
+    @Override
+    protected void writeArray(final ByteBuffer out) {
+        // 子container个数，key，类型，基数-1，相对本container起点的偏移，再依次写子container
+        out.putInt(size);
+        for (int k = 0; k < size; ++k)
+            out.putShort(keys[k]);
+        for (int k = 0; k < size; ++k)
+            out.put(values[k].serializedType());
+        for (int k = 0; k < size; ++k)
+            out.putShort((short) (values[k].getCardinality() - 1));
+        int offset = 4 + 9 * size;
+        for (int k = 0; k < size; ++k) {
+            out.putInt(offset);
+            offset += values[k].serializedSizeInBytes();
+        }
+        for (int k = 0; k < size; ++k)
+            values[k].writeArray(out);
+    }
+}
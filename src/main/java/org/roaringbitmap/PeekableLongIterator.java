@@ -0,0 +1,23 @@
+package org.roaringbitmap;
+
+/**
+ * 可以查看下一个值而不前进的 LongIterator，便于多个有序序列归并
+ */
+public interface PeekableLongIterator extends LongIterator {
+    /**
+     * Look at the next value without advancing the iterator. The caller
+     * must check hasNext() first.
+     *
+     * @return next value
+     */
+    long peekNext();
+
+    /**
+     * Skip the values smaller than minValue, so that the next value is
+     * the first one not smaller than minValue. Jumps over whole containers
+     * instead of visiting every value.
+     *
+     * @param minValue smallest value to keep
+     */
+    void advanceIfNeeded(long minValue);
+}
@@ -0,0 +1,28 @@
+package org.roaringbitmap;
+
+/**
+ * 前缀基数：sums[k]为第0..k个container的基数之和，前valid项有效。
+ * 发布后不再修改，所有者通过一个volatile引用整体替换，
+ * 多个线程同时读未被修改的bitmap时不会看到填了一半的数组。
+ */
+final class PrefixCardinalities {
+    final long[] sums;
+
+    final int valid;
+
+    PrefixCardinalities(final long[] sums, final int valid) {
+        this.sums = sums;
+        this.valid = valid;
+    }
+
+    /**
+     * The same prefix sums with the entries from index i on invalidated;
+     * the array is shared, never written.
+     *
+     * @param i first invalid index, smaller than valid
+     * @return the prefix sums to publish, null when nothing is left valid
+     */
+    PrefixCardinalities truncate(final int i) {
+        return i == 0 ? null : new PrefixCardinalities(sums, i);
+    }
+}
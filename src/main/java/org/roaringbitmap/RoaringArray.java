@@ -86,9 +86,46 @@ public final class RoaringArray implements Cloneable {
         }
     }
 
+    /**
+     * Find the smallest index larger than pos such that the key at that
+     * index is greater or equal to x, using galloping. Returns size if none.
+     *
+     * @param x   minimum key
+     * @param pos starting position (exclusive)
+     * @return the index
+     */
+    protected int advanceUntil(short x, int pos) {
+        final int ikey = Util.toIntUnsigned(x);
+        int lower = pos + 1;
+        if (lower >= size || Util.toIntUnsigned(array[lower].key) >= ikey)
+            return lower;
+        int spansize = 1;
+        while (lower + spansize < size && Util.toIntUnsigned(array[lower + spansize].key) < ikey)
+            spansize *= 2;
+        int upper = (lower + spansize < size) ? lower + spansize : size - 1;
+        if (Util.toIntUnsigned(array[upper].key) < ikey)
+            return size;
+        lower += (spansize / 2);
+        // 在(lower, upper]中二分
+        while (lower + 1 != upper) {
+            final int mid = (lower + upper) >>> 1;
+            if (Util.toIntUnsigned(array[mid].key) < ikey)
+                lower = mid;
+            else
+                upper = mid;
+        }
+        return upper;
+    }
+
+    // 前缀基数用到时才补算，见PrefixCardinalities
+    protected long cardinalityBefore(int i) {
+        return i == 0 ? 0 : prefixSums(i)[i - 1];
+    }
+
     protected void clear() {
         this.array = null;
         this.size = 0;
+        this.prefix = null;
     }
 
     @Override
@@ -99,6 +136,46 @@ public final class RoaringArray implements Cloneable {
         for (int k = 0; k < this.size; ++k)
             sa.array[k] = sa.array[k].clone();
         sa.size = this.size;
+        sa.prefix = null;
+        return sa;
+    }
+
+    // 前end项有效的前缀基数；不够时在局部数组中补算全部size项，算完再整体发布
+    private long[] prefixSums(int end) {
+        final PrefixCardinalities p = prefix;
+        if (p != null && p.valid >= end)
+            return p.sums;
+        final long[] sums = new long[size];
+        int k = 0;
+        long sum = 0;
+        if (p != null) {
+            k = p.valid;
+            System.arraycopy(p.sums, 0, sums, 0, k);
+            sum = sums[k - 1];
+        }
+        for (; k < size; ++k) {
+            sum += array[k].value.getLongCardinality();
+            sums[k] = sum;
+        }
+        prefix = new PrefixCardinalities(sums, size);
+        return sums;
+    }
+
+    /**
+     * A copy that shares every container with this array, in O(size). The
+     * containers are marked shared, so that whichever array modifies one
+     * of them later copies it first.
+     *
+     * @return the snapshot
+     */
+    protected RoaringArray snapshot() {
+        final RoaringArray sa = new RoaringArray();
+        sa.array = new Element[Math.max(this.size, INITIAL_CAPACITY)];
+        for (int k = 0; k < this.size; ++k) {
+            this.array[k].value.shared = true;
+            sa.array[k] = new Element(this.array[k].key, this.array[k].value);
+        }
+        sa.size = this.size;
         return sa;
     }
 
@@ -145,6 +222,14 @@ public final class RoaringArray implements Cloneable {
         return this.array[i].value;
     }
 
+    // 与快照共享的container先复制一份替换进来，之后可以原地修改
+    protected Container getWritableContainerAtIndex(int i) {
+        final Element e = this.array[i];
+        if (e.value.shared)
+            e.value = e.value.clone();
+        return e.value;
+    }
+
     // involves a binary search
     protected int getIndex(short x) {
         // before the binary search, we optimize for frequent cases
@@ -166,15 +251,44 @@ public final class RoaringArray implements Cloneable {
     	return hashvalue;
     }
 
+    // 第j个值（从0开始）所在container的下标，超出基数时返回size
+    protected int indexOfRank(long j) {
+        final long[] sums = prefixSums(size);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sums[mid] <= j)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
     // insert a new key, it is assumed that it does not exist
     protected void insertNewKeyValueAt(int i, short key, Container value) {
+        invalidateFrom(i);
         extendArray(1);
         System.arraycopy(array, i, array, i + 1, size - i);
         array[i] = new Element(key, value);
         size++;
     }
 
+    // 下标i及之后的前缀基数失效
+    private void invalidateFrom(int i) {
+        final PrefixCardinalities p = prefix;
+        if (p != null && i < p.valid)
+            prefix = p.truncate(i);
+    }
+
+    protected void replaceKeyAndContainerAtIndex(int i, short key, Container c) {
+        invalidateFrom(i);
+        this.array[i] = new Element(key, c);
+    }
+
     protected void resize(int newLength) {
+        invalidateFrom(newLength);
         for (int k = newLength; k < this.size; ++k) {
             this.array[k] = null;
         }
@@ -191,6 +305,7 @@ public final class RoaringArray implements Cloneable {
     }
 
     protected void removeAtIndex(int i) {
+        invalidateFrom(i);
         System.arraycopy(array, i + 1, array, i, size - i - 1);
         array[size - 1] = null;
         size--;
@@ -202,6 +317,7 @@ public final class RoaringArray implements Cloneable {
      * @param c   Container
      */
     protected void setContainerAtIndex(int i, Container c) {
+        invalidateFrom(i);
         this.array[i].value = c;
     }
 
@@ -232,6 +348,8 @@ public final class RoaringArray implements Cloneable {
 
     protected int size = 0;
 
+    private volatile PrefixCardinalities prefix = null;
+
     private static final int INITIAL_CAPACITY = 4;
 
     protected static final class Element implements Cloneable {
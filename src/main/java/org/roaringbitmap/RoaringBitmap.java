@@ -6,13 +6,41 @@
 package org.roaringbitmap;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.LongConsumer;
 
 /**
  * RoaringBitmap, a compressed alternative to the BitSet.
  * 主类
  */
-public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
+public final class RoaringBitmap implements Cloneable, Iterable<Long> {
+
+    /**
+     * First 16 bits of a serialized bitmap, the next 16 bits hold the
+     * format version.
+     */
+    public static final int SERIAL_COOKIE = 0x4D42;
+
+    public static final int SERIAL_VERSION = 1;
+
+    /**
+     * First 16 bits of a bitmap written by serializeCompressed, the next 16
+     * bits hold the format version.
+     */
+    public static final int COMPRESSED_COOKIE = 0x4D43;
+
+    public static final int COMPRESSED_VERSION = 1;
+
+    // 序列化头部：cookie(4) + 总字节数(4) + container个数(4)
+    static final int HEADER_SIZE = 12;
+
+    // 每个container的索引项：key(2) + 类型(1) + 基数(4) + 偏移(4)
+    static final int INDEX_ENTRY_SIZE = 11;
 
     protected RoaringArray highLowContainer = null;
 
@@ -23,6 +51,329 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         highLowContainer = new RoaringArray();
     }
 
+    /**
+     * Bitwise AND (intersection) operation. The provided bitmaps are *not*
+     * modified. This operation is thread-safe as long as the provided
+     * bitmaps remain unchanged.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap and(final RoaringBitmap x1, final RoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        final int length1 = x1.highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = x1.highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = x1.highLowContainer.getContainerAtIndex(pos1)
+                        .and(x2.highLowContainer.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    answer.highLowContainer.append(s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                pos1 = x1.highLowContainer.advanceUntil(s2, pos1);
+            } else {
+                pos2 = x2.highLowContainer.advanceUntil(s1, pos2);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Cardinality of the bitwise AND (intersection) operation, computed
+     * without building the intersection. The provided bitmaps are *not*
+     * modified.
+     * 只统计个数，不生成结果bitmap
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return cardinality of the intersection
+     */
+    public static long andCardinality(final RoaringBitmap x1, final RoaringBitmap x2) {
+        long answer = 0;
+        int pos1 = 0, pos2 = 0;
+        final int length1 = x1.highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = x1.highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                answer += x1.highLowContainer.getContainerAtIndex(pos1)
+                        .andCardinality(x2.highLowContainer.getContainerAtIndex(pos2));
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                pos1 = x1.highLowContainer.advanceUntil(s2, pos1);
+            } else {
+                pos2 = x2.highLowContainer.advanceUntil(s1, pos2);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Cardinality of the bitwise ANDNOT (difference) operation, computed
+     * without building the difference. The provided bitmaps are *not*
+     * modified.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return cardinality of the difference
+     */
+    public static long andNotCardinality(final RoaringBitmap x1, final RoaringBitmap x2) {
+        return x1.getLongCardinality() - andCardinality(x1, x2);
+    }
+
+    /**
+     * Checks whether the two bitmaps intersect, stopping at the first
+     * common value. The provided bitmaps are *not* modified.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return whether they have at least one value in common
+     */
+    public static boolean intersects(final RoaringBitmap x1, final RoaringBitmap x2) {
+        int pos1 = 0, pos2 = 0;
+        final int length1 = x1.highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = x1.highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                if (x1.highLowContainer.getContainerAtIndex(pos1)
+                        .intersects(x2.highLowContainer.getContainerAtIndex(pos2)))
+                    return true;
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                pos1 = x1.highLowContainer.advanceUntil(s2, pos1);
+            } else {
+                pos2 = x2.highLowContainer.advanceUntil(s1, pos2);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cardinality of the bitwise OR (union) operation, computed without
+     * building the union. The provided bitmaps are *not* modified.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return cardinality of the union
+     */
+    public static long orCardinality(final RoaringBitmap x1, final RoaringBitmap x2) {
+        return x1.getLongCardinality() + x2.getLongCardinality() - andCardinality(x1, x2);
+    }
+
+    /**
+     * Bitwise ANDNOT (difference) operation. The provided bitmaps are *not*
+     * modified. This operation is thread-safe as long as the provided
+     * bitmaps remain unchanged.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap andNot(final RoaringBitmap x1, final RoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        final int length1 = x1.highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = x1.highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = x1.highLowContainer.getContainerAtIndex(pos1)
+                        .andNot(x2.highLowContainer.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    answer.highLowContainer.append(s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                final int nextPos1 = x1.highLowContainer.advanceUntil(s2, pos1);
+                answer.highLowContainer.appendCopy(x1.highLowContainer, pos1, nextPos1);
+                pos1 = nextPos1;
+            } else {
+                pos2 = x2.highLowContainer.advanceUntil(s1, pos2);
+            }
+        }
+        if (pos2 == length2)
+            answer.highLowContainer.appendCopy(x1.highLowContainer, pos1, length1);
+        return answer;
+    }
+
+    /**
+     * Bitwise OR (union) operation. The provided bitmaps are *not*
+     * modified. This operation is thread-safe as long as the provided
+     * bitmaps remain unchanged.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap or(final RoaringBitmap x1, final RoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        final int length1 = x1.highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = x1.highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                answer.highLowContainer.append(s1, x1.highLowContainer.getContainerAtIndex(pos1)
+                        .or(x2.highLowContainer.getContainerAtIndex(pos2)));
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                answer.highLowContainer.appendCopy(x1.highLowContainer, pos1);
+                ++pos1;
+            } else {
+                answer.highLowContainer.appendCopy(x2.highLowContainer, pos2);
+                ++pos2;
+            }
+        }
+        if (pos1 == length1)
+            answer.highLowContainer.appendCopy(x2.highLowContainer, pos2, length2);
+        else
+            answer.highLowContainer.appendCopy(x1.highLowContainer, pos1, length1);
+        return answer;
+    }
+
+    /**
+     * Bitwise XOR (symmetric difference) operation. The provided bitmaps
+     * are *not* modified. This operation is thread-safe as long as the
+     * provided bitmaps remain unchanged.
+     *
+     * @param x1 first bitmap
+     * @param x2 other bitmap
+     * @return result of the operation
+     */
+    public static RoaringBitmap xor(final RoaringBitmap x1, final RoaringBitmap x2) {
+        final RoaringBitmap answer = new RoaringBitmap();
+        int pos1 = 0, pos2 = 0;
+        final int length1 = x1.highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = x1.highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = x1.highLowContainer.getContainerAtIndex(pos1)
+                        .xor(x2.highLowContainer.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    answer.highLowContainer.append(s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                answer.highLowContainer.appendCopy(x1.highLowContainer, pos1);
+                ++pos1;
+            } else {
+                answer.highLowContainer.appendCopy(x2.highLowContainer, pos2);
+                ++pos2;
+            }
+        }
+        if (pos1 == length1)
+            answer.highLowContainer.appendCopy(x2.highLowContainer, pos2, length2);
+        else
+            answer.highLowContainer.appendCopy(x1.highLowContainer, pos1, length1);
+        return answer;
+    }
+
+    /**
+     * Generate a new bitmap with all values in [rangeStart, rangeEnd)
+     * added. The provided bitmap is *not* modified.
+     *
+     * @param bm         bitmap
+     * @param rangeStart inclusive beginning of range
+     * @param rangeEnd   exclusive ending of range, at most 2^48
+     * @return a new bitmap
+     */
+    public static RoaringBitmap add(final RoaringBitmap bm, final long rangeStart, final long rangeEnd) {
+        return rangeOp(bm, rangeStart, rangeEnd, Container.OR);
+    }
+
+    /**
+     * Generate a new bitmap with all values in [rangeStart, rangeEnd)
+     * complemented. The provided bitmap is *not* modified.
+     *
+     * @param bm         bitmap
+     * @param rangeStart inclusive beginning of range
+     * @param rangeEnd   exclusive ending of range, at most 2^48
+     * @return a new bitmap
+     */
+    public static RoaringBitmap flip(final RoaringBitmap bm, final long rangeStart, final long rangeEnd) {
+        return rangeOp(bm, rangeStart, rangeEnd, Container.XOR);
+    }
+
+    /**
+     * Generate a new bitmap with all values in [rangeStart, rangeEnd)
+     * removed. The provided bitmap is *not* modified.
+     *
+     * @param bm         bitmap
+     * @param rangeStart inclusive beginning of range
+     * @param rangeEnd   exclusive ending of range, at most 2^48
+     * @return a new bitmap
+     */
+    public static RoaringBitmap remove(final RoaringBitmap bm, final long rangeStart, final long rangeEnd) {
+        return rangeOp(bm, rangeStart, rangeEnd, Container.ANDNOT);
+    }
+
+    // 区间之外的container直接复制，区间内逐个高位key处理
+    private static RoaringBitmap rangeOp(final RoaringBitmap bm, final long rangeStart, final long rangeEnd,
+                                         final int op) {
+        rangeSanityCheck(rangeStart, rangeEnd);
+        if (rangeStart >= rangeEnd)
+            return bm.clone();
+        final int hbStart = (int) (rangeStart >>> 32);
+        final int hbLast = (int) ((rangeEnd - 1) >>> 32);
+        final RoaringBitmap answer = new RoaringBitmap();
+        answer.highLowContainer.appendCopiesUntil(bm.highLowContainer, (short) hbStart);
+        for (int hb = hbStart; hb <= hbLast; ++hb) {
+            final Container c = bm.highLowContainer.getContainer((short) hb);
+            final Container result = rangeOp(c == null ? null : c.clone(), containerStart(hb, hbStart, rangeStart),
+                    containerEnd(hb, hbLast, rangeEnd), op);
+            if (result != null)
+                answer.highLowContainer.append((short) hb, result);
+        }
+        answer.highLowContainer.appendCopiesAfter(bm.highLowContainer, (short) hbLast);
+        return answer;
+    }
+
+    /**
+     * Apply a range operation to one container.
+     *
+     * @param c     the container, null if the key is absent (may be modified)
+     * @param begin first low value (inclusive)
+     * @param end   last low value (exclusive), at most 2^32
+     * @param op    Container.OR, ANDNOT or XOR
+     * @return the new container, or null if empty
+     */
+    private static Container rangeOp(final Container c, final long begin, final long end, final int op) {
+        if (c == null)
+            return op == Container.ANDNOT ? null : Container.rangeOfOnes((int) begin, (int) (end - 1));
+        // 满的container基数会溢出为0，置1不会变空，因此不检查
+        if (op == Container.OR)
+            return c.iadd(begin, end);
+        final Container answer = op == Container.ANDNOT ? c.iremove(begin, end) : c.inot(begin, end);
+        return answer.isEmpty() ? null : answer;
+    }
+
+    // 区间在高位key为hb的container中的起点
+    private static long containerStart(final int hb, final int hbStart, final long rangeStart) {
+        return hb == hbStart ? rangeStart & 0xFFFFFFFFL : 0;
+    }
+
+    // 区间在高位key为hb的container中的终点（不含）
+    private static long containerEnd(final int hb, final int hbLast, final long rangeEnd) {
+        return hb == hbLast ? ((rangeEnd - 1) & 0xFFFFFFFFL) + 1 : 1L << 32;
+    }
+
+    private static void rangeSanityCheck(final long rangeStart, final long rangeEnd) {
+        if (rangeStart < 0 || rangeStart > 1L << 48)
+            throw new IllegalArgumentException("rangeStart=" + rangeStart + " should be in [0, 2^48]");
+        if (rangeEnd < 0 || rangeEnd > 1L << 48)
+            throw new IllegalArgumentException("rangeEnd=" + rangeEnd + " should be in [0, 2^48]");
+    }
+
     /**
      * set the value to "true", whether it already appears or not.
      * 传入的是long型，实际小于48位
@@ -33,9 +384,13 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         final short hb = Util.highbits(x);
         final int i = highLowContainer.getIndex(hb);
         if (i >= 0) {
+            // 与快照共享的container只有真正改变时才复制
+            final Container c = highLowContainer.getContainerAtIndex(i);
+            if (c.shared && c.contains(Util.lowbits(x)))
+                return;
             // 将数据插入对应索引的container中
             highLowContainer.setContainerAtIndex(i,
-                    highLowContainer.getContainerAtIndex(i).add(Util.lowbits(x))
+                    highLowContainer.getWritableContainerAtIndex(i).add(Util.lowbits(x))
             );
         } else {
             // 如果没有则创建一个container
@@ -44,6 +399,148 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         }
     }
 
+    /**
+     * Add all values in [rangeStart, rangeEnd). Each container in the
+     * range is updated once instead of value by value.
+     *
+     * @param rangeStart inclusive beginning of range
+     * @param rangeEnd   exclusive ending of range, at most 2^48
+     */
+    public void add(final long rangeStart, final long rangeEnd) {
+        rangeOp(rangeStart, rangeEnd, Container.OR);
+    }
+
+    /**
+     * Add many values at once. The values are sorted and split by high
+     * key, so that each container is located once and receives all its
+     * values in one merge.
+     *
+     * @param values values to add (48 bits), in any order
+     */
+    public void addAll(final long... values) {
+        addAll(values, 0, values.length);
+    }
+
+    /**
+     * Add values[off, off + len) at once, see addAll(long...). The array
+     * is not modified.
+     *
+     * @param values values to add (48 bits), in any order
+     * @param off    first index
+     * @param len    number of values
+     */
+    public void addAll(final long[] values, final int off, final int len) {
+        // 与add(long)一致只取低48位，排序后按高16位分组
+        final long[] sorted = new long[len];
+        for (int k = 0; k < len; ++k)
+            sorted[k] = values[off + k] & 0xFFFFFFFFFFFFL;
+        Arrays.sort(sorted);
+        int start = 0;
+        while (start < len) {
+            final short hb = Util.highbits(sorted[start]);
+            int end = start + 1;
+            while (end < len && Util.highbits(sorted[end]) == hb)
+                ++end;
+            // 去重，同时统计连续段数，提前决定container类型
+            final int[] low = new int[end - start];
+            int card = 0, runs = 0;
+            for (int k = start; k < end; ++k) {
+                if (card > 0 && sorted[k] == sorted[k - 1])
+                    continue;
+                if (card == 0 || sorted[k] != sorted[k - 1] + 1)
+                    ++runs;
+                low[card++] = Util.lowbits(sorted[k]);
+            }
+            final Container batch;
+            if (RunContainer.sizeInBytes(runs) < (card > ArrayContainer.DEFAULT_MAX_SIZE ? 2 : 4) * card) {
+                final RunContainer rc = new RunContainer();
+                for (int k = 0; k < card; ++k)
+                    rc.appendRun(Util.toLongUnsigned(low[k]), Util.toLongUnsigned(low[k]));
+                batch = rc;
+            } else {
+                batch = Container.fromSortedArray(low, card);
+            }
+            final int i = highLowContainer.getIndex(hb);
+            if (i >= 0)
+                highLowContainer.setContainerAtIndex(i, highLowContainer.getWritableContainerAtIndex(i).ior(batch));
+            else
+                highLowContainer.insertNewKeyValueAt(-i - 1, hb, batch);
+            start = end;
+        }
+    }
+
+    /**
+     * In-place bitwise AND (intersection) operation. The current bitmap is
+     * modified.
+     *
+     * @param x2 other bitmap
+     */
+    public void and(final RoaringBitmap x2) {
+        if (x2 == this)
+            return;
+        int pos1 = 0, pos2 = 0, intersectionSize = 0;
+        final int length1 = highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = highLowContainer.getWritableContainerAtIndex(pos1)
+                        .iand(x2.highLowContainer.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    highLowContainer.replaceKeyAndContainerAtIndex(intersectionSize++, s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                pos1 = highLowContainer.advanceUntil(s2, pos1);
+            } else {
+                pos2 = x2.highLowContainer.advanceUntil(s1, pos2);
+            }
+        }
+        highLowContainer.resize(intersectionSize);
+    }
+
+    /**
+     * In-place bitwise ANDNOT (difference) operation. The current bitmap is
+     * modified.
+     *
+     * @param x2 other bitmap
+     */
+    public void andNot(final RoaringBitmap x2) {
+        if (x2 == this) {
+            clear();
+            return;
+        }
+        int pos1 = 0, pos2 = 0, intersectionSize = 0;
+        final int length1 = highLowContainer.size(), length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = highLowContainer.getWritableContainerAtIndex(pos1)
+                        .iandNot(x2.highLowContainer.getContainerAtIndex(pos2));
+                if (!c.isEmpty())
+                    highLowContainer.replaceKeyAndContainerAtIndex(intersectionSize++, s1, c);
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                if (pos1 != intersectionSize)
+                    highLowContainer.replaceKeyAndContainerAtIndex(intersectionSize, s1,
+                            highLowContainer.getContainerAtIndex(pos1));
+                ++intersectionSize;
+                ++pos1;
+            } else {
+                pos2 = x2.highLowContainer.advanceUntil(s1, pos2);
+            }
+        }
+        // 剩余部分前移
+        for (; pos1 < length1; ++pos1, ++intersectionSize) {
+            if (pos1 != intersectionSize)
+                highLowContainer.replaceKeyAndContainerAtIndex(intersectionSize,
+                        highLowContainer.getKeyAtIndex(pos1), highLowContainer.getContainerAtIndex(pos1));
+        }
+        highLowContainer.resize(intersectionSize);
+    }
+
     /**
      * reset to an empty bitmap; result occupies as much space a newly
      * created bitmap.
@@ -63,6 +560,24 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         }
     }
 
+    /**
+     * A point-in-time copy sharing its containers with this bitmap, made in
+     * O(number of containers) instead of copying every container like
+     * clone(). Later writes to either bitmap copy a shared container the
+     * first time they modify it, so neither sees the other's changes.
+     * <p>
+     * The snapshot may be read by other threads while this bitmap keeps
+     * being modified, provided it is handed over safely (through a lock or
+     * a volatile field).
+     *
+     * @return the snapshot
+     */
+    public RoaringBitmap snapshot() {
+        final RoaringBitmap x = new RoaringBitmap();
+        x.highLowContainer = highLowContainer.snapshot();
+        return x;
+    }
+
     /**
      * Checks whether the value in included, which is equivalent to checking
      * if the corresponding bit is set (get in BitSet class).
@@ -76,6 +591,137 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         return c != null && c.contains(Util.lowbits(x));
     }
 
+    /**
+     * Checks many values at once. The probes and the container keys are
+     * walked in lockstep, and each container searches forward from its
+     * previous match, so every container is located only once.
+     *
+     * @param sortedProbes values (48 bits) in increasing order, duplicates allowed
+     * @param out          receives out[k] = contains(sortedProbes[k])
+     * @throws IllegalArgumentException if out is too short or the probes are not sorted
+     */
+    public void containsAll(final long[] sortedProbes, final boolean[] out) {
+        final int n = sortedProbes.length;
+        if (out.length < n)
+            throw new IllegalArgumentException("out has " + out.length + " slots for " + n + " probes");
+        int pos = -1;
+        int start = 0;
+        while (start < n) {
+            final short hb = Util.highbits(sortedProbes[start]);
+            int end = start + 1;
+            for (; end < n; ++end) {
+                // 与add(long)一致只看低48位
+                if ((sortedProbes[end] & 0xFFFFFFFFFFFFL) < (sortedProbes[end - 1] & 0xFFFFFFFFFFFFL))
+                    throw new IllegalArgumentException("probes are not sorted at index " + end);
+                if (Util.highbits(sortedProbes[end]) != hb)
+                    break;
+            }
+            final int i = highLowContainer.advanceUntil(hb, pos);
+            if (i < highLowContainer.size() && highLowContainer.getKeyAtIndex(i) == hb)
+                highLowContainer.getContainerAtIndex(i).containsAll(sortedProbes, start, end, out);
+            else
+                Arrays.fill(out, start, end, false);
+            pos = i - 1;
+            start = end;
+        }
+    }
+
+    /**
+     * Checks many values at once, see containsAll(long[], boolean[]).
+     *
+     * @param sortedProbes values (48 bits) in increasing order, duplicates allowed
+     * @return a new bitmap holding the probes that are included
+     * @throws IllegalArgumentException if the probes are not sorted
+     */
+    public RoaringBitmap containsAll(final long[] sortedProbes) {
+        final boolean[] out = new boolean[sortedProbes.length];
+        containsAll(sortedProbes, out);
+        final long[] hits = new long[sortedProbes.length];
+        int count = 0;
+        for (int k = 0; k < sortedProbes.length; ++k) {
+            if (out[k])
+                hits[count++] = sortedProbes[k];
+        }
+        final RoaringBitmap answer = new RoaringBitmap();
+        answer.addAll(hits, 0, count);
+        return answer;
+    }
+
+    /**
+     * Deserialize (retrieve) the bitmap written by serialize(DataOutput),
+     * replacing the current content.
+     *
+     * @param in the DataInput stream
+     * @throws IOException Signals that an I/O exception has occurred or the
+     *                     data is not a serialized bitmap.
+     */
+    public void deserialize(final DataInput in) throws IOException {
+        // DataInput是大端的；先校验头部再按长度分配，损坏或无关的数据得到IOException而不是OOM
+        final int cookie = Integer.reverseBytes(in.readInt());
+        if ((cookie & 0xFFFF) != SERIAL_COOKIE)
+            throw new IOException("not a serialized bitmap, cookie " + Integer.toHexString(cookie));
+        if (cookie >>> 16 > SERIAL_VERSION)
+            throw new IOException("unsupported serial version " + (cookie >>> 16));
+        final int length = Integer.reverseBytes(in.readInt());
+        final int size = Integer.reverseBytes(in.readInt());
+        if (size < 0 || size > 1 << 16)
+            throw new IOException("invalid container count " + size);
+        if (length < HEADER_SIZE + size * INDEX_ENTRY_SIZE)
+            throw new IOException("invalid serialized length " + length);
+        // 长度仍可能是错的，随读到的数据倍增缓冲区，截断的数据在分配几个GB之前就遇到EOF
+        byte[] bytes = new byte[Math.min(length, 1 << 20)];
+        int read = HEADER_SIZE;
+        while (true) {
+            in.readFully(bytes, read, bytes.length - read);
+            read = bytes.length;
+            if (read == length)
+                break;
+            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, cookie).putInt(4, length).putInt(8, size);
+        deserialize(buffer);
+    }
+
+    /**
+     * Deserialize (retrieve) the bitmap written by serialize(ByteBuffer),
+     * replacing the current content. The position of the buffer is moved
+     * past the bitmap.
+     *
+     * @param buffer the input buffer
+     * @throws IOException if the data is not a serialized bitmap.
+     */
+    public void deserialize(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final RoaringArray array = new RoaringArray();
+        final int length;
+        try {
+            final int cookie = in.getInt();
+            if ((cookie & 0xFFFF) != SERIAL_COOKIE)
+                throw new IOException("not a serialized bitmap, cookie " + Integer.toHexString(cookie));
+            if (cookie >>> 16 > SERIAL_VERSION)
+                throw new IOException("unsupported serial version " + (cookie >>> 16));
+            length = in.getInt();
+            if (length < HEADER_SIZE || length > in.limit())
+                throw new IOException("invalid serialized length " + length);
+            final int size = in.getInt();
+            int previous = -1;
+            for (int i = 0; i < size; ++i) {
+                final int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+                final short key = in.getShort(entry);
+                if (Util.toIntUnsigned(key) <= previous)
+                    throw new IOException("keys are not sorted");
+                previous = Util.toIntUnsigned(key);
+                in.position(in.getInt(entry + 7));
+                array.append(key, Container.deserialize(in, in.get(entry + 2), in.getInt(entry + 3)));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("corrupted serialized bitmap", e);
+        }
+        highLowContainer = array;
+        buffer.position(buffer.position() + length);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof RoaringBitmap) {
@@ -85,6 +731,89 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         return false;
     }
 
+    /**
+     * The smallest value in the bitmap.
+     *
+     * @return the first value
+     * @throws NoSuchElementException if the bitmap is empty
+     */
+    public long first() {
+        if (highLowContainer.size() == 0)
+            throw new NoSuchElementException("empty bitmap");
+        final long hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(0)) << 32;
+        return hs | highLowContainer.getContainerAtIndex(0).nextValue(0);
+    }
+
+    /**
+     * Complement the values in [rangeStart, rangeEnd): present values are
+     * removed and absent values are added.
+     *
+     * @param rangeStart inclusive beginning of range
+     * @param rangeEnd   exclusive ending of range, at most 2^48
+     */
+    public void flip(final long rangeStart, final long rangeEnd) {
+        rangeOp(rangeStart, rangeEnd, Container.XOR);
+    }
+
+    /**
+     * Pass each value to the consumer in increasing unsigned order,
+     * without boxing or allocating per value. Named apart from
+     * Iterable.forEach so that a lambda is never ambiguous.
+     *
+     * @param action called for each value
+     */
+    public void forEachLong(final LongConsumer action) {
+        for (int i = 0; i < highLowContainer.size(); ++i) {
+            final long hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(i)) << 32;
+            highLowContainer.getContainerAtIndex(i).forEach(hs, action);
+        }
+    }
+
+    /**
+     * Iterate over the values in batches. Values are copied straight from
+     * the containers into the caller's buffer. The bitmap must not be
+     * modified while the iterator is in use.
+     *
+     * @return the iterator
+     */
+    public BatchIterator getBatchIterator() {
+        return new BatchIterator() {
+            int pos = 0;
+
+            // 当前container中下一个要取的低32位值
+            long from = 0;
+
+            @Override
+            public boolean hasNext() {
+                // 上一批恰好填满时，当前container可能已取完
+                if (from > 0 && pos < highLowContainer.size()
+                        && !highLowContainer.getContainerAtIndex(pos).getIntegerIterator(from).hasNext()) {
+                    ++pos;
+                    from = 0;
+                }
+                return pos < highLowContainer.size();
+            }
+
+            @Override
+            public int nextBatch(final long[] buffer) {
+                int n = 0;
+                while (n < buffer.length && pos < highLowContainer.size()) {
+                    final long hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(pos)) << 32;
+                    final int count = highLowContainer.getContainerAtIndex(pos)
+                            .fillLeastSignificant32bits(buffer, n, hs, from);
+                    n += count;
+                    if (n < buffer.length) {
+                        ++pos;
+                        from = 0;
+                    } else {
+                        from = (buffer[n - 1] & 0xFFFFFFFFL) + 1;
+                    }
+                }
+                return n;
+            }
+        };
+    }
+
     /**
      * Returns the number of distinct integers added to the bitmap (e.g.,
      * number of bits set).
@@ -99,48 +828,177 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         return size;
     }
 
-    private IntegerIterator getIntIterator() {
-        return new IntegerIterator() {
-            int hs = 0;
+    /**
+     * Returns the number of distinct values in the bitmap. Unlike
+     * getCardinality() it does not overflow past 2^31 values.
+     *
+     * @return the cardinality
+     */
+    public long getLongCardinality() {
+        long size = 0;
+        for (int i = 0; i < this.highLowContainer.size(); i++) {
+            size += this.highLowContainer.getContainerAtIndex(i).getLongCardinality();
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether the bitmap is empty; containers are never empty, so
+     * this does not compute the cardinality.
+     *
+     * @return whether the bitmap has no value
+     */
+    public boolean isEmpty() {
+        return highLowContainer.size() == 0;
+    }
+
+    /**
+     * Iterate over the values in increasing unsigned order without boxing.
+     *
+     * @return the iterator
+     */
+    public PeekableLongIterator getLongIterator() {
+        return new PeekableLongIterator() {
+            int pos = -1;
+
+            IntegerIterator iter;
 
-            Iterator<Integer> iter;
+            long hs;
 
-            short pos = 0;
+            // 预取的下一个值，-1表示没有
+            long nextValue = -1;
 
-            int x;
+            long x;
 
-            @Override
-            public boolean hasNext() {
-                return pos < RoaringBitmap.this.highLowContainer.size();
+            PeekableLongIterator init() {
+                advance();
+                return this;
             }
 
-            public IntegerIterator init() {
-                if (pos < RoaringBitmap.this.highLowContainer.size()) {
-                    iter = RoaringBitmap.this.highLowContainer.getContainerAtIndex(pos).iterator();
-                    hs = Util.toIntUnsigned(RoaringBitmap.this.highLowContainer.getKeyAtIndex(pos)) << 16;
+            private void advance() {
+                while (iter == null || !iter.hasNext()) {
+                    if (++pos >= highLowContainer.size()) {
+                        nextValue = -1;
+                        return;
+                    }
+                    iter = highLowContainer.getContainerAtIndex(pos).getIntegerIterator();
+                    hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(pos)) << 32;
                 }
-                return this;
+                nextValue = hs | Util.toLongUnsigned(iter.next());
             }
 
             @Override
-            public int next() {
-                x = iter.next() | hs;
-                if (!iter.hasNext()) {
-                    ++pos;
-                    init();
+            public void advanceIfNeeded(final long minValue) {
+                if (nextValue < 0 || nextValue >= minValue)
+                    return;
+                if (minValue >= 1L << 48) {
+                    pos = highLowContainer.size();
+                    nextValue = -1;
+                    return;
                 }
+                seek(minValue);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextValue >= 0;
+            }
+
+            @Override
+            public long next() {
+                x = nextValue;
+                advance();
                 return x;
             }
 
+            @Override
+            public long peekNext() {
+                return nextValue;
+            }
+
             @Override
             public void remove() {
-                if ((x & hs) == hs) {// still in same container
-                    iter.remove();
+                RoaringBitmap.this.remove(x);
+                // container可能被替换或删除，重新定位到预取的值
+                if (nextValue >= 0)
+                    seek(nextValue);
+            }
+
+            // 二分查找key，再在container内定位到第一个不小于minValue的值
+            private void seek(final long minValue) {
+                final int i = highLowContainer.getIndex(Util.highbits(minValue));
+                if (i >= 0) {
+                    pos = i;
+                    iter = highLowContainer.getContainerAtIndex(i).getIntegerIterator(minValue & 0xFFFFFFFFL);
+                    hs = minValue & ~0xFFFFFFFFL;
                 } else {
-                    RoaringBitmap.this.remove(x);
+                    pos = -i - 2;
+                    iter = null;
+                }
+                advance();
+            }
+        }.init();
+    }
+
+    /**
+     * Iterate over the values in decreasing unsigned order, visiting the
+     * containers from the last one, so that the largest values are found
+     * without materialising the rest.
+     *
+     * @return the iterator
+     */
+    public LongIterator getReverseLongIterator() {
+        return new LongIterator() {
+            int pos = highLowContainer.size();
+
+            IntegerIterator iter;
+
+            long hs;
+
+            // 预取的下一个值，-1表示没有
+            long nextValue = -1;
+
+            long x;
+
+            LongIterator init() {
+                advance();
+                return this;
+            }
+
+            private void advance() {
+                while (iter == null || !iter.hasNext()) {
+                    if (--pos < 0) {
+                        nextValue = -1;
+                        return;
+                    }
+                    iter = highLowContainer.getContainerAtIndex(pos).getReverseIntegerIterator(0xFFFFFFFFL);
+                    hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(pos)) << 32;
                 }
+                nextValue = hs | Util.toLongUnsigned(iter.next());
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextValue >= 0;
+            }
+
+            @Override
+            public long next() {
+                x = nextValue;
+                advance();
+                return x;
             }
 
+            @Override
+            public void remove() {
+                RoaringBitmap.this.remove(x);
+                if (nextValue < 0)
+                    return;
+                // container可能被替换或删除，重新定位到预取的值之后
+                pos = highLowContainer.getIndex(Util.highbits(nextValue));
+                iter = highLowContainer.getContainerAtIndex(pos)
+                        .getReverseIntegerIterator((nextValue & 0xFFFFFFFFL) - 1);
+            }
         }.init();
     }
 
@@ -165,54 +1023,148 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
     }
 
     /**
-     * iterate over the positions of the true values.
+     * Iterate over the values in increasing unsigned order. Each value is
+     * boxed; prefer getLongIterator() or forEachLong(LongConsumer) for large
+     * bitmaps.
      *
      * @return the iterator
      */
     @Override
-    public Iterator<Integer> iterator() {
-        return new Iterator<Integer>() {
-            int hs = 0;
-
-            Iterator<Integer> iter;
-
-            short pos = 0;
-
-            int x;
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            final LongIterator iter = getLongIterator();
 
             @Override
             public boolean hasNext() {
-                return pos < RoaringBitmap.this.highLowContainer.size();
-            }
-
-            public Iterator<Integer> init() {
-                if (pos < RoaringBitmap.this.highLowContainer.size()) {
-                    iter = RoaringBitmap.this.highLowContainer.getContainerAtIndex(pos).iterator();
-                    hs = Util.toIntUnsigned(RoaringBitmap.this.highLowContainer.getKeyAtIndex(pos)) << 16;
-                }
-                return this;
+                return iter.hasNext();
             }
 
             @Override
-            public Integer next() {
-                x = iter.next() | hs;
-                if (!iter.hasNext()) {
-                    ++pos;
-                    init();
-                }
-                return x;
+            public Long next() {
+                if (!iter.hasNext())
+                    throw new NoSuchElementException();
+                return iter.next();
             }
 
             @Override
             public void remove() {
-                if ((x & hs) == hs) {// still in same container
-                    iter.remove();
-                } else {
-                    RoaringBitmap.this.remove(x);
-                }
+                iter.remove();
             }
+        };
+    }
 
-        }.init();
+    /**
+     * The largest value in the bitmap.
+     *
+     * @return the last value
+     * @throws NoSuchElementException if the bitmap is empty
+     */
+    public long last() {
+        final int i = highLowContainer.size() - 1;
+        if (i < 0)
+            throw new NoSuchElementException("empty bitmap");
+        final long hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(i)) << 32;
+        return hs | highLowContainer.getContainerAtIndex(i).previousValue(0xFFFFFFFFL);
+    }
+
+    /**
+     * The smallest value not smaller than fromValue.
+     *
+     * @param fromValue value to start from
+     * @return the value, or -1 if there is none
+     */
+    public long nextValue(final long fromValue) {
+        if (fromValue >= 1L << 48)
+            return -1;
+        final long from = Math.max(fromValue, 0);
+        int i = highLowContainer.getIndex(Util.highbits(from));
+        long low = from & 0xFFFFFFFFL;
+        if (i < 0) {
+            i = -i - 1;
+            low = 0;
+        }
+        // 当前container中没有则取下一个container的最小值
+        for (; i < highLowContainer.size(); ++i, low = 0) {
+            final long v = highLowContainer.getContainerAtIndex(i).nextValue(low);
+            if (v >= 0)
+                return (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(i)) << 32 | v;
+        }
+        return -1;
+    }
+
+    /**
+     * In-place bitwise OR (union) operation. The current bitmap is modified.
+     *
+     * @param x2 other bitmap
+     */
+    public void or(final RoaringBitmap x2) {
+        if (x2 == this)
+            return;
+        int pos1 = 0, pos2 = 0;
+        int length1 = highLowContainer.size();
+        final int length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                highLowContainer.setContainerAtIndex(pos1, highLowContainer.getWritableContainerAtIndex(pos1)
+                        .ior(x2.highLowContainer.getContainerAtIndex(pos2)));
+                ++pos1;
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                ++pos1;
+            } else {
+                highLowContainer.insertNewKeyValueAt(pos1, s2, x2.highLowContainer.getContainerAtIndex(pos2).clone());
+                ++pos1;
+                ++length1;
+                ++pos2;
+            }
+        }
+        if (pos1 == length1)
+            highLowContainer.appendCopy(x2.highLowContainer, pos2, length2);
+    }
+
+    /**
+     * The largest value not larger than fromValue.
+     *
+     * @param fromValue value to start from
+     * @return the value, or -1 if there is none
+     */
+    public long previousValue(final long fromValue) {
+        if (fromValue < 0)
+            return -1;
+        final long from = Math.min(fromValue, (1L << 48) - 1);
+        int i = highLowContainer.getIndex(Util.highbits(from));
+        long low = from & 0xFFFFFFFFL;
+        if (i < 0) {
+            i = -i - 2;
+            low = 0xFFFFFFFFL;
+        }
+        // 当前container中没有则取上一个container的最大值
+        for (; i >= 0; --i, low = 0xFFFFFFFFL) {
+            final long v = highLowContainer.getContainerAtIndex(i).previousValue(low);
+            if (v >= 0)
+                return (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(i)) << 32 | v;
+        }
+        return -1;
+    }
+
+    /**
+     * Number of values not larger than x. Uses the prefix cardinalities of
+     * the containers, which are recomputed lazily after modifications.
+     *
+     * @param x upper limit (inclusive)
+     * @return the rank
+     */
+    public long rank(final long x) {
+        if (x < 0)
+            return 0;
+        if (x >= 1L << 48)
+            return highLowContainer.cardinalityBefore(highLowContainer.size());
+        final int i = highLowContainer.getIndex(Util.highbits(x));
+        if (i < 0)
+            return highLowContainer.cardinalityBefore(-i - 1);
+        return highLowContainer.cardinalityBefore(i) + highLowContainer.getContainerAtIndex(i).rank(x & 0xFFFFFFFFL);
     }
 
     /**
@@ -226,11 +1178,252 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         final int i = highLowContainer.getIndex(hb);
         if (i < 0)
             return;
-        highLowContainer.setContainerAtIndex(i, highLowContainer.getContainerAtIndex(i).remove(Util.lowbits(x)));
-        if (highLowContainer.getContainerAtIndex(i).getCardinality() == 0)
+        final Container c = highLowContainer.getContainerAtIndex(i);
+        if (c.shared && !c.contains(Util.lowbits(x)))
+            return;
+        highLowContainer.setContainerAtIndex(i, highLowContainer.getWritableContainerAtIndex(i).remove(Util.lowbits(x)));
+        if (highLowContainer.getContainerAtIndex(i).isEmpty())
             highLowContainer.removeAtIndex(i);
     }
 
+    /**
+     * Remove all values in [rangeStart, rangeEnd).
+     *
+     * @param rangeStart inclusive beginning of range
+     * @param rangeEnd   exclusive ending of range, at most 2^48
+     */
+    public void remove(final long rangeStart, final long rangeEnd) {
+        rangeOp(rangeStart, rangeEnd, Container.ANDNOT);
+    }
+
+    // 区间落在一个container内时原地修改，否则与现有的container归并一次
+    private void rangeOp(final long rangeStart, final long rangeEnd, final int op) {
+        rangeSanityCheck(rangeStart, rangeEnd);
+        if (rangeStart >= rangeEnd)
+            return;
+        final int hbStart = (int) (rangeStart >>> 32);
+        final int hbLast = (int) ((rangeEnd - 1) >>> 32);
+        if (hbStart == hbLast) {
+            final int i = highLowContainer.getIndex((short) hbStart);
+            final Container c = rangeOp(i >= 0 ? highLowContainer.getWritableContainerAtIndex(i) : null,
+                    rangeStart & 0xFFFFFFFFL, ((rangeEnd - 1) & 0xFFFFFFFFL) + 1, op);
+            if (i >= 0 && c != null)
+                highLowContainer.setContainerAtIndex(i, c);
+            else if (i >= 0)
+                highLowContainer.removeAtIndex(i);
+            else if (c != null)
+                highLowContainer.insertNewKeyValueAt(-i - 1, (short) hbStart, c);
+            return;
+        }
+        final RoaringArray answer = new RoaringArray();
+        final int length = highLowContainer.size();
+        int pos = 0;
+        while (pos < length && Util.toIntUnsigned(highLowContainer.getKeyAtIndex(pos)) < hbStart) {
+            answer.append(highLowContainer.getKeyAtIndex(pos), highLowContainer.getContainerAtIndex(pos));
+            ++pos;
+        }
+        for (int hb = hbStart; hb <= hbLast; ++hb) {
+            Container c = null;
+            if (pos < length && Util.toIntUnsigned(highLowContainer.getKeyAtIndex(pos)) == hb)
+                c = highLowContainer.getWritableContainerAtIndex(pos++);
+            c = rangeOp(c, containerStart(hb, hbStart, rangeStart), containerEnd(hb, hbLast, rangeEnd), op);
+            if (c != null)
+                answer.append((short) hb, c);
+        }
+        for (; pos < length; ++pos)
+            answer.append(highLowContainer.getKeyAtIndex(pos), highLowContainer.getContainerAtIndex(pos));
+        highLowContainer = answer;
+    }
+
+    /**
+     * Use a run-length encoding where it is more space efficient.
+     * 同一TAC下连续的IMEI段会被压缩为行程编码
+     *
+     * @return whether the result has at least one run container
+     */
+    public boolean runOptimize() {
+        boolean answer = false;
+        for (int i = 0; i < this.highLowContainer.size(); i++) {
+            final Container c = this.highLowContainer.getContainerAtIndex(i).runOptimize();
+            if (c instanceof RunContainer)
+                answer = true;
+            this.highLowContainer.setContainerAtIndex(i, c);
+        }
+        return answer;
+    }
+
+    /**
+     * The j-th smallest value, counting from 0, so that rank(select(j)) is
+     * j + 1.
+     *
+     * @param j index of the value
+     * @return the value
+     * @throws IllegalArgumentException if j is negative or not smaller than
+     *                                  the cardinality
+     */
+    public long select(final long j) {
+        final int i = j < 0 ? highLowContainer.size() : highLowContainer.indexOfRank(j);
+        if (i == highLowContainer.size())
+            throw new IllegalArgumentException("select " + j + " when the cardinality is " + getLongCardinality());
+        final long hs = (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(i)) << 32;
+        return hs | Util.toLongUnsigned(highLowContainer.getContainerAtIndex(i).select(j - highLowContainer.cardinalityBefore(i)));
+    }
+
+    /**
+     * Serialize this bitmap. The format is little-endian and versioned:
+     * <pre>
+     * int   SERIAL_COOKIE | SERIAL_VERSION &lt;&lt; 16
+     * int   total number of bytes, header included
+     * int   number of containers
+     * per container, sorted by key:
+     *   short key (high 16 bits), byte type, int cardinality,
+     *   int offset of the container from the start of the bitmap
+     * the containers:
+     *   array:  int[cardinality] values
+     *   bitmap: int pageCount, int[pageCount] page numbers,
+     *           long[64] words per page (a page holds 4096 values)
+     *   run:    int runCount, (int start, int length - 1) per run
+     *   nested: int count, short[count] keys, byte[count] types,
+     *           short[count] cardinality - 1, int[count] offsets from the
+     *           start of the nested container, then the sub-containers:
+     *           array short[cardinality], bitmap long[1024],
+     *           run short runCount + (short start, short length - 1) per run
+     * </pre>
+     * Type numbers are 0 array, 1 bitmap, 2 run, 3 nested; exactly
+     * serializedSizeInBytes() bytes are written.
+     *
+     * @param out the DataOutput stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void serialize(final DataOutput out) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(serializedSizeInBytes());
+        serialize(buffer);
+        out.write(buffer.array());
+    }
+
+    /**
+     * Serialize this bitmap into the buffer, starting at its position,
+     * which is moved past the bitmap. See serialize(DataOutput) for the
+     * format.
+     *
+     * @param buffer output buffer with at least serializedSizeInBytes()
+     *               bytes remaining
+     */
+    public void serialize(final ByteBuffer buffer) {
+        final ByteBuffer out = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int size = highLowContainer.size();
+        out.putInt(SERIAL_COOKIE | SERIAL_VERSION << 16);
+        out.putInt(serializedSizeInBytes());
+        out.putInt(size);
+        int offset = HEADER_SIZE + size * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < size; ++i) {
+            final Container c = highLowContainer.getContainerAtIndex(i);
+            out.putShort(highLowContainer.getKeyAtIndex(i));
+            out.put(c.serializedType());
+            out.putInt(c.getCardinality());
+            out.putInt(offset);
+            offset += c.serializedSizeInBytes();
+        }
+        for (int i = 0; i < size; ++i)
+            highLowContainer.getContainerAtIndex(i).writeArray(out);
+        buffer.position(buffer.position() + out.position());
+    }
+
+    /**
+     * Serialize this bitmap in a compact format meant for storage, which
+     * cannot be queried in place by ImmutableRoaringBitmap. The values of
+     * each container are written in increasing order, independently of the
+     * container type: consecutive values (at least 3) as a run, the others
+     * as gaps from the previous value, all numbers in unsigned LEB128. A
+     * sorted array of nearby IMEIs then takes one or two bytes per value
+     * instead of four.
+     * <pre>
+     * int    COMPRESSED_COOKIE | COMPRESSED_VERSION &lt;&lt; 16 (little-endian)
+     * var    number of containers
+     * per container, sorted by key:
+     *   var  key - previous key - 1 (the previous key starts at -1)
+     *   blocks, then a var 0:
+     *     run:    var (n &lt;&lt; 1 | 1), var start - previous value - 1
+     *     values: var (n &lt;&lt; 1), n times var value - previous value - 1
+     *   (the previous value starts at -1 in each container)
+     * </pre>
+     * The output is buffered internally; the stream is flushed, not closed.
+     *
+     * @param out the output stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void serializeCompressed(final OutputStream out) throws IOException {
+        CompressedFormat.write(highLowContainer, out);
+    }
+
+    /**
+     * Deserialize the bitmap written by serializeCompressed, replacing the
+     * current content. Each container is rebuilt in one go from its decoded
+     * runs, as a run container when that is smaller and from the sorted
+     * values otherwise. Bytes are read one at a time and never past the end
+     * of the bitmap, so the stream should be buffered.
+     *
+     * @param in the input stream
+     * @throws IOException if the data is not a compressed bitmap
+     */
+    public void deserializeCompressed(final InputStream in) throws IOException {
+        highLowContainer = CompressedFormat.read(CompressedFormat.source(in));
+    }
+
+    /**
+     * Deserialize the bitmap written by serializeCompressed from the
+     * buffer, replacing the current content. The position of the buffer is
+     * moved past the bitmap.
+     *
+     * @param buffer the input buffer
+     * @throws IOException if the data is not a compressed bitmap
+     */
+    public void deserializeCompressed(final ByteBuffer buffer) throws IOException {
+        highLowContainer = CompressedFormat.read(CompressedFormat.source(buffer));
+    }
+
+    /**
+     * Checks whether the data starting at the position of the buffer was
+     * written by serializeCompressed rather than serialize. The position is
+     * not modified.
+     *
+     * @param buffer serialized bitmap
+     * @return whether it is in the compressed format
+     */
+    public static boolean isCompressed(final ByteBuffer buffer) {
+        return buffer.remaining() >= 4
+                && CompressedFormat.isCompressed(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt());
+    }
+
+    /**
+     * Report the number of bytes required to serialize this bitmap. This is
+     * the number of bytes written out when using the serialize method.
+     *
+     * @return the size in bytes
+     */
+    public int serializedSizeInBytes() {
+        int size = HEADER_SIZE + highLowContainer.size() * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < highLowContainer.size(); ++i)
+            size += highLowContainer.getContainerAtIndex(i).serializedSizeInBytes();
+        return size;
+    }
+
+    /**
+     * Return the set values as an array, in increasing unsigned order.
+     *
+     * @return array representing the set values.
+     */
+    public long[] toArray() {
+        final long[] array = new long[getCardinality()];
+        int pos = 0;
+        for (int i = 0; i < highLowContainer.size(); ++i) {
+            final Container c = highLowContainer.getContainerAtIndex(i);
+            c.fillLeastSignificant32bits(array, pos, (long) Util.toIntUnsigned(highLowContainer.getKeyAtIndex(i)) << 32);
+            pos += c.getCardinality();
+        }
+        return array;
+    }
+
     /**
      * A string describing the bitmap.
      *
@@ -239,7 +1432,7 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
     @Override
     public String toString() {
         final StringBuilder answer = new StringBuilder();
-        final IntegerIterator i = this.getIntIterator();
+        final LongIterator i = this.getLongIterator();
         answer.append("{");
         if (i.hasNext())
             answer.append(i.next());
@@ -250,4 +1443,45 @@ public final class RoaringBitmap implements Cloneable, Iterable<Integer> {
         answer.append("}");
         return answer.toString();
     }
+
+    /**
+     * In-place bitwise XOR (symmetric difference) operation. The current
+     * bitmap is modified.
+     *
+     * @param x2 other bitmap
+     */
+    public void xor(final RoaringBitmap x2) {
+        if (x2 == this) {
+            clear();
+            return;
+        }
+        int pos1 = 0, pos2 = 0;
+        int length1 = highLowContainer.size();
+        final int length2 = x2.highLowContainer.size();
+        while (pos1 < length1 && pos2 < length2) {
+            final short s1 = highLowContainer.getKeyAtIndex(pos1);
+            final short s2 = x2.highLowContainer.getKeyAtIndex(pos2);
+            if (s1 == s2) {
+                final Container c = highLowContainer.getWritableContainerAtIndex(pos1)
+                        .ixor(x2.highLowContainer.getContainerAtIndex(pos2));
+                if (!c.isEmpty()) {
+                    highLowContainer.setContainerAtIndex(pos1, c);
+                    ++pos1;
+                } else {
+                    highLowContainer.removeAtIndex(pos1);
+                    --length1;
+                }
+                ++pos2;
+            } else if (Util.toIntUnsigned(s1) < Util.toIntUnsigned(s2)) {
+                ++pos1;
+            } else {
+                highLowContainer.insertNewKeyValueAt(pos1, s2, x2.highLowContainer.getContainerAtIndex(pos2).clone());
+                ++pos1;
+                ++length1;
+                ++pos2;
+            }
+        }
+        if (pos1 == length1)
+            highLowContainer.appendCopy(x2.highLowContainer, pos2, length2);
+    }
 }
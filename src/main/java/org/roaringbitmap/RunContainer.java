@@ -0,0 +1,726 @@
+package org.roaringbitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.LongConsumer;
+
+/**
+ * 32位行程编码container，valueslength中依次存放(起点, 长度-1)，均按无符号处理。
+ * 同一TAC下连续分配的IMEI段只占8个字节。
+ */
+public final class RunContainer extends Container implements Cloneable {
+    private static final int DEFAULT_INIT_SIZE = 4;
+
+    int[] valueslength;
+
+    int nbrruns = 0;
+
+    // 满的container有2^32个值，超出int
+    long cardinality = 0;
+
+    // 各段的前缀基数，rank/select用到时才补算，见PrefixCardinalities
+    private volatile PrefixCardinalities prefix;
+
+    /**
+     * Create an empty run container
+     */
+    public RunContainer() {
+        this.valueslength = new int[2 * DEFAULT_INIT_SIZE];
+    }
+
+    /**
+     * Create a run container with a run of ones from firstOfRun to
+     * lastOfRun, inclusive.
+     *
+     * @param firstOfRun first index (unsigned)
+     * @param lastOfRun  last index (unsigned, range is inclusive)
+     */
+    public RunContainer(final int firstOfRun, final int lastOfRun) {
+        this.valueslength = new int[]{firstOfRun, lastOfRun - firstOfRun};
+        this.nbrruns = 1;
+        this.cardinality = Util.toLongUnsigned(lastOfRun) - Util.toLongUnsigned(firstOfRun) + 1;
+    }
+
+    private RunContainer(final int nbrruns, final int[] valueslength, final long cardinality) {
+        this.nbrruns = nbrruns;
+        this.valueslength = valueslength;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Serialized size of a run container with the given number of runs.
+     *
+     * @param runs number of runs
+     * @return size in bytes
+     */
+    static int sizeInBytes(final int runs) {
+        return 4 + 8 * runs;
+    }
+
+    @Override
+    public Container add(final int k) {
+        final long x = Util.toLongUnsigned(k);
+        final int i = floorRun(x);
+        if (i >= 0 && x <= getEnd(i))
+            return this;
+        ++cardinality;
+        if (i >= 0 && x == getEnd(i) + 1) {
+            setLength(i, getLength(i) + 1);
+            // 与后一段相接则合并
+            if (i + 1 < nbrruns && getStart(i + 1) == x + 1) {
+                setLength(i, getEnd(i + 1) - getStart(i));
+                removeRun(i + 1);
+            }
+        } else if (i + 1 < nbrruns && getStart(i + 1) == x + 1) {
+            valueslength[2 * (i + 1)] = k;
+            setLength(i + 1, getLength(i + 1) + 1);
+        } else {
+            insertRun(i + 1, k, 0);
+        }
+        return toEfficientContainerIfLarge();
+    }
+
+    @Override
+    public Container and(final Container x) {
+        if (x instanceof RunContainer)
+            return and((RunContainer) x);
+        return super.and(x);
+    }
+
+    /**
+     * Intersection with another run container, run by run.
+     *
+     * @param x other container
+     * @return the intersection
+     */
+    public RunContainer and(final RunContainer x) {
+        final RunContainer answer = new RunContainer();
+        int i = 0;
+        int j = 0;
+        while (i < nbrruns && j < x.nbrruns) {
+            final long start = Math.max(getStart(i), x.getStart(j));
+            final long end = Math.min(getEnd(i), x.getEnd(j));
+            if (start <= end)
+                answer.appendRun(start, end);
+            if (getEnd(i) < x.getEnd(j))
+                ++i;
+            else
+                ++j;
+        }
+        return answer;
+    }
+
+    @Override
+    public Container andNot(final Container x) {
+        if (x instanceof RunContainer)
+            return andNot((RunContainer) x);
+        return super.andNot(x);
+    }
+
+    /**
+     * Difference with another run container, run by run.
+     *
+     * @param x other container
+     * @return the difference
+     */
+    public RunContainer andNot(final RunContainer x) {
+        final RunContainer answer = new RunContainer();
+        int j = 0;
+        for (int i = 0; i < nbrruns; ++i) {
+            long start = getStart(i);
+            final long end = getEnd(i);
+            while (j < x.nbrruns && x.getEnd(j) < start)
+                ++j;
+            // 逐段扣除x中与[start, end]重叠的部分
+            while (j < x.nbrruns && x.getStart(j) <= end) {
+                if (x.getStart(j) > start)
+                    answer.appendRun(start, x.getStart(j) - 1);
+                start = Math.max(start, x.getEnd(j) + 1);
+                if (start > end)
+                    break;
+                ++j;
+            }
+            if (start <= end)
+                answer.appendRun(start, end);
+        }
+        return answer;
+    }
+
+    /**
+     * Append a run after all existing runs, merging with the last one when
+     * adjacent. The caller must ensure runs are appended in increasing order.
+     *
+     * @param start first value (unsigned)
+     * @param end   last value (unsigned, inclusive)
+     */
+    protected void appendRun(final long start, final long end) {
+        if (nbrruns > 0 && getEnd(nbrruns - 1) + 1 == start) {
+            setLength(nbrruns - 1, end - getStart(nbrruns - 1));
+        } else {
+            if (2 * (nbrruns + 1) > valueslength.length)
+                valueslength = Arrays.copyOf(valueslength, Math.max(2 * DEFAULT_INIT_SIZE, valueslength.length * 2));
+            valueslength[2 * nbrruns] = (int) start;
+            valueslength[2 * nbrruns + 1] = (int) (end - start);
+            ++nbrruns;
+        }
+        cardinality += end - start + 1;
+    }
+
+    @Override
+    public void clear() {
+        nbrruns = 0;
+        cardinality = 0;
+        prefix = null;
+    }
+
+    @Override
+    public RunContainer clone() {
+        return new RunContainer(nbrruns, Arrays.copyOf(valueslength, 2 * nbrruns), cardinality);
+    }
+
+    @Override
+    public boolean contains(final int k) {
+        final long x = Util.toLongUnsigned(k);
+        final int i = floorRun(x);
+        return i >= 0 && x <= getEnd(i);
+    }
+
+    @Override
+    void containsAll(final long[] probes, final int begin, final int end, final boolean[] out) {
+        int i = 0;
+        for (int k = begin; k < end; ++k) {
+            final long x = Util.toLongUnsigned(Util.lowbits(probes[k]));
+            if (i < nbrruns && getEnd(i) < x) {
+                // 倍增跳过结束位置小于x的段，再在(lower, upper]中二分
+                int step = 1;
+                while (i + step < nbrruns && getEnd(i + step) < x) {
+                    i += step;
+                    step *= 2;
+                }
+                int lower = i, upper = Math.min(i + step, nbrruns);
+                while (lower + 1 < upper) {
+                    final int mid = (lower + upper) >>> 1;
+                    if (getEnd(mid) < x)
+                        lower = mid;
+                    else
+                        upper = mid;
+                }
+                i = upper;
+            }
+            out[k] = i < nbrruns && getStart(i) <= x;
+        }
+    }
+
+    /**
+     * Read a run container written by writeArray.
+     *
+     * @param in little-endian input buffer
+     * @return the container
+     * @throws IOException if the number of runs does not fit in the input or
+     *                     the runs overlap
+     */
+    static RunContainer deserialize(final ByteBuffer in) throws IOException {
+        final int nbrruns = in.getInt();
+        // 段数在分配之前检查，损坏的数据不能导致负长度或超大的数组
+        if (nbrruns < 0 || 8L * nbrruns > in.remaining())
+            throw new IOException("invalid number of runs " + nbrruns);
+        final int[] valueslength = new int[2 * nbrruns];
+        in.asIntBuffer().get(valueslength);
+        in.position(in.position() + 8 * nbrruns);
+        // 索引中的基数是int，按各段长度重新求和；各段有序不重叠才不会多算
+        long card = 0;
+        long previousEnd = -1;
+        for (int k = 0; k < nbrruns; ++k) {
+            final long start = Util.toLongUnsigned(valueslength[2 * k]);
+            final long end = start + Util.toLongUnsigned(valueslength[2 * k + 1]);
+            if (start <= previousEnd || end > 0xFFFFFFFFL)
+                throw new IOException("invalid run " + k + " [" + start + ", " + end + "]");
+            card += end - start + 1;
+            previousEnd = end;
+        }
+        return new RunContainer(nbrruns, valueslength, card);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof RunContainer) {
+            RunContainer srb = (RunContainer) o;
+            if (srb.nbrruns != this.nbrruns)
+                return false;
+            for (int i = 0; i < 2 * nbrruns; ++i) {
+                if (this.valueslength[i] != srb.valueslength[i])
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 起点不大于x的最后一段，没有则返回-1
+    private int floorRun(final long x) {
+        int low = 0;
+        int high = nbrruns - 1;
+        while (low <= high) {
+            final int middleIndex = (low + high) >>> 1;
+            final long middleValue = getStart(middleIndex);
+            if (middleValue < x)
+                low = middleIndex + 1;
+            else if (middleValue > x)
+                high = middleIndex - 1;
+            else
+                return middleIndex;
+        }
+        return low - 1;
+    }
+
+    @Override
+    public void fillLeastSignificant32bits(final long[] x, final int i, final long mask) {
+        int pos = i;
+        for (int k = 0; k < nbrruns; ++k) {
+            final long end = getEnd(k);
+            for (long v = getStart(k); v <= end; ++v)
+                x[pos++] = v | mask;
+        }
+    }
+
+    @Override
+    int fillLeastSignificant32bits(final long[] x, final int i, final long mask, final long from) {
+        int pos = i;
+        int k = floorRun(from);
+        if (k < 0 || from > getEnd(k))
+            ++k;
+        long v = from;
+        for (; k < nbrruns; ++k) {
+            if (v < getStart(k))
+                v = getStart(k);
+            final long end = getEnd(k);
+            for (; v <= end; ++v) {
+                if (pos == x.length)
+                    return pos - i;
+                x[pos++] = v | mask;
+            }
+        }
+        return pos - i;
+    }
+
+    @Override
+    public void forEach(final long mask, final LongConsumer action) {
+        for (int k = 0; k < nbrruns; ++k) {
+            final long end = getEnd(k);
+            for (long v = getStart(k); v <= end; ++v)
+                action.accept(v | mask);
+        }
+    }
+
+    @Override
+    protected int getArraySizeInBytes() {
+        return 8 * nbrruns;
+    }
+
+    @Override
+    public int getCardinality() {
+        return (int) cardinality;
+    }
+
+    @Override
+    long getLongCardinality() {
+        return cardinality;
+    }
+
+    long getEnd(final int i) {
+        return getStart(i) + getLength(i);
+    }
+
+    @Override
+    IntegerIterator getIntegerIterator(final long from) {
+        return new IntegerIterator() {
+            int run;
+
+            long offset;
+
+            long last;
+
+            IntegerIterator init() {
+                run = floorRun(from);
+                if (run >= 0 && from <= getEnd(run)) {
+                    offset = from - getStart(run);
+                } else {
+                    ++run;
+                    offset = 0;
+                }
+                return this;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return run < RunContainer.this.nbrruns;
+            }
+
+            @Override
+            public int next() {
+                last = getStart(run) + offset;
+                if (offset++ == getLength(run)) {
+                    ++run;
+                    offset = 0;
+                }
+                return (int) last;
+            }
+
+            @Override
+            public void remove() {
+                // 删除可能拆分段，按当前值重新定位
+                RunContainer.this.remove((int) last);
+                final int i = floorRun(last + 1);
+                if (i >= 0 && last + 1 <= getEnd(i)) {
+                    run = i;
+                    offset = last + 1 - getStart(i);
+                } else {
+                    run = i + 1;
+                    offset = 0;
+                }
+            }
+        }.init();
+    }
+
+    long getLength(final int i) {
+        return Util.toLongUnsigned(valueslength[2 * i + 1]);
+    }
+
+    @Override
+    public int getSizeInBytes() {
+        return sizeInBytes(nbrruns) + 4;
+    }
+
+    long getStart(final int i) {
+        return Util.toLongUnsigned(valueslength[2 * i]);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int k = 0; k < 2 * nbrruns; ++k)
+            hash = 31 * hash + valueslength[k];
+        return hash;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return nbrruns == 0;
+    }
+
+    // 行程编码之间的运算本身就是按段归并，原地版本直接复用
+    @Override
+    public Container iand(final Container x) {
+        if (x instanceof RunContainer)
+            return and((RunContainer) x);
+        return super.iand(x);
+    }
+
+    @Override
+    public Container iandNot(final Container x) {
+        if (x instanceof RunContainer)
+            return andNot((RunContainer) x);
+        return super.iandNot(x);
+    }
+
+    @Override
+    public Container ior(final Container x) {
+        if (x instanceof RunContainer)
+            return or((RunContainer) x);
+        return super.ior(x);
+    }
+
+    @Override
+    public Container ixor(final Container x) {
+        if (x instanceof RunContainer)
+            return xor((RunContainer) x);
+        return super.ixor(x);
+    }
+
+    @Override
+    protected long intersectionCount(final Container x, final boolean any) {
+        if (!(x instanceof RunContainer))
+            return super.intersectionCount(x, any);
+        final RunContainer other = (RunContainer) x;
+        long count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < nbrruns && j < other.nbrruns) {
+            final long start = Math.max(getStart(i), other.getStart(j));
+            final long end = Math.min(getEnd(i), other.getEnd(j));
+            if (start <= end) {
+                if (any)
+                    return 1;
+                count += end - start + 1;
+            }
+            if (getEnd(i) < other.getEnd(j))
+                ++i;
+            else
+                ++j;
+        }
+        return count;
+    }
+
+    private void insertRun(final int i, final int start, final long length) {
+        if (2 * (nbrruns + 1) > valueslength.length)
+            valueslength = Arrays.copyOf(valueslength, Math.max(2 * DEFAULT_INIT_SIZE, valueslength.length * 2));
+        System.arraycopy(valueslength, 2 * i, valueslength, 2 * i + 2, 2 * (nbrruns - i));
+        valueslength[2 * i] = start;
+        valueslength[2 * i + 1] = (int) length;
+        ++nbrruns;
+        invalidateFrom(i);
+    }
+
+    private void invalidateFrom(final int i) {
+        final PrefixCardinalities p = prefix;
+        if (p != null && i < p.valid)
+            prefix = p.truncate(i);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            final IntegerIterator si = RunContainer.this.getIntegerIterator();
+
+            @Override
+            public boolean hasNext() {
+                return si.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                return si.next();
+            }
+
+            @Override
+            public void remove() {
+                si.remove();
+            }
+        };
+    }
+
+    @Override
+    public Container or(final Container x) {
+        if (x instanceof RunContainer)
+            return or((RunContainer) x);
+        return super.or(x);
+    }
+
+    /**
+     * Union with another run container, run by run.
+     *
+     * @param x other container
+     * @return the union
+     */
+    public RunContainer or(final RunContainer x) {
+        final RunContainer answer = new RunContainer();
+        int i = 0;
+        int j = 0;
+        while (i < nbrruns || j < x.nbrruns) {
+            if (j >= x.nbrruns || (i < nbrruns && getStart(i) <= x.getStart(j))) {
+                answer.unionRun(getStart(i), getEnd(i));
+                ++i;
+            } else {
+                answer.unionRun(x.getStart(j), x.getEnd(j));
+                ++j;
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    long nextValue(final long from) {
+        int k = floorRun(from);
+        if (k >= 0 && from <= getEnd(k))
+            return from;
+        return ++k < nbrruns ? getStart(k) : -1;
+    }
+
+    @Override
+    long previousValue(final long from) {
+        final int k = from < 0 ? -1 : floorRun(from);
+        return k < 0 ? -1 : Math.min(from, getEnd(k));
+    }
+
+    // 前end段有效的前缀基数；不够时在局部数组中补算全部nbrruns段，算完再整体发布
+    private long[] prefixSums(final int end) {
+        final PrefixCardinalities p = prefix;
+        if (p != null && p.valid >= end)
+            return p.sums;
+        final long[] sums = new long[nbrruns];
+        int k = 0;
+        long sum = 0;
+        if (p != null) {
+            k = p.valid;
+            System.arraycopy(p.sums, 0, sums, 0, k);
+            sum = sums[k - 1];
+        }
+        for (; k < nbrruns; ++k) {
+            sum += getLength(k) + 1;
+            sums[k] = sum;
+        }
+        prefix = new PrefixCardinalities(sums, nbrruns);
+        return sums;
+    }
+
+    @Override
+    long rank(final long x) {
+        final int i = floorRun(x);
+        if (i < 0)
+            return 0;
+        final long before = i == 0 ? 0 : prefixSums(i)[i - 1];
+        return before + Math.min(getEnd(i), x) - getStart(i) + 1;
+    }
+
+    @Override
+    public Container remove(final int k) {
+        final long x = Util.toLongUnsigned(k);
+        final int i = floorRun(x);
+        if (i < 0 || x > getEnd(i))
+            return this;
+        --cardinality;
+        final long start = getStart(i);
+        final long end = getEnd(i);
+        if (start == end) {
+            removeRun(i);
+        } else if (x == start) {
+            valueslength[2 * i] = k + 1;
+            setLength(i, end - x - 1);
+        } else if (x == end) {
+            setLength(i, end - start - 1);
+        } else {
+            // 从中间拆成两段
+            setLength(i, x - 1 - start);
+            insertRun(i + 1, k + 1, end - x - 1);
+        }
+        return toEfficientContainerIfLarge();
+    }
+
+    private void removeRun(final int i) {
+        System.arraycopy(valueslength, 2 * i + 2, valueslength, 2 * i, 2 * (nbrruns - i - 1));
+        --nbrruns;
+        invalidateFrom(i);
+    }
+
+    @Override
+    int select(final long j) {
+        if (j >= 0 && j < cardinality) {
+            // 二分查找第一个前缀基数大于j的段
+            final long[] cumulative = prefixSums(nbrruns);
+            int low = 0, high = nbrruns - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (cumulative[mid] <= j)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            final long before = low == 0 ? 0 : cumulative[low - 1];
+            return (int) (getStart(low) + j - before);
+        }
+        throw new IllegalArgumentException("select " + j + " when the cardinality is " + getLongCardinality());
+    }
+
+    @Override
+    public Container runOptimize() {
+        // 与同样内容的ArrayContainer比较，每个值4字节
+        if (sizeInBytes(nbrruns) <= 4 * cardinality + 4)
+            return this;
+        return toEfficientContainer();
+    }
+
+    @Override
+    public int serializedSizeInBytes() {
+        return sizeInBytes(nbrruns);
+    }
+
+    @Override
+    byte serializedType() {
+        return RUN_TYPE;
+    }
+
+    private void setLength(final int i, final long length) {
+        valueslength[2 * i + 1] = (int) length;
+        invalidateFrom(i);
+    }
+
+    // 追加一段，与最后一段重叠或相接则合并，起点不能小于最后一段的起点
+    private void unionRun(final long start, final long end) {
+        if (nbrruns > 0 && start <= getEnd(nbrruns - 1) + 1) {
+            final long lastEnd = getEnd(nbrruns - 1);
+            if (end > lastEnd) {
+                setLength(nbrruns - 1, end - getStart(nbrruns - 1));
+                cardinality += end - lastEnd;
+            }
+        } else {
+            appendRun(start, end);
+        }
+    }
+
+    // 段数过多且平均每段不足两个值时，行程编码已不划算
+    private Container toEfficientContainerIfLarge() {
+        if (nbrruns >= ArrayContainer.DEFAULT_MAX_SIZE / 2 && 2L * nbrruns > cardinality)
+            return toEfficientContainer();
+        return this;
+    }
+
+    private Container toEfficientContainer() {
+        if (cardinality <= ArrayContainer.DEFAULT_MAX_SIZE) {
+            final int[] content = new int[(int) cardinality];
+            final IntegerIterator it = getIntegerIterator();
+            for (int k = 0; k < cardinality; ++k)
+                content[k] = it.next();
+            return new ArrayContainer(content);
+        }
+        final NestedContainer nc = new NestedContainer();
+        final IntegerIterator it = getIntegerIterator();
+        while (it.hasNext())
+            nc.add(it.next());
+        return nc;
+    }
+
+    @Override
+    RunContainer toRunContainer() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nbrruns; ++i)
+            sb.append("[").append(getStart(i)).append(",").append(getEnd(i)).append("]");
+        return sb.toString();
+    }
+
+    @Override
+    public void trim() {
+        this.valueslength = Arrays.copyOf(this.valueslength, 2 * nbrruns);
+    }
+
+    @Override
+    public Container xor(final Container x) {
+        if (x instanceof RunContainer)
+            return xor((RunContainer) x);
+        return super.xor(x);
+    }
+
+    /**
+     * Symmetric difference with another run container: the union minus the
+     * intersection.
+     *
+     * @param x other container
+     * @return the symmetric difference
+     */
+    public RunContainer xor(final RunContainer x) {
+        return or(x).andNot(and(x));
+    }
+
+    @Override
+    protected void writeArray(final ByteBuffer out) {
+        out.putInt(nbrruns);
+        out.asIntBuffer().put(valueslength, 0, 2 * nbrruns);
+        out.position(out.position() + 8 * nbrruns);
+    }
+}
@@ -0,0 +1,282 @@
+package org.roaringbitmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 16位有序数组子container，按无符号顺序存储。
+ */
+public final class ShortArrayContainer extends ShortContainer {
+    private static final int DEFAULT_INIT_SIZE = 4;
+
+    // 超过该阈值转为ShortBitmapContainer（8kb）
+    static final int DEFAULT_MAX_SIZE = 4096;
+
+    int cardinality = 0;
+
+    short[] content;
+
+    /**
+     * Create an array container with default capacity
+     */
+    public ShortArrayContainer() {
+        this(DEFAULT_INIT_SIZE);
+    }
+
+    /**
+     * Create an array container with specified capacity
+     *
+     * @param capacity The capacity of the container
+     */
+    public ShortArrayContainer(final int capacity) {
+        content = new short[capacity];
+    }
+
+    ShortArrayContainer(final int newCard, final short[] newContent) {
+        this.cardinality = newCard;
+        this.content = newContent;
+    }
+
+    @Override
+    public ShortContainer add(final short x) {
+        final int ix = Util.toIntUnsigned(x);
+        if ((cardinality == 0) || ix > Util.toIntUnsigned(content[cardinality - 1])) {
+            if (cardinality >= DEFAULT_MAX_SIZE)
+                return toBitmapContainer().add(x);
+            if (cardinality >= this.content.length)
+                increaseCapacity();
+            content[cardinality++] = x;
+            return this;
+        }
+        final int loc = Util.unsignedBinarySearch(content, 0, cardinality, x);
+        if (loc < 0) {
+            if (cardinality >= DEFAULT_MAX_SIZE)
+                return toBitmapContainer().add(x);
+            if (cardinality >= this.content.length)
+                increaseCapacity();
+            System.arraycopy(content, -loc - 1, content, -loc, cardinality + loc + 1);
+            content[-loc - 1] = x;
+            ++cardinality;
+        }
+        return this;
+    }
+
+    @Override
+    int cardinalityInRange(final int start, final int end) {
+        return lowerBound(end) - lowerBound(start);
+    }
+
+    @Override
+    public ShortArrayContainer clone() {
+        return new ShortArrayContainer(this.cardinality, Arrays.copyOf(this.content, this.cardinality));
+    }
+
+    @Override
+    public boolean contains(final short x) {
+        return Util.unsignedBinarySearch(content, 0, cardinality, x) >= 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ShortArrayContainer) {
+            ShortArrayContainer srb = (ShortArrayContainer) o;
+            if (srb.cardinality != this.cardinality)
+                return false;
+            for (int i = 0; i < this.cardinality; ++i) {
+                if (this.content[i] != srb.content[i])
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 逐个查找：keep为true保留x中存在的值（交集），否则保留不存在的值（差集）
+    ShortContainer filter(final ShortContainer x, final boolean keep) {
+        final short[] buffer = new short[cardinality];
+        int pos = 0;
+        for (int k = 0; k < cardinality; ++k) {
+            if (x.contains(content[k]) == keep)
+                buffer[pos++] = content[k];
+        }
+        return new ShortArrayContainer(pos, buffer);
+    }
+
+    @Override
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    @Override
+    ShortIterator getShortIterator(final int from) {
+        return new ShortIterator() {
+            int pos = lowerBound(from);
+
+            @Override
+            public boolean hasNext() {
+                return pos < ShortArrayContainer.this.cardinality;
+            }
+
+            @Override
+            public short next() {
+                return ShortArrayContainer.this.content[pos++];
+            }
+
+            @Override
+            public void remove() {
+                ShortArrayContainer.this.remove(ShortArrayContainer.this.content[pos - 1]);
+                pos--;
+            }
+        };
+    }
+
+    @Override
+    public int getSizeInBytes() {
+        return this.cardinality * 2 + 4;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int k = 0; k < cardinality; ++k)
+            hash += 31 * content[k];
+        return hash;
+    }
+
+    private void increaseCapacity() {
+        int newCapacity = this.content.length < 64 ? this.content.length * 2
+                : this.content.length < 1024 ? this.content.length * 3 / 2
+                : this.content.length * 5 / 4;
+        if (newCapacity > DEFAULT_MAX_SIZE)
+            newCapacity = DEFAULT_MAX_SIZE;
+        this.content = Arrays.copyOf(this.content, newCapacity);
+    }
+
+    // 两个有序数组归并
+    ShortContainer merge(final ShortArrayContainer x, final int op) {
+        final short[] buffer;
+        final int card;
+        switch (op) {
+            case Container.AND:
+                buffer = new short[Math.min(cardinality, x.cardinality)];
+                card = Util.unsignedIntersect2by2(content, cardinality, x.content, x.cardinality, buffer);
+                break;
+            case Container.OR:
+                buffer = new short[cardinality + x.cardinality];
+                card = Util.unsignedUnion2by2(content, cardinality, x.content, x.cardinality, buffer);
+                break;
+            case Container.XOR:
+                buffer = new short[cardinality + x.cardinality];
+                card = Util.unsignedExclusiveUnion2by2(content, cardinality, x.content, x.cardinality, buffer);
+                break;
+            default:
+                buffer = new short[cardinality];
+                card = Util.unsignedDifference(content, cardinality, x.content, x.cardinality, buffer);
+        }
+        final ShortArrayContainer answer = new ShortArrayContainer(card, buffer);
+        return card > DEFAULT_MAX_SIZE ? answer.toBitmapContainer() : answer;
+    }
+
+    // 第一个不小于x的位置，x可以为65536
+    int lowerBound(final int x) {
+        if (x > 0xFFFF)
+            return cardinality;
+        final int loc = Util.unsignedBinarySearch(content, 0, cardinality, (short) x);
+        return loc >= 0 ? loc : -loc - 1;
+    }
+
+    // 连续段的个数
+    @Override
+    int numberOfRuns() {
+        if (cardinality == 0)
+            return 0;
+        int runs = 1;
+        for (int k = 1; k < cardinality; ++k) {
+            if (Util.toIntUnsigned(content[k]) != Util.toIntUnsigned(content[k - 1]) + 1)
+                ++runs;
+        }
+        return runs;
+    }
+
+    @Override
+    int previousValue(final int from) {
+        final int pos = lowerBound(from + 1) - 1;
+        return pos >= 0 ? Util.toIntUnsigned(content[pos]) : -1;
+    }
+
+    @Override
+    public ShortContainer remove(final short x) {
+        final int loc = Util.unsignedBinarySearch(content, 0, cardinality, x);
+        if (loc >= 0) {
+            System.arraycopy(content, loc + 1, content, loc, cardinality - loc - 1);
+            --cardinality;
+        }
+        return this;
+    }
+
+    @Override
+    public ShortContainer runOptimize() {
+        final int runs = numberOfRuns();
+        // run: 每段4字节，array: 每个值2字节
+        if (ShortRunContainer.sizeInBytes(runs) < cardinality * 2)
+            return new ShortRunContainer(this, runs);
+        return this;
+    }
+
+    @Override
+    int select(final int j) {
+        return Util.toIntUnsigned(content[j]);
+    }
+
+    @Override
+    int serializedSizeInBytes() {
+        return cardinality * 2;
+    }
+
+    @Override
+    byte serializedType() {
+        return Container.ARRAY_TYPE;
+    }
+
+    /**
+     * Copies the data in a bitmap container.
+     *
+     * @return the bitmap container
+     */
+    public ShortBitmapContainer toBitmapContainer() {
+        final ShortBitmapContainer bc = new ShortBitmapContainer();
+        for (int k = 0; k < cardinality; ++k) {
+            final int x = Util.toIntUnsigned(content[k]);
+            bc.bitmap[x >>> 6] |= 1L << x;
+        }
+        bc.cardinality = cardinality;
+        return bc;
+    }
+
+    @Override
+    long[] toWords() {
+        return toBitmapContainer().bitmap;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < this.cardinality; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(Util.toIntUnsigned(this.content[i]));
+        }
+        return sb.append("}").toString();
+    }
+
+    @Override
+    public void trim() {
+        this.content = Arrays.copyOf(this.content, this.cardinality);
+    }
+
+    @Override
+    void writeArray(final ByteBuffer out) {
+        out.asShortBuffer().put(content, 0, cardinality);
+        out.position(out.position() + 2 * cardinality);
+    }
+}
@@ -0,0 +1,257 @@
+package org.roaringbitmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 16位bitmap子container，固定1024个long（8kb），即原版roaring的BitmapContainer。
+ */
+public final class ShortBitmapContainer extends ShortContainer {
+    static final int WORDS = 1 << 10;
+
+    long[] bitmap;
+
+    int cardinality;
+
+    /**
+     * Create a bitmap container with all bits set to false
+     */
+    public ShortBitmapContainer() {
+        this.bitmap = new long[WORDS];
+    }
+
+    ShortBitmapContainer(final int newCardinality, final long[] newBitmap) {
+        this.cardinality = newCardinality;
+        this.bitmap = newBitmap;
+    }
+
+    @Override
+    public ShortContainer add(final short i) {
+        final int x = Util.toIntUnsigned(i);
+        final long previous = bitmap[x >>> 6];
+        bitmap[x >>> 6] |= (1L << x);
+        cardinality += (previous ^ bitmap[x >>> 6]) >>> x;
+        return this;
+    }
+
+    @Override
+    int cardinalityInRange(final int start, final int end) {
+        if (start >= end)
+            return 0;
+        final int firstWord = start >>> 6;
+        final int lastWord = (end - 1) >>> 6;
+        if (firstWord == lastWord)
+            return Long.bitCount(bitmap[firstWord] & (-1L << start) & (-1L >>> -end));
+        int count = Long.bitCount(bitmap[firstWord] & (-1L << start));
+        for (int k = firstWord + 1; k < lastWord; ++k)
+            count += Long.bitCount(bitmap[k]);
+        return count + Long.bitCount(bitmap[lastWord] & (-1L >>> -end));
+    }
+
+    @Override
+    public ShortBitmapContainer clone() {
+        return new ShortBitmapContainer(this.cardinality, this.bitmap.clone());
+    }
+
+    @Override
+    public boolean contains(final short i) {
+        final int x = Util.toIntUnsigned(i);
+        return (bitmap[x >>> 6] & (1L << x)) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ShortBitmapContainer) {
+            ShortBitmapContainer srb = (ShortBitmapContainer) o;
+            return srb.cardinality == this.cardinality && Arrays.equals(this.bitmap, srb.bitmap);
+        }
+        return false;
+    }
+
+    @Override
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    @Override
+    ShortIterator getShortIterator(final int from) {
+        return new ShortIterator() {
+            int i = from < 1 << 16 ? ShortBitmapContainer.this.nextSetBit(from) : -1;
+            int j;
+
+            @Override
+            public boolean hasNext() {
+                return i >= 0;
+            }
+
+            @Override
+            public short next() {
+                j = i;
+                i = ShortBitmapContainer.this.nextSetBit(i + 1);
+                return (short) j;
+            }
+
+            @Override
+            public void remove() {
+                ShortBitmapContainer.this.remove((short) j);
+            }
+        };
+    }
+
+    @Override
+    public int getSizeInBytes() {
+        return WORDS * 8;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.bitmap);
+    }
+
+    /**
+     * Find the index of the next set bit greater or equal to i, returns -1
+     * if none found.
+     *
+     * @param i starting index
+     * @return index of the next set bit
+     */
+    public int nextSetBit(final int i) {
+        int x = i >>> 6;
+        if (x >= WORDS)
+            return -1;
+        long w = bitmap[x] >>> i;
+        if (w != 0)
+            return i + Long.numberOfTrailingZeros(w);
+        for (++x; x < WORDS; ++x) {
+            if (bitmap[x] != 0)
+                return x * 64 + Long.numberOfTrailingZeros(bitmap[x]);
+        }
+        return -1;
+    }
+
+    // 连续段的个数：统计每段的终点（本位为1且下一位为0）
+    @Override
+    int numberOfRuns() {
+        int runs = 0;
+        for (int k = 0; k < WORDS; ++k) {
+            final long word = bitmap[k];
+            final long next = k + 1 < WORDS ? bitmap[k + 1] : 0;
+            runs += Long.bitCount(word & ~((word >>> 1) | (next << 63)));
+        }
+        return runs;
+    }
+
+    /**
+     * Find the index of the previous set bit less than or equal to i,
+     * returns -1 if none found.
+     *
+     * @param i starting index, may be -1
+     * @return index of the previous set bit
+     */
+    public int previousSetBit(final int i) {
+        if (i < 0)
+            return -1;
+        int x = i >>> 6;
+        final long w = bitmap[x] << (63 - (i & 63));
+        if (w != 0)
+            return i - Long.numberOfLeadingZeros(w);
+        for (--x; x >= 0; --x) {
+            if (bitmap[x] != 0)
+                return x * 64 + 63 - Long.numberOfLeadingZeros(bitmap[x]);
+        }
+        return -1;
+    }
+
+    @Override
+    int previousValue(final int from) {
+        return previousSetBit(from);
+    }
+
+    @Override
+    public ShortContainer remove(final short i) {
+        final int x = Util.toIntUnsigned(i);
+        if ((bitmap[x >>> 6] & (1L << x)) == 0)
+            return this;
+        bitmap[x >>> 6] &= ~(1L << x);
+        --cardinality;
+        if (cardinality == ShortArrayContainer.DEFAULT_MAX_SIZE)
+            return this.toArrayContainer();
+        return this;
+    }
+
+    @Override
+    public ShortContainer runOptimize() {
+        final int runs = numberOfRuns();
+        if (ShortRunContainer.sizeInBytes(runs) < WORDS * 8)
+            return new ShortRunContainer(this, runs);
+        return this;
+    }
+
+    @Override
+    int select(final int j) {
+        int left = j;
+        for (int k = 0; k < WORDS; ++k) {
+            final int bits = Long.bitCount(bitmap[k]);
+            if (left < bits)
+                return k * 64 + Util.select(bitmap[k], left);
+            left -= bits;
+        }
+        throw new IllegalArgumentException("select " + j + " when the cardinality is " + cardinality);
+    }
+
+    @Override
+    int serializedSizeInBytes() {
+        return WORDS * 8;
+    }
+
+    @Override
+    byte serializedType() {
+        return Container.BITMAP_TYPE;
+    }
+
+    /**
+     * Copies the data to an array container
+     *
+     * @return the array container
+     */
+    public ShortArrayContainer toArrayContainer() {
+        final short[] content = new short[cardinality];
+        int pos = 0;
+        for (int k = 0; k < WORDS; ++k) {
+            long bitset = bitmap[k];
+            while (bitset != 0) {
+                content[pos++] = (short) (k * 64 + Long.numberOfTrailingZeros(bitset));
+                bitset &= bitset - 1;
+            }
+        }
+        return new ShortArrayContainer(cardinality, content);
+    }
+
+    @Override
+    long[] toWords() {
+        return bitmap;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        int i = this.nextSetBit(0);
+        while (i >= 0) {
+            sb.append(i);
+            i = this.nextSetBit(i + 1);
+            if (i >= 0)
+                sb.append(",");
+        }
+        return sb.append("}").toString();
+    }
+
+    @Override
+    public void trim() {
+    }
+
+    @Override
+    void writeArray(final ByteBuffer out) {
+        out.asLongBuffer().put(bitmap);
+        out.position(out.position() + 8 * WORDS);
+    }
+}
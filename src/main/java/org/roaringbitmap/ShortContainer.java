@@ -0,0 +1,302 @@
+package org.roaringbitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 16位子container的基类，即原版roaring中的container。
+ * 由NestedContainer使用，32位的低位再拆分为16位key + 16位值。
+ */
+public abstract class ShortContainer implements Cloneable {
+
+    /**
+     * Add a short to the container. May generate a new container.
+     *
+     * @param x short to be added
+     * @return the new container
+     */
+    public abstract ShortContainer add(short x);
+
+    /**
+     * Computes the intersection with another sub-container.
+     *
+     * @param x other container
+     * @return a new container
+     */
+    public ShortContainer and(final ShortContainer x) {
+        return op(x, Container.AND);
+    }
+
+    /**
+     * Counts the values present in both sub-containers without allocating.
+     *
+     * @param x   other container
+     * @param any whether to stop at the first common value (returning 1)
+     * @return the cardinality of the intersection, or 0/1 when any is set
+     */
+    int andCardinality(final ShortContainer x, final boolean any) {
+        if (this instanceof ShortArrayContainer && x instanceof ShortArrayContainer) {
+            final ShortArrayContainer a = (ShortArrayContainer) this;
+            final ShortArrayContainer b = (ShortArrayContainer) x;
+            return Util.unsignedIntersectCardinality(a.content, a.cardinality, b.content, b.cardinality, any);
+        }
+        if (x instanceof ShortArrayContainer || x instanceof ShortRunContainer && this instanceof ShortBitmapContainer)
+            return x.andCardinality(this, any);
+        if (this instanceof ShortArrayContainer) {
+            final ShortArrayContainer a = (ShortArrayContainer) this;
+            int count = 0;
+            for (int k = 0; k < a.cardinality; ++k) {
+                if (x.contains(a.content[k])) {
+                    if (any)
+                        return 1;
+                    ++count;
+                }
+            }
+            return count;
+        }
+        if (this instanceof ShortRunContainer) {
+            // 逐段统计另一方在[start, end]内的个数
+            final ShortRunContainer a = (ShortRunContainer) this;
+            int count = 0;
+            for (int i = 0; i < a.nbrruns; ++i) {
+                count += x.cardinalityInRange(a.getStart(i), a.getEnd(i) + 1);
+                if (any && count > 0)
+                    return 1;
+            }
+            return count;
+        }
+        // 两个bitmap
+        final long[] wa = ((ShortBitmapContainer) this).bitmap;
+        final long[] wb = ((ShortBitmapContainer) x).bitmap;
+        int count = 0;
+        for (int k = 0; k < ShortBitmapContainer.WORDS; ++k)
+            count += Long.bitCount(wa[k] & wb[k]);
+        return any && count > 0 ? 1 : count;
+    }
+
+    /**
+     * Number of values in [start, end).
+     *
+     * @param start first value (inclusive)
+     * @param end   last value (exclusive), at most 65536
+     * @return the count
+     */
+    abstract int cardinalityInRange(int start, int end);
+
+    /**
+     * Computes the difference with another sub-container.
+     *
+     * @param x other container
+     * @return a new container
+     */
+    public ShortContainer andNot(final ShortContainer x) {
+        return op(x, Container.ANDNOT);
+    }
+
+    @Override
+    public abstract ShortContainer clone();
+
+    /**
+     * Checks whether the contain contains the provided value
+     *
+     * @param x value to check
+     * @return whether the value is in the container
+     */
+    public abstract boolean contains(short x);
+
+    /**
+     * Computes the distinct number of short values in the container.
+     *
+     * @return the cardinality
+     */
+    public abstract int getCardinality();
+
+    /**
+     * Iterator to visit the short values in the container, in unsigned
+     * order.
+     *
+     * @return iterator
+     */
+    public ShortIterator getShortIterator() {
+        return getShortIterator(0);
+    }
+
+    /**
+     * Iterator starting at the first value not smaller than from.
+     *
+     * @param from unsigned value, may be 65536 (empty iterator)
+     * @return iterator
+     */
+    abstract ShortIterator getShortIterator(int from);
+
+    /**
+     * Computes an estimate of the memory usage of this container.
+     *
+     * @return estimated memory usage in bytes
+     */
+    public abstract int getSizeInBytes();
+
+    /**
+     * Number of runs of consecutive values.
+     *
+     * @return the number of runs
+     */
+    abstract int numberOfRuns();
+
+    // 两个有序数组直接归并，数组与其它类型求交/差时逐个查找，其余情况按1024个long做位运算
+    private ShortContainer op(final ShortContainer x, final int op) {
+        if (this instanceof ShortArrayContainer && x instanceof ShortArrayContainer)
+            return ((ShortArrayContainer) this).merge((ShortArrayContainer) x, op);
+        if (this instanceof ShortArrayContainer && (op == Container.AND || op == Container.ANDNOT))
+            return ((ShortArrayContainer) this).filter(x, op == Container.AND);
+        if (x instanceof ShortArrayContainer && op == Container.AND)
+            return ((ShortArrayContainer) x).filter(this, true);
+        final long[] a = toWords();
+        final long[] b = x.toWords();
+        final long[] words = new long[ShortBitmapContainer.WORDS];
+        int card = 0;
+        for (int k = 0; k < words.length; ++k) {
+            final long w;
+            switch (op) {
+                case Container.AND:
+                    w = a[k] & b[k];
+                    break;
+                case Container.OR:
+                    w = a[k] | b[k];
+                    break;
+                case Container.XOR:
+                    w = a[k] ^ b[k];
+                    break;
+                default:
+                    w = a[k] & ~b[k];
+            }
+            words[k] = w;
+            card += Long.bitCount(w);
+        }
+        return fromWords(words, card);
+    }
+
+    /**
+     * Computes the union with another sub-container.
+     *
+     * @param x other container
+     * @return a new container
+     */
+    public ShortContainer or(final ShortContainer x) {
+        return op(x, Container.OR);
+    }
+
+    /**
+     * The largest value not larger than from.
+     *
+     * @param from unsigned value, may be -1
+     * @return the unsigned value, or -1 if there is none
+     */
+    abstract int previousValue(int from);
+
+    /**
+     * Remove the short from this container. May create a new container.
+     *
+     * @param x to be removed
+     * @return New container
+     */
+    public abstract ShortContainer remove(short x);
+
+    /**
+     * Number of bytes written by writeArray.
+     *
+     * @return the size in bytes
+     */
+    abstract int serializedSizeInBytes();
+
+    /**
+     * The j-th smallest value, counting from 0.
+     *
+     * @param j index, smaller than the cardinality
+     * @return the unsigned value
+     */
+    abstract int select(int j);
+
+    /**
+     * Type of the sub-container in the serialized format.
+     *
+     * @return one of Container.ARRAY_TYPE, BITMAP_TYPE, RUN_TYPE
+     */
+    abstract byte serializedType();
+
+    /**
+     * Convert to the smallest of the array, bitmap and run representations.
+     *
+     * @return this or a new container
+     */
+    public abstract ShortContainer runOptimize();
+
+    /**
+     * The content as 1024 words; the result must not be modified.
+     *
+     * @return the words
+     */
+    abstract long[] toWords();
+
+    /**
+     * If possible, recover wasted memory.
+     */
+    public abstract void trim();
+
+    /**
+     * Write the content to a little-endian buffer.
+     *
+     * @param out output buffer
+     */
+    abstract void writeArray(ByteBuffer out);
+
+    /**
+     * Computes the symmetric difference with another sub-container.
+     *
+     * @param x other container
+     * @return a new container
+     */
+    public ShortContainer xor(final ShortContainer x) {
+        return op(x, Container.XOR);
+    }
+
+    /**
+     * Read a sub-container written by writeArray.
+     *
+     * @param in          little-endian buffer positioned at the sub-container
+     * @param type        serialized type
+     * @param cardinality cardinality from the nested index
+     * @return the sub-container
+     * @throws IOException if the type is unknown
+     */
+    static ShortContainer deserialize(final ByteBuffer in, final byte type, final int cardinality)
+            throws IOException {
+        switch (type) {
+            case Container.ARRAY_TYPE:
+                final short[] content = new short[cardinality];
+                in.asShortBuffer().get(content);
+                in.position(in.position() + 2 * cardinality);
+                return new ShortArrayContainer(cardinality, content);
+            case Container.BITMAP_TYPE:
+                final long[] bitmap = new long[ShortBitmapContainer.WORDS];
+                in.asLongBuffer().get(bitmap);
+                in.position(in.position() + 8 * ShortBitmapContainer.WORDS);
+                return new ShortBitmapContainer(cardinality, bitmap);
+            case Container.RUN_TYPE:
+                final int nbrruns = Util.toIntUnsigned(in.getShort());
+                final short[] valueslength = new short[2 * nbrruns];
+                in.asShortBuffer().get(valueslength);
+                in.position(in.position() + 4 * nbrruns);
+                return new ShortRunContainer(nbrruns, valueslength, cardinality);
+            default:
+                throw new IOException("unknown sub-container type " + type);
+        }
+    }
+
+    // 根据基数选择array或bitmap
+    protected static ShortContainer fromWords(final long[] words, final int cardinality) {
+        if (cardinality > ShortArrayContainer.DEFAULT_MAX_SIZE)
+            return new ShortBitmapContainer(cardinality, words);
+        return new ShortBitmapContainer(cardinality, words).toArrayContainer();
+    }
+}
@@ -0,0 +1,379 @@
+package org.roaringbitmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 16位行程编码子container，valueslength中依次存放(起点, 长度-1)，均按无符号处理。
+ */
+public final class ShortRunContainer extends ShortContainer {
+    private static final int DEFAULT_INIT_SIZE = 4;
+
+    short[] valueslength;
+
+    int nbrruns = 0;
+
+    int cardinality = 0;
+
+    /**
+     * Create an empty run container
+     */
+    public ShortRunContainer() {
+        this.valueslength = new short[2 * DEFAULT_INIT_SIZE];
+    }
+
+    ShortRunContainer(final int nbrruns, final short[] valueslength, final int cardinality) {
+        this.nbrruns = nbrruns;
+        this.valueslength = valueslength;
+        this.cardinality = cardinality;
+    }
+
+    ShortRunContainer(final ShortArrayContainer arr, final int runs) {
+        this.valueslength = new short[2 * runs];
+        this.cardinality = arr.cardinality;
+        if (arr.cardinality == 0)
+            return;
+        int start = Util.toIntUnsigned(arr.content[0]);
+        int prev = start;
+        for (int k = 1; k < arr.cardinality; ++k) {
+            final int v = Util.toIntUnsigned(arr.content[k]);
+            if (v != prev + 1) {
+                appendRun(start, prev - start);
+                start = v;
+            }
+            prev = v;
+        }
+        appendRun(start, prev - start);
+    }
+
+    ShortRunContainer(final ShortBitmapContainer bc, final int runs) {
+        this.valueslength = new short[2 * runs];
+        this.cardinality = bc.cardinality;
+        int start = bc.nextSetBit(0);
+        while (start >= 0) {
+            final int end = nextClearBit(bc.bitmap, start);
+            appendRun(start, end - 1 - start);
+            start = end < 1 << 16 ? bc.nextSetBit(end) : -1;
+        }
+    }
+
+    // [begin, end)的一段
+    static ShortRunContainer range(final int begin, final int end) {
+        return new ShortRunContainer(1, new short[]{(short) begin, (short) (end - 1 - begin)}, end - begin);
+    }
+
+    // 以行程编码表示任意子container
+    static ShortRunContainer from(final ShortContainer c) {
+        if (c instanceof ShortRunContainer)
+            return (ShortRunContainer) c;
+        if (c instanceof ShortArrayContainer)
+            return new ShortRunContainer((ShortArrayContainer) c, c.numberOfRuns());
+        return new ShortRunContainer((ShortBitmapContainer) c, c.numberOfRuns());
+    }
+
+    // 从i开始第一个为0的比特
+    private static int nextClearBit(final long[] bitmap, final int i) {
+        int x = i >>> 6;
+        long w = ~bitmap[x] & (-1L << i);
+        while (w == 0) {
+            if (++x == bitmap.length)
+                return 1 << 16;
+            w = ~bitmap[x];
+        }
+        return x * 64 + Long.numberOfTrailingZeros(w);
+    }
+
+    /**
+     * Serialized size of a run container with the given number of runs.
+     *
+     * @param runs number of runs
+     * @return size in bytes
+     */
+    static int sizeInBytes(final int runs) {
+        return 2 + 4 * runs;
+    }
+
+    @Override
+    public ShortContainer add(final short k) {
+        final int x = Util.toIntUnsigned(k);
+        final int i = floorRun(x);
+        if (i >= 0 && x <= getEnd(i))
+            return this;
+        ++cardinality;
+        if (i >= 0 && x == getEnd(i) + 1) {
+            setLength(i, getLength(i) + 1);
+            // 与后一段相接则合并
+            if (i + 1 < nbrruns && getStart(i + 1) == x + 1) {
+                setLength(i, getEnd(i + 1) - getStart(i));
+                removeRun(i + 1);
+            }
+        } else if (i + 1 < nbrruns && getStart(i + 1) == x + 1) {
+            setValue(i + 1, x);
+            setLength(i + 1, getLength(i + 1) + 1);
+        } else {
+            insertRun(i + 1, x, 0);
+        }
+        return toEfficientContainerIfLarge();
+    }
+
+    private void appendRun(final int start, final int length) {
+        valueslength[2 * nbrruns] = (short) start;
+        valueslength[2 * nbrruns + 1] = (short) length;
+        ++nbrruns;
+    }
+
+    @Override
+    int cardinalityInRange(final int start, final int end) {
+        int count = 0;
+        for (int i = Math.max(0, floorRun(start)); i < nbrruns && getStart(i) < end; ++i)
+            count += Math.max(0, Math.min(getEnd(i) + 1, end) - Math.max(getStart(i), start));
+        return count;
+    }
+
+    @Override
+    public ShortRunContainer clone() {
+        return new ShortRunContainer(nbrruns, Arrays.copyOf(valueslength, 2 * nbrruns), cardinality);
+    }
+
+    @Override
+    public boolean contains(final short k) {
+        final int x = Util.toIntUnsigned(k);
+        final int i = floorRun(x);
+        return i >= 0 && x <= getEnd(i);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ShortRunContainer) {
+            ShortRunContainer srb = (ShortRunContainer) o;
+            if (srb.nbrruns != this.nbrruns)
+                return false;
+            for (int i = 0; i < 2 * nbrruns; ++i) {
+                if (this.valueslength[i] != srb.valueslength[i])
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 起点不大于x的最后一段，没有则返回-1
+    private int floorRun(final int x) {
+        int low = 0;
+        int high = nbrruns - 1;
+        while (low <= high) {
+            final int middleIndex = (low + high) >>> 1;
+            final int middleValue = getStart(middleIndex);
+            if (middleValue < x)
+                low = middleIndex + 1;
+            else if (middleValue > x)
+                high = middleIndex - 1;
+            else
+                return middleIndex;
+        }
+        return low - 1;
+    }
+
+    @Override
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    int getEnd(final int i) {
+        return getStart(i) + getLength(i);
+    }
+
+    int getLength(final int i) {
+        return Util.toIntUnsigned(valueslength[2 * i + 1]);
+    }
+
+    @Override
+    ShortIterator getShortIterator(final int from) {
+        return new ShortIterator() {
+            int run;
+
+            int offset;
+
+            int last;
+
+            ShortIterator init() {
+                run = floorRun(from);
+                if (run >= 0 && from <= getEnd(run)) {
+                    offset = from - getStart(run);
+                } else {
+                    ++run;
+                    offset = 0;
+                }
+                return this;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return run < ShortRunContainer.this.nbrruns;
+            }
+
+            @Override
+            public short next() {
+                last = getStart(run) + offset;
+                if (offset++ == getLength(run)) {
+                    ++run;
+                    offset = 0;
+                }
+                return (short) last;
+            }
+
+            @Override
+            public void remove() {
+                // 删除可能拆分或合并段，按当前值重新定位
+                ShortRunContainer.this.remove((short) last);
+                final int i = floorRun(last + 1);
+                if (i >= 0 && last + 1 <= getEnd(i)) {
+                    run = i;
+                    offset = last + 1 - getStart(i);
+                } else {
+                    run = i + 1;
+                    offset = 0;
+                }
+            }
+        }.init();
+    }
+
+    @Override
+    public int getSizeInBytes() {
+        return sizeInBytes(nbrruns) + 4;
+    }
+
+    int getStart(final int i) {
+        return Util.toIntUnsigned(valueslength[2 * i]);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int k = 0; k < 2 * nbrruns; ++k)
+            hash = 31 * hash + valueslength[k];
+        return hash;
+    }
+
+    private void insertRun(final int i, final int start, final int length) {
+        if (2 * (nbrruns + 1) > valueslength.length)
+            valueslength = Arrays.copyOf(valueslength, Math.max(2 * DEFAULT_INIT_SIZE, valueslength.length * 2));
+        System.arraycopy(valueslength, 2 * i, valueslength, 2 * i + 2, 2 * (nbrruns - i));
+        valueslength[2 * i] = (short) start;
+        valueslength[2 * i + 1] = (short) length;
+        ++nbrruns;
+    }
+
+    @Override
+    int numberOfRuns() {
+        return nbrruns;
+    }
+
+    @Override
+    int previousValue(final int from) {
+        final int k = from < 0 ? -1 : floorRun(from);
+        return k < 0 ? -1 : Math.min(from, getEnd(k));
+    }
+
+    @Override
+    public ShortContainer remove(final short k) {
+        final int x = Util.toIntUnsigned(k);
+        final int i = floorRun(x);
+        if (i < 0 || x > getEnd(i))
+            return this;
+        --cardinality;
+        final int start = getStart(i);
+        final int end = getEnd(i);
+        if (start == end) {
+            removeRun(i);
+        } else if (x == start) {
+            setValue(i, x + 1);
+            setLength(i, end - x - 1);
+        } else if (x == end) {
+            setLength(i, end - start - 1);
+        } else {
+            // 从中间拆成两段
+            setLength(i, x - 1 - start);
+            insertRun(i + 1, x + 1, end - x - 1);
+        }
+        return toEfficientContainerIfLarge();
+    }
+
+    private void removeRun(final int i) {
+        System.arraycopy(valueslength, 2 * i + 2, valueslength, 2 * i, 2 * (nbrruns - i - 1));
+        --nbrruns;
+    }
+
+    @Override
+    public ShortContainer runOptimize() {
+        final int arraySize = cardinality * 2;
+        if (sizeInBytes(nbrruns) <= Math.min(arraySize, ShortBitmapContainer.WORDS * 8))
+            return this;
+        return fromWords(toWords(), cardinality);
+    }
+
+    @Override
+    int select(final int j) {
+        int left = j;
+        for (int k = 0; k < nbrruns; ++k) {
+            final int length = getLength(k) + 1;
+            if (left < length)
+                return getStart(k) + left;
+            left -= length;
+        }
+        throw new IllegalArgumentException("select " + j + " when the cardinality is " + cardinality);
+    }
+
+    @Override
+    int serializedSizeInBytes() {
+        return sizeInBytes(nbrruns);
+    }
+
+    @Override
+    byte serializedType() {
+        return Container.RUN_TYPE;
+    }
+
+    private void setLength(final int i, final int length) {
+        valueslength[2 * i + 1] = (short) length;
+    }
+
+    private void setValue(final int i, final int start) {
+        valueslength[2 * i] = (short) start;
+    }
+
+    // 段数过多时（超过一个bitmap的大小）转换
+    private ShortContainer toEfficientContainerIfLarge() {
+        if (sizeInBytes(nbrruns) > ShortBitmapContainer.WORDS * 8)
+            return fromWords(toWords(), cardinality);
+        return this;
+    }
+
+    @Override
+    long[] toWords() {
+        final long[] words = new long[ShortBitmapContainer.WORDS];
+        for (int i = 0; i < nbrruns; ++i)
+            Util.setBitmapRange(words, getStart(i), getEnd(i) + 1);
+        return words;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nbrruns; ++i)
+            sb.append("[").append(getStart(i)).append(",").append(getEnd(i)).append("]");
+        return sb.toString();
+    }
+
+    @Override
+    public void trim() {
+        this.valueslength = Arrays.copyOf(this.valueslength, 2 * nbrruns);
+    }
+
+    @Override
+    void writeArray(final ByteBuffer out) {
+        out.putShort((short) nbrruns);
+        out.asShortBuffer().put(valueslength, 0, 2 * nbrruns);
+        out.position(out.position() + 4 * nbrruns);
+    }
+}
@@ -5,6 +5,8 @@
 
 package org.roaringbitmap;
 
+import java.util.Arrays;
+
 /**
  * Various useful methods for roaring bitmaps.
  */
@@ -16,6 +18,27 @@ public final class Util {
     private Util() {
     }
 
+    /**
+     * Set the bits in [start, end) of a bitmap to 1.
+     *
+     * @param bitmap array of words
+     * @param start  first bit (inclusive)
+     * @param end    last bit (exclusive)
+     */
+    protected static void setBitmapRange(long[] bitmap, int start, int end) {
+        if (start >= end)
+            return;
+        final int firstWord = start >>> 6;
+        final int lastWord = (end - 1) >>> 6;
+        if (firstWord == lastWord) {
+            bitmap[firstWord] |= (-1L << start) & (-1L >>> -end);
+            return;
+        }
+        bitmap[firstWord] |= -1L << start;
+        Arrays.fill(bitmap, firstWord + 1, lastWord, -1L);
+        bitmap[lastWord] |= -1L >>> -end;
+    }
+
     // 取64位整数的高位的后16位
     protected static short highbits(long x) {
         return (short) (x >>> 32);
@@ -26,6 +49,13 @@ public final class Util {
         return (int) x;
     }
 
+    // 字中第j个（从0开始）为1的位的位置
+    protected static int select(long w, int j) {
+        for (; j > 0; --j)
+            w &= w - 1;
+        return Long.numberOfTrailingZeros(w);
+    }
+
     protected static short maxLowBit() {
         return (short) 0xFFFF;
     }
@@ -34,13 +64,42 @@ public final class Util {
         return x & 0xFFFF;
     }
 
+    // 低32位按无符号处理，container内部一律按无符号顺序排列
+    protected static long toLongUnsigned(int x) {
+        return x & 0xFFFFFFFFL;
+    }
+
     protected static int binarySearch(int[] array, int begin, int end, int ikey) {
         int low = begin;
         int high = end - 1;
+        final long key = toLongUnsigned(ikey);
+
+        while (low <= high) {
+            final int middleIndex = (low + high) >>> 1;
+            final long middleValue = toLongUnsigned(array[middleIndex]);
+
+            if (middleValue < key) {
+                low = middleIndex + 1;
+            }
+            else if (middleValue > key) {
+                high = middleIndex - 1;
+            }
+            else {
+                return middleIndex;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // 16位子container使用，按无符号比较
+    protected static int unsignedBinarySearch(short[] array, int begin, int end, short k) {
+        int low = begin;
+        int high = end - 1;
+        final int ikey = toIntUnsigned(k);
 
         while (low <= high) {
-            final int middleIndex = (high - low) >>> 1 + low;
-            final int middleValue = array[middleIndex];
+            final int middleIndex = (low + high) >>> 1;
+            final int middleValue = toIntUnsigned(array[middleIndex]);
 
             if (middleValue < ikey) {
                 low = middleIndex + 1;
@@ -54,4 +113,408 @@ public final class Util {
         }
         return -(low + 1);
     }
+
+    /**
+     * Find the smallest index larger than pos such that array[index] is
+     * greater or equal to min (unsigned). If none can be found, return
+     * length. Based on code by O. Kaser.
+     *
+     * @param array  array to search within
+     * @param pos    starting position of the search
+     * @param length length of the array to consider
+     * @param min    minimum value
+     * @return x greater than pos such that array[pos] is at least as large
+     * as min, pos is is equal to length if it is not possible.
+     */
+    protected static int advanceUntil(int[] array, int pos, int length, int min) {
+        final long umin = toLongUnsigned(min);
+        int lower = pos + 1;
+        if (lower >= length || toLongUnsigned(array[lower]) >= umin)
+            return lower;
+        // 倍增步长找到上界，再二分
+        int spansize = 1;
+        while (lower + spansize < length && toLongUnsigned(array[lower + spansize]) < umin)
+            spansize *= 2;
+        int upper = (lower + spansize < length) ? lower + spansize : length - 1;
+        if (toLongUnsigned(array[upper]) == umin)
+            return upper;
+        if (toLongUnsigned(array[upper]) < umin)
+            return length;
+        lower += (spansize / 2);
+        while (lower + 1 != upper) {
+            final int mid = (lower + upper) >>> 1;
+            final long arraymid = toLongUnsigned(array[mid]);
+            if (arraymid == umin)
+                return mid;
+            else if (arraymid < umin)
+                lower = mid;
+            else
+                upper = mid;
+        }
+        return upper;
+    }
+
+    // 有序数组求差集 set1 - set2，结果写入buffer，返回个数
+    protected static int unsignedDifference(final int[] set1, final int length1,
+                                            final int[] set2, final int length2, final int[] buffer) {
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final long v1 = toLongUnsigned(set1[k1]);
+            final long v2 = toLongUnsigned(set2[k2]);
+            if (v1 < v2) {
+                buffer[pos++] = set1[k1++];
+            } else if (v1 == v2) {
+                ++k1;
+                ++k2;
+            } else {
+                ++k2;
+            }
+        }
+        System.arraycopy(set1, k1, buffer, pos, length1 - k1);
+        return pos + length1 - k1;
+    }
+
+    // 有序数组求对称差，结果写入buffer，返回个数
+    protected static int unsignedExclusiveUnion2by2(final int[] set1, final int length1,
+                                                    final int[] set2, final int length2, final int[] buffer) {
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final long v1 = toLongUnsigned(set1[k1]);
+            final long v2 = toLongUnsigned(set2[k2]);
+            if (v1 < v2) {
+                buffer[pos++] = set1[k1++];
+            } else if (v1 == v2) {
+                ++k1;
+                ++k2;
+            } else {
+                buffer[pos++] = set2[k2++];
+            }
+        }
+        System.arraycopy(set1, k1, buffer, pos, length1 - k1);
+        pos += length1 - k1;
+        System.arraycopy(set2, k2, buffer, pos, length2 - k2);
+        return pos + length2 - k2;
+    }
+
+    // 有序数组求交集，结果写入buffer，返回个数；长度相差悬殊时使用galloping
+    protected static int unsignedIntersect2by2(final int[] set1, final int length1,
+                                               final int[] set2, final int length2, final int[] buffer) {
+        if (length1 * 64 < length2)
+            return unsignedOneSidedGallopingIntersect2by2(set1, length1, set2, length2, buffer);
+        if (length2 * 64 < length1)
+            return unsignedOneSidedGallopingIntersect2by2(set2, length2, set1, length1, buffer);
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final long v1 = toLongUnsigned(set1[k1]);
+            final long v2 = toLongUnsigned(set2[k2]);
+            if (v1 < v2) {
+                ++k1;
+            } else if (v1 > v2) {
+                ++k2;
+            } else {
+                buffer[pos++] = set1[k1];
+                ++k1;
+                ++k2;
+            }
+        }
+        return pos;
+    }
+
+    protected static int unsignedOneSidedGallopingIntersect2by2(final int[] smallSet, final int smallLength,
+                                                                final int[] largeSet, final int largeLength,
+                                                                final int[] buffer) {
+        if (0 == smallLength)
+            return 0;
+        int k1 = 0;
+        int k2 = 0;
+        int pos = 0;
+        while (true) {
+            if (toLongUnsigned(largeSet[k1]) < toLongUnsigned(smallSet[k2])) {
+                k1 = advanceUntil(largeSet, k1, largeLength, smallSet[k2]);
+                if (k1 == largeLength)
+                    break;
+            }
+            if (toLongUnsigned(smallSet[k2]) < toLongUnsigned(largeSet[k1])) {
+                ++k2;
+                if (k2 == smallLength)
+                    break;
+            } else {
+                buffer[pos++] = smallSet[k2];
+                ++k2;
+                if (k2 == smallLength)
+                    break;
+                k1 = advanceUntil(largeSet, k1, largeLength, smallSet[k2]);
+                if (k1 == largeLength)
+                    break;
+            }
+        }
+        return pos;
+    }
+
+    // 有序数组求并集，结果写入buffer，返回个数
+    protected static int unsignedUnion2by2(final int[] set1, final int length1,
+                                           final int[] set2, final int length2, final int[] buffer) {
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final long v1 = toLongUnsigned(set1[k1]);
+            final long v2 = toLongUnsigned(set2[k2]);
+            if (v1 < v2) {
+                buffer[pos++] = set1[k1++];
+            } else if (v1 == v2) {
+                buffer[pos++] = set1[k1++];
+                ++k2;
+            } else {
+                buffer[pos++] = set2[k2++];
+            }
+        }
+        System.arraycopy(set1, k1, buffer, pos, length1 - k1);
+        pos += length1 - k1;
+        System.arraycopy(set2, k2, buffer, pos, length2 - k2);
+        return pos + length2 - k2;
+    }
+
+    // 16位子container使用
+    protected static int advanceUntil(short[] array, int pos, int length, short min) {
+        final int umin = toIntUnsigned(min);
+        int lower = pos + 1;
+        if (lower >= length || toIntUnsigned(array[lower]) >= umin)
+            return lower;
+        // 倍增步长找到上界，再二分
+        int spansize = 1;
+        while (lower + spansize < length && toIntUnsigned(array[lower + spansize]) < umin)
+            spansize *= 2;
+        int upper = (lower + spansize < length) ? lower + spansize : length - 1;
+        if (toIntUnsigned(array[upper]) == umin)
+            return upper;
+        if (toIntUnsigned(array[upper]) < umin)
+            return length;
+        lower += (spansize / 2);
+        while (lower + 1 != upper) {
+            final int mid = (lower + upper) >>> 1;
+            final int arraymid = toIntUnsigned(array[mid]);
+            if (arraymid == umin)
+                return mid;
+            else if (arraymid < umin)
+                lower = mid;
+            else
+                upper = mid;
+        }
+        return upper;
+    }
+
+    // 有序数组求差集 set1 - set2，结果写入buffer，返回个数
+    protected static int unsignedDifference(final short[] set1, final int length1,
+                                            final short[] set2, final int length2, final short[] buffer) {
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final int v1 = toIntUnsigned(set1[k1]);
+            final int v2 = toIntUnsigned(set2[k2]);
+            if (v1 < v2) {
+                buffer[pos++] = set1[k1++];
+            } else if (v1 == v2) {
+                ++k1;
+                ++k2;
+            } else {
+                ++k2;
+            }
+        }
+        System.arraycopy(set1, k1, buffer, pos, length1 - k1);
+        return pos + length1 - k1;
+    }
+
+    // 有序数组求对称差，结果写入buffer，返回个数
+    protected static int unsignedExclusiveUnion2by2(final short[] set1, final int length1,
+                                                    final short[] set2, final int length2, final short[] buffer) {
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final int v1 = toIntUnsigned(set1[k1]);
+            final int v2 = toIntUnsigned(set2[k2]);
+            if (v1 < v2) {
+                buffer[pos++] = set1[k1++];
+            } else if (v1 == v2) {
+                ++k1;
+                ++k2;
+            } else {
+                buffer[pos++] = set2[k2++];
+            }
+        }
+        System.arraycopy(set1, k1, buffer, pos, length1 - k1);
+        pos += length1 - k1;
+        System.arraycopy(set2, k2, buffer, pos, length2 - k2);
+        return pos + length2 - k2;
+    }
+
+    // 有序数组求交集，结果写入buffer，返回个数；长度相差悬殊时使用galloping
+    protected static int unsignedIntersect2by2(final short[] set1, final int length1,
+                                               final short[] set2, final int length2, final short[] buffer) {
+        if (length1 * 64 < length2)
+            return unsignedOneSidedGallopingIntersect2by2(set1, length1, set2, length2, buffer);
+        if (length2 * 64 < length1)
+            return unsignedOneSidedGallopingIntersect2by2(set2, length2, set1, length1, buffer);
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final int v1 = toIntUnsigned(set1[k1]);
+            final int v2 = toIntUnsigned(set2[k2]);
+            if (v1 < v2) {
+                ++k1;
+            } else if (v1 > v2) {
+                ++k2;
+            } else {
+                buffer[pos++] = set1[k1];
+                ++k1;
+                ++k2;
+            }
+        }
+        return pos;
+    }
+
+    protected static int unsignedOneSidedGallopingIntersect2by2(final short[] smallSet, final int smallLength,
+                                                                final short[] largeSet, final int largeLength,
+                                                                final short[] buffer) {
+        if (0 == smallLength)
+            return 0;
+        int k1 = 0;
+        int k2 = 0;
+        int pos = 0;
+        while (true) {
+            if (toIntUnsigned(largeSet[k1]) < toIntUnsigned(smallSet[k2])) {
+                k1 = advanceUntil(largeSet, k1, largeLength, smallSet[k2]);
+                if (k1 == largeLength)
+                    break;
+            }
+            if (toIntUnsigned(smallSet[k2]) < toIntUnsigned(largeSet[k1])) {
+                ++k2;
+                if (k2 == smallLength)
+                    break;
+            } else {
+                buffer[pos++] = smallSet[k2];
+                ++k2;
+                if (k2 == smallLength)
+                    break;
+                k1 = advanceUntil(largeSet, k1, largeLength, smallSet[k2]);
+                if (k1 == largeLength)
+                    break;
+            }
+        }
+        return pos;
+    }
+
+    // 有序数组求并集，结果写入buffer，返回个数
+    protected static int unsignedUnion2by2(final short[] set1, final int length1,
+                                           final short[] set2, final int length2, final short[] buffer) {
+        int pos = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final int v1 = toIntUnsigned(set1[k1]);
+            final int v2 = toIntUnsigned(set2[k2]);
+            if (v1 < v2) {
+                buffer[pos++] = set1[k1++];
+            } else if (v1 == v2) {
+                buffer[pos++] = set1[k1++];
+                ++k2;
+            } else {
+                buffer[pos++] = set2[k2++];
+            }
+        }
+        System.arraycopy(set1, k1, buffer, pos, length1 - k1);
+        pos += length1 - k1;
+        System.arraycopy(set2, k2, buffer, pos, length2 - k2);
+        return pos + length2 - k2;
+    }
+
+    // 有序数组交集的个数，不分配内存；any为true时找到第一个即返回
+    protected static int unsignedIntersectCardinality(final int[] set1, final int length1,
+                                                      final int[] set2, final int length2, final boolean any) {
+        if (length1 * 64 < length2)
+            return unsignedGallopingIntersectCardinality(set1, length1, set2, length2, any);
+        if (length2 * 64 < length1)
+            return unsignedGallopingIntersectCardinality(set2, length2, set1, length1, any);
+        int count = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final long v1 = toLongUnsigned(set1[k1]);
+            final long v2 = toLongUnsigned(set2[k2]);
+            if (v1 < v2) {
+                ++k1;
+            } else if (v1 > v2) {
+                ++k2;
+            } else {
+                if (any)
+                    return 1;
+                ++count;
+                ++k1;
+                ++k2;
+            }
+        }
+        return count;
+    }
+
+    private static int unsignedGallopingIntersectCardinality(final int[] smallSet, final int smallLength,
+                                                             final int[] largeSet, final int largeLength,
+                                                             final boolean any) {
+        int count = 0;
+        int k1 = -1;
+        for (int k2 = 0; k2 < smallLength; ++k2) {
+            k1 = advanceUntil(largeSet, k1, largeLength, smallSet[k2]);
+            if (k1 == largeLength)
+                break;
+            if (largeSet[k1] == smallSet[k2]) {
+                if (any)
+                    return 1;
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    protected static int unsignedIntersectCardinality(final short[] set1, final int length1,
+                                                      final short[] set2, final int length2, final boolean any) {
+        if (length1 * 64 < length2)
+            return unsignedGallopingIntersectCardinality(set1, length1, set2, length2, any);
+        if (length2 * 64 < length1)
+            return unsignedGallopingIntersectCardinality(set2, length2, set1, length1, any);
+        int count = 0;
+        int k1 = 0, k2 = 0;
+        while (k1 < length1 && k2 < length2) {
+            final int v1 = toIntUnsigned(set1[k1]);
+            final int v2 = toIntUnsigned(set2[k2]);
+            if (v1 < v2) {
+                ++k1;
+            } else if (v1 > v2) {
+                ++k2;
+            } else {
+                if (any)
+                    return 1;
+                ++count;
+                ++k1;
+                ++k2;
+            }
+        }
+        return count;
+    }
+
+    private static int unsignedGallopingIntersectCardinality(final short[] smallSet, final int smallLength,
+                                                             final short[] largeSet, final int largeLength,
+                                                             final boolean any) {
+        int count = 0;
+        int k1 = -1;
+        for (int k2 = 0; k2 < smallLength; ++k2) {
+            k1 = advanceUntil(largeSet, k1, largeLength, smallSet[k2]);
+            if (k1 == largeLength)
+                break;
+            if (largeSet[k1] == smallSet[k2]) {
+                if (any)
+                    return 1;
+                ++count;
+            }
+        }
+        return count;
+    }
 }
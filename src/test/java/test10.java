@@ -0,0 +1,32 @@
+import org.imei.ImeiDataAdmin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class test10 {
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("imei").toFile();
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.open(dir, true, 0);
+        admin.setImei("label1", "861474976710656");
+        admin.setImei("label2", "861474976710657");
+        admin.checkpoint();
+        // 快照之后的写入只在日志中
+        admin.setImei("label1", "861474976710658");
+        admin.close();
+
+        ImeiDataAdmin restarted = new ImeiDataAdmin();
+        restarted.open(dir, true, 0);
+        System.out.println("应该是true：" + restarted.getIfExists("label1", "861474976710656"));
+        System.out.println("应该是true：" + restarted.getIfExists("label1", "861474976710658"));
+        System.out.println("应该是true：" + restarted.getIfExists("label2", "861474976710657"));
+        System.out.println("应该是false：" + restarted.getIfExists("label2", "861474976710656"));
+        restarted.close();
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,128 @@
+import org.imei.ImeiDataAdmin;
+import org.imei.LabelQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+public class test11 {
+    static final int LABELS = 6;
+    static final int VALUES = 4000;
+
+    // 第k个值，每个值在不同的高位key下，bitmap有很多个container
+    static String imei(int k) {
+        return String.format("86%013d", 1474976710656L + k * ((1L << 30) + 1));
+    }
+
+    // 标签ci包含k当且仅当k能被i+2整除
+    static boolean in(int i, int k) {
+        return k % (i + 2) == 0;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.setImei("label1", "861474976710656");
+        admin.setImei("label1", "861474976710657");
+        admin.setImei("label2", "861474976710658");
+        admin.setImei("label2", "861474976710659");
+        admin.setImei("label3", "861474976710657");
+        admin.setImei("label3", "861474976710659");
+
+        System.out.println("应该是4：" + admin.query("label1 OR label2").getCardinality());
+        System.out.println("应该是2：" + admin.count("(label1 OR label2) AND NOT label3"));
+        System.out.println("应该是1：" + admin.count("label1 and label3"));
+        System.out.println("应该是0：" + admin.count("label1 AND label2"));
+        System.out.println("应该是0：" + admin.count("label1 AND nolabel"));
+
+        Iterator<String> it = admin.queryImeis("(label1 OR label2) AND NOT label3");
+        System.out.println("应该是861474976710656：" + it.next());
+        System.out.println("应该是861474976710658：" + it.next());
+        System.out.println("应该是false：" + it.hasNext());
+
+        // 规范化后相同含义的表达式相同
+        System.out.println("应该是true：" + LabelQuery.parse("label2 or (label1)").equals(LabelQuery.parse("label1 OR label2")));
+        try {
+            admin.query("NOT label1");
+            System.out.println("应该抛出异常");
+        } catch (IllegalArgumentException e) {
+            System.out.println("应该抛出异常：" + e.getMessage());
+        }
+
+        System.out.println("应该是0：" + concurrentQueries());
+    }
+
+    // 多个线程同时在同一组标签上query/count，结果与逐个判断的个数比较
+    static int concurrentQueries() throws InterruptedException {
+        final List<String> expressions = new ArrayList<>();
+        final List<IntPredicate> expected = new ArrayList<>();
+        for (int i = 0; i < LABELS; i++) {
+            for (int j = i + 1; j < LABELS; j++) {
+                final int a = i, b = j, c = (j + 1) % LABELS;
+                expressions.add("c" + a + " AND c" + b);
+                expected.add(k -> in(a, k) && in(b, k));
+                expressions.add("c" + a + " OR c" + b);
+                expected.add(k -> in(a, k) || in(b, k));
+                expressions.add("c" + a + " AND NOT c" + b);
+                expected.add(k -> in(a, k) && !in(b, k));
+                expressions.add("(c" + a + " OR c" + b + ") AND NOT c" + c);
+                expected.add(k -> (in(a, k) || in(b, k)) && !in(c, k));
+            }
+        }
+        final long[] counts = new long[expressions.size()];
+        for (int q = 0; q < counts.length; q++) {
+            for (int k = 0; k < VALUES; k++) {
+                if (expected.get(q).test(k)) {
+                    counts[q]++;
+                }
+            }
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        // 每轮用新的实例，快照和缓存都是新的，线程同时开始第一次求值
+        for (int round = 0; round < 10; round++) {
+            final ImeiDataAdmin admin = new ImeiDataAdmin();
+            for (int k = 0; k < VALUES; k++) {
+                for (int i = 0; i < LABELS; i++) {
+                    if (in(i, k)) {
+                        admin.setImei("c" + i, imei(k));
+                    }
+                }
+            }
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] ts = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(round * threads + t);
+                ts[t] = new Thread(() -> {
+                    List<Integer> order = new ArrayList<>();
+                    for (int q = 0; q < counts.length; q++) {
+                        order.add(q);
+                    }
+                    Collections.shuffle(order, random);
+                    try {
+                        start.await();
+                        for (int q : order) {
+                            long n = random.nextBoolean() ? admin.count(expressions.get(q))
+                                    : admin.query(expressions.get(q)).getLongCardinality();
+                            if (n != counts[q]) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException | RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                });
+                ts[t].start();
+            }
+            start.countDown();
+            for (Thread t : ts) {
+                t.join();
+            }
+        }
+        return errors.get();
+    }
+}
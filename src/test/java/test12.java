@@ -0,0 +1,17 @@
+import org.imei.ImeiDataAdmin;
+
+public class test12 {
+    public static void main(String[] args) {
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.setImei("label1", "861474976710656");
+        admin.setImei("label2", "861474976710656");
+        admin.setImei("label2", "861474976710657");
+        admin.setImei("label3", "865474976710656");
+
+        System.out.println("应该是[label1, label2]：" + admin.getLabels("861474976710656"));
+        System.out.println("应该是[label2]：" + admin.getLabels("861474976710657"));
+        System.out.println("应该是[label3]：" + admin.getLabels(865474976710656L));
+        System.out.println("应该是[]：" + admin.getLabels("861474976710658"));
+        System.out.println("应该是[]：" + admin.getLabels("123"));
+    }
+}
@@ -0,0 +1,30 @@
+import org.roaringbitmap.RoaringBitmap;
+
+public class test13 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        RoaringBitmap rbm2 = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            rbm1.add(1474976710656L + i);
+            rbm2.add(1474976710656L + 2 * i);
+        }
+        rbm2.add(0x8000L << 32);
+        // 不构造结果，直接求个数
+        System.out.println("应该是5000：" + RoaringBitmap.andCardinality(rbm1, rbm2));
+        System.out.println("应该是15001：" + RoaringBitmap.orCardinality(rbm1, rbm2));
+        System.out.println("应该是5000：" + RoaringBitmap.andNotCardinality(rbm1, rbm2));
+        System.out.println("应该是5001：" + RoaringBitmap.andNotCardinality(rbm2, rbm1));
+        System.out.println("应该是true：" + RoaringBitmap.intersects(rbm1, rbm2));
+        System.out.println("应该是false：" + RoaringBitmap.intersects(rbm1, new RoaringBitmap()));
+
+        // 高位key为0xFFFF的满container，个数超过int
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0xFFFFL << 32, 1L << 48);
+        System.out.println("应该是false：" + RoaringBitmap.intersects(rbm2, full));
+        rbm2.add((1L << 48) - 1);
+        System.out.println("应该是1：" + RoaringBitmap.andCardinality(rbm2, full));
+        System.out.println("应该是4294967296：" + RoaringBitmap.andCardinality(full, full));
+        System.out.println("应该是4294977297：" + RoaringBitmap.orCardinality(full, rbm2));
+        System.out.println("应该是4294967295：" + RoaringBitmap.andNotCardinality(full, rbm2));
+    }
+}
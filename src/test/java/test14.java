@@ -0,0 +1,34 @@
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+
+public class test14 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        RoaringBitmap rbm2 = new RoaringBitmap();
+        RoaringBitmap rbm3 = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            rbm1.add(1474976710656L + i);
+            rbm2.add(1474976710656L + 2 * i);
+        }
+        rbm3.add(1474976710656L, 1474976710656L + 5000);
+        rbm3.add(0x8000L << 32);
+        // 多个bitmap一次求交集、并集
+        System.out.println("应该是2500：" + FastAggregation.and(rbm1, rbm2, rbm3).getLongCardinality());
+        System.out.println("应该是15001：" + FastAggregation.or(rbm1, rbm2, rbm3).getLongCardinality());
+        System.out.println("应该是15001：" + FastAggregation.or(Arrays.asList(rbm1, rbm2, rbm3).iterator()).getLongCardinality());
+        System.out.println("应该是10000：" + rbm1.getLongCardinality());
+        System.out.println("应该是{}：" + FastAggregation.and());
+        System.out.println("应该是{}：" + FastAggregation.or());
+
+        // 高位key为0xFFFF的满container
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0xFFFFL << 32, 1L << 48);
+        RoaringBitmap edge = new RoaringBitmap();
+        edge.add(0x8000L << 32);
+        edge.add((1L << 48) - 1);
+        System.out.println("应该是{281474976710655}：" + FastAggregation.and(edge, full, edge));
+        System.out.println("应该是4294967297：" + FastAggregation.or(edge, full).getLongCardinality());
+    }
+}
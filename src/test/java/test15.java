@@ -0,0 +1,41 @@
+import org.roaringbitmap.RoaringBitmap;
+
+public class test15 {
+    public static void main(String[] args) {
+        // 无序、有重复的值批量加入，按高位key分组后一次写入
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        rbm1.add(1474976710656L);
+        long[] batch = new long[10000];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = 1474976710656L + (i * 7919) % 5000;
+        }
+        rbm1.addAll(batch);
+        System.out.println("应该是5000：" + rbm1.getLongCardinality());
+        System.out.println("应该是1474976715655：" + rbm1.last());
+
+        // 只加入数组的一段
+        RoaringBitmap part = new RoaringBitmap();
+        long[] values = {0xFFFFL << 32, 5, 0x8000L << 32, 0x7FFFL << 32 | 0xFFFFFFFFL, 7};
+        part.addAll(values, 1, 3);
+        System.out.println("应该是{5,140737488355327,140737488355328}：" + part);
+
+        // 空数组
+        RoaringBitmap empty = new RoaringBitmap();
+        empty.addAll();
+        empty.addAll(values, 2, 0);
+        System.out.println("应该是true：" + empty.isEmpty());
+
+        // 与add(long)一致只取低48位
+        RoaringBitmap masked = new RoaringBitmap();
+        masked.addAll(1L << 48 | 3, -1L);
+        System.out.println("应该是{3,281474976710655}：" + masked);
+
+        // 加入满的container不改变它
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0xFFFFL << 32, 1L << 48);
+        full.addAll(0xFFFFL << 32, (1L << 48) - 1, 0x8000L << 32, 0xFFFFL << 32 | 77);
+        System.out.println("应该是4294967297：" + full.getLongCardinality());
+        System.out.println("应该是140737488355328：" + full.first());
+        System.out.println("应该是281474976710655：" + full.last());
+    }
+}
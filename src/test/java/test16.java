@@ -0,0 +1,55 @@
+import org.roaringbitmap.RoaringBitmap;
+
+public class test16 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        rbm1.add(1474976710656L, 1474976710656L + 100000);
+        rbm1.remove(1474976710656L + 10, 1474976710656L + 20);
+        rbm1.flip(1474976710656L + 15, 1474976710656L + 25);
+        System.out.println("应该是99990：" + rbm1.getLongCardinality());
+        System.out.println("应该是false：" + rbm1.contains(1474976710656L + 14));
+        System.out.println("应该是true：" + rbm1.contains(1474976710656L + 15));
+        System.out.println("应该是false：" + rbm1.contains(1474976710656L + 20));
+        // 静态方法不修改输入
+        RoaringBitmap rbm2 = RoaringBitmap.flip(rbm1, 1474976710656L, 1474976710656L + 100000);
+        System.out.println("应该是10：" + rbm2.getLongCardinality());
+        System.out.println("应该是99990：" + rbm1.getLongCardinality());
+
+        // 空区间与空bitmap
+        RoaringBitmap empty = new RoaringBitmap();
+        empty.add(5, 5);
+        empty.remove(0, 1L << 48);
+        empty.flip(7, 7);
+        System.out.println("应该是true：" + empty.isEmpty());
+
+        // 跨越多个满的container
+        RoaringBitmap big = new RoaringBitmap();
+        big.add((0x7FFFL << 32) + 10, (0x8001L << 32) + 20);
+        System.out.println("应该是8589934602：" + big.getLongCardinality());
+        System.out.println("应该是140733193388042：" + big.first());
+        System.out.println("应该是140741783322643：" + big.last());
+        big.remove(0x8000L << 32, 0x8001L << 32);
+        System.out.println("应该是4294967306：" + big.getLongCardinality());
+        System.out.println("应该是140737488355327：" + big.previousValue(0x8000L << 32));
+        System.out.println("应该是140741783322624：" + big.nextValue(0x8000L << 32));
+        big.flip(0x7FFFL << 32, 0x8001L << 32);
+        System.out.println("应该是4294967326：" + big.getLongCardinality());
+        System.out.println("应该是true：" + big.contains(0x8000L << 32));
+        System.out.println("应该是false：" + big.contains((0x7FFFL << 32) + 10));
+
+        // 整个0xFFFF，再翻转回空
+        RoaringBitmap full = new RoaringBitmap();
+        full.flip(0xFFFFL << 32, 1L << 48);
+        System.out.println("应该是4294967296：" + full.getLongCardinality());
+        System.out.println("应该是281474976710655：" + full.last());
+        full.flip(0xFFFFL << 32, 1L << 48);
+        System.out.println("应该是true：" + full.isEmpty());
+
+        try {
+            new RoaringBitmap().add(0, (1L << 48) + 1);
+            System.out.println("应该抛出异常");
+        } catch (IllegalArgumentException e) {
+            System.out.println("应该抛出异常：" + e.getMessage());
+        }
+    }
+}
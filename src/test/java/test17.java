@@ -0,0 +1,40 @@
+import org.roaringbitmap.BatchIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+
+public class test17 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        for (int i = 0; i < 10; i++) {
+            rbm1.add(1474976710656L + 3 * i);
+        }
+        rbm1.add(0x8000L << 32, (0x8000L << 32) + 100000);
+        // 按批取出，批可以跨container
+        BatchIterator it = rbm1.getBatchIterator();
+        long[] buffer = new long[4];
+        System.out.println("应该是4：" + it.nextBatch(buffer));
+        System.out.println("应该是[1474976710656, 1474976710659, 1474976710662, 1474976710665]：" + Arrays.toString(buffer));
+        long total = 4;
+        long last = 0;
+        while (it.hasNext()) {
+            int k = it.nextBatch(buffer);
+            total += k;
+            last = buffer[k - 1];
+        }
+        System.out.println("应该是100010：" + total);
+        System.out.println("应该是140737488455327：" + last);
+        System.out.println("应该是0：" + it.nextBatch(buffer));
+        System.out.println("应该是false：" + new RoaringBitmap().getBatchIterator().hasNext());
+
+        // 满的container只取开头一批
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(5);
+        full.add(0xFFFFL << 32, 1L << 48);
+        it = full.getBatchIterator();
+        buffer = new long[1 << 16];
+        System.out.println("应该是65536：" + it.nextBatch(buffer));
+        System.out.println("应该是5：" + buffer[0]);
+        System.out.println("应该是281470681808894：" + buffer[65535]);
+    }
+}
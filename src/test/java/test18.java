@@ -0,0 +1,33 @@
+import org.roaringbitmap.PeekableLongIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+public class test18 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            rbm1.add(1474976710656L + 5 * i);
+        }
+        // 向后跳到第一个不小于目标的值，目标在当前值之前时不动
+        PeekableLongIterator it = rbm1.getLongIterator();
+        it.advanceIfNeeded(1474976710656L + 12);
+        System.out.println("应该是1474976710671：" + it.peekNext());
+        it.advanceIfNeeded(1474976710656L);
+        System.out.println("应该是1474976710671：" + it.next());
+        it.advanceIfNeeded(1474976710656L + 49995);
+        System.out.println("应该是1474976760651：" + it.next());
+        System.out.println("应该是false：" + it.hasNext());
+
+        // 跨过无符号边界，跳到满的container中间
+        RoaringBitmap edge = new RoaringBitmap();
+        edge.add((0x8000L << 32) - 1);
+        edge.add(0xFFFFL << 32, 1L << 48);
+        it = edge.getLongIterator();
+        it.advanceIfNeeded(2);
+        System.out.println("应该是140737488355327：" + it.next());
+        it.advanceIfNeeded((0xFFFFL << 32) + 3000000000L);
+        System.out.println("应该是281473681743360：" + it.next());
+        it.advanceIfNeeded((1L << 48) - 1);
+        System.out.println("应该是281474976710655：" + it.next());
+        System.out.println("应该是false：" + it.hasNext());
+    }
+}
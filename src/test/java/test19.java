@@ -0,0 +1,33 @@
+import org.roaringbitmap.LongIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+public class test19 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            rbm1.add(1474976710656L + 5 * i);
+        }
+        rbm1.add((0x8000L << 32) - 1);
+        rbm1.add(0x8000L << 32);
+        System.out.println("应该是1474976710656：" + rbm1.first());
+        System.out.println("应该是140737488355328：" + rbm1.last());
+        System.out.println("应该是1474976710661：" + rbm1.nextValue(1474976710657L));
+        System.out.println("应该是1474976710656：" + rbm1.previousValue(1474976710660L));
+        System.out.println("应该是140737488355327：" + rbm1.nextValue(1474976760652L));
+        System.out.println("应该是-1：" + rbm1.nextValue(1L << 48));
+        // 倒序遍历，从最大的值开始
+        LongIterator it = rbm1.getReverseLongIterator();
+        System.out.println("应该是140737488355328：" + it.next());
+        System.out.println("应该是140737488355327：" + it.next());
+        System.out.println("应该是1474976760651：" + it.next());
+
+        // 满的container
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0xFFFFL << 32, 1L << 48);
+        System.out.println("应该是281472681743360：" + full.nextValue((0xFFFFL << 32) + 2000000000L));
+        System.out.println("应该是281474976710655：" + full.previousValue(Long.MAX_VALUE));
+        System.out.println("应该是-1：" + full.previousValue((0xFFFFL << 32) - 1));
+        it = full.getReverseLongIterator();
+        System.out.println("应该是281474976710655：" + it.next());
+    }
+}
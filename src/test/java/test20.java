@@ -0,0 +1,32 @@
+import org.imei.ImeiDataAdmin;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+
+public class test20 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            rbm1.add(1474976710656L + 5 * i);
+        }
+        rbm1.add(0xFFFFL << 32, 1L << 48);
+        // 探测值有序，按高位key与container同步前进
+        long[] probes = {1474976710656L, 1474976710657L, 1474976710661L, 1474976760651L,
+                0x8000L << 32, (0xFFFFL << 32) + 3000000000L, (1L << 48) - 1};
+        boolean[] out = new boolean[probes.length];
+        rbm1.containsAll(probes, out);
+        System.out.println("应该是[true, false, true, true, false, true, true]：" + Arrays.toString(out));
+        System.out.println("应该是5：" + rbm1.containsAll(probes).getLongCardinality());
+        try {
+            rbm1.containsAll(new long[]{0x8000L << 32, 5}, new boolean[2]);
+            System.out.println("应该抛出异常");
+        } catch (IllegalArgumentException e) {
+            System.out.println("应该抛出异常：" + e.getMessage());
+        }
+
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.setImei("label1", "861234567890123");
+        System.out.println("应该是[true, false]：" + Arrays.toString(
+                admin.getIfExists("label1", new String[]{"861234567890123", "861234567890222"})));
+    }
+}
@@ -0,0 +1,39 @@
+import org.imei.ImeiParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class test21 {
+    public static void main(String[] args) {
+        // 字符串、字节数组和ByteBuffer三种输入，ByteBuffer的位置不变
+        byte[] line = "  861474976710656\n".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        System.out.println("应该是1474976710656：" + ImeiParser.parse("861474976710656", false));
+        System.out.println("应该是1474976710656：" + ImeiParser.parse(line, 2, 15, false));
+        System.out.println("应该是1474976710656：" + ImeiParser.parse(buffer, 2, 15, false));
+        System.out.println("应该是0：" + buffer.position());
+        System.out.println("应该是-1：" + ImeiParser.parse("86147497671065/", false));
+        System.out.println("应该是-1：" + ImeiParser.parse("85147497671065:", false));
+
+        // key的两端
+        System.out.println("应该是0：" + ImeiParser.parse("860000000000000", false));
+        System.out.println("应该是-1：" + ImeiParser.parse("860000000000000", true));
+        System.out.println("应该是9999999999999：" + ImeiParser.parse("869999999999999", false));
+        System.out.println("应该是-1：" + ImeiParser.parse("869999999999999", true));
+        System.out.println("应该是9999999999999：" + ImeiParser.parse(869999999999999L, false));
+        System.out.println("应该是-1：" + ImeiParser.parse(870000000000000L, false));
+        System.out.println("应该是-1：" + ImeiParser.parse(859999999999999L, false));
+        System.out.println("应该是-1：" + ImeiParser.parse(-1L, false));
+        System.out.println("应该是860000000000000：" + ImeiParser.format(0));
+        System.out.println("应该是869999999999999：" + ImeiParser.format(9999999999999L));
+
+        // 一个合法的imei和它改一位后的结果
+        System.out.println("应该是9：" + ImeiParser.parse("860000000000009", true));
+        System.out.println("应该是9：" + ImeiParser.parse(860000000000009L, true));
+        System.out.println("应该是-1：" + ImeiParser.parse("860000000000008", true));
+        System.out.println("应该是4900000000006：" + ImeiParser.parse("864900000000006", true));
+        System.out.println("应该是-1：" + ImeiParser.parse("864900000000060", true));
+        System.out.println("应该是-1：" + ImeiParser.parse("", false));
+        System.out.println("应该是-1：" + ImeiParser.parse("86490000000000x", false));
+    }
+}
@@ -0,0 +1,41 @@
+import org.imei.ImeiDataAdmin;
+import org.imei.ImeiImporter;
+import org.imei.ImeiParser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class test22 {
+    public static void main(String[] args) throws IOException {
+        // 空行、\r\n、csv的第一列，以及格式不对的行
+        File file = File.createTempFile("test22", ".csv");
+        file.deleteOnExit();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            out.write("860000000000002\n\n860000000000003\r\n869999999999999,label,1\n85000000000000\n");
+        }
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.setImei("label1", "860000000000001");
+        ImeiImporter.Result result = admin.importFile("label1", file);
+        System.out.println("应该是[1, 2, 3, 9999999999999]：" + Arrays.toString(admin.query("label1").toArray()));
+        System.out.println("应该是4：" + result.getLines());
+        System.out.println("应该是1：" + result.getInvalid());
+
+        // 超过一块的大文件，在块边界处按行切分
+        File big = File.createTempFile("test22", ".csv");
+        big.deleteOnExit();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(big))) {
+            for (int i = 0; i < 2200000; i++) {
+                out.write(ImeiParser.format(i * 4545454L));
+                out.write('\n');
+            }
+        }
+        System.out.println("应该是true：" + (big.length() > 32 << 20));
+        result = admin.importFile("big", big);
+        System.out.println("应该是2200000：" + admin.count("big"));
+        System.out.println("应该是0：" + result.getInvalid());
+        System.out.println("应该是true：" + admin.getIfExists("big", ImeiParser.format(2199999 * 4545454L)));
+    }
+}
@@ -0,0 +1,55 @@
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class test23 {
+    public static void main(String[] args) throws IOException {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            rbm1.add(1474976710656L + 5 * i);
+        }
+        rbm1.add(0xFFFFL << 32, 1L << 48);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rbm1.serializeCompressed(out);
+        byte[] data = out.toByteArray();
+        // 相近的imei每个只占一个字节，满的container只是一个run
+        System.out.println("应该是true：" + (data.length < 11000));
+        System.out.println("应该是true：" + RoaringBitmap.isCompressed(ByteBuffer.wrap(data)));
+        RoaringBitmap rbm2 = new RoaringBitmap();
+        rbm2.deserializeCompressed(new ByteArrayInputStream(data));
+        System.out.println("应该是4294977296：" + rbm2.getLongCardinality());
+        System.out.println("应该是true：" + rbm2.contains(1474976760651L));
+        System.out.println("应该是false：" + rbm2.contains(1474976760652L));
+        RoaringBitmap rbm3 = new RoaringBitmap();
+        rbm3.deserializeCompressed(ByteBuffer.wrap(data));
+        System.out.println("应该是281474976710655：" + rbm3.last());
+
+        // 截断的数据
+        try {
+            rbm3.deserializeCompressed(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1)));
+            System.out.println("应该抛出异常");
+        } catch (IOException e) {
+            System.out.println("应该抛出异常：" + e.getMessage());
+        }
+        // 块长度为2^31的零散块和长度为0的run块，在分配之前拒绝
+        RoaringBitmap one = new RoaringBitmap();
+        one.add(5);
+        out = new ByteArrayOutputStream();
+        one.serializeCompressed(out);
+        byte[][] blocks = {{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0, 0}, {1, 0, 0}};
+        for (byte[] block : blocks) {
+            byte[] bad = Arrays.copyOf(out.toByteArray(), 6 + block.length);
+            System.arraycopy(block, 0, bad, 6, block.length);
+            try {
+                rbm3.deserializeCompressed(ByteBuffer.wrap(bad));
+                System.out.println("应该抛出异常");
+            } catch (IOException e) {
+                System.out.println("应该抛出异常：" + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import org.imei.ImeiDataAdmin;
+import org.imei.QueryCache;
+import org.roaringbitmap.RoaringBitmap;
+
+public class test24 {
+    public static void main(String[] args) {
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        QueryCache cache = admin.getQueryCache();
+        admin.setImei("x", "860000000000001");
+        admin.setImei("y", "860000000000001");
+        // 表达式规范化后命中，写入无关的标签仍然命中
+        System.out.println("应该是1：" + admin.count("x AND y"));
+        System.out.println("应该是1：" + admin.count("y and x"));
+        admin.setImei("z", "860000000000002");
+        System.out.println("应该是1：" + admin.count("x AND y"));
+        System.out.println("应该是2：" + cache.getHits());
+        // 写入相关的标签后失效，重新求值
+        admin.setImei("x", "860000000000002");
+        admin.setImei("y", "860000000000002");
+        System.out.println("应该是2：" + admin.count("x AND y"));
+        System.out.println("应该是1：" + cache.getInvalidations());
+        // 调用者修改结果不影响缓存
+        admin.query("x AND y").add(5);
+        System.out.println("应该是{1,2}：" + admin.query("x AND y"));
+
+        // 满的container写入后失效
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0xFFFFL << 32, 1L << 48);
+        admin.addAll("y", full);
+        System.out.println("应该是4294967298：" + admin.count("x OR y"));
+
+        // 容量为一个结果时淘汰最久未用的，为0时不再缓存
+        cache.clear();
+        admin.query("x");
+        cache.setMaxWeight(cache.getWeight());
+        admin.query("z");
+        System.out.println("应该是1：" + cache.size());
+        System.out.println("应该是1：" + cache.getEvictions());
+        cache.setMaxWeight(0);
+        admin.query("x");
+        System.out.println("应该是0：" + cache.size());
+    }
+}
@@ -0,0 +1,50 @@
+import org.imei.ImeiDataAdmin;
+import org.roaringbitmap.ImmutableRoaringBitmap;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+public class test25 {
+    public static void main(String[] args) throws IOException {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        rbm1.add(1474976710656L, 1474976710656L + 100000);
+        // 高位key为0xFFFF的满container
+        rbm1.add(0xFFFFL << 32, 1L << 48);
+        rbm1.runOptimize();
+        File file = File.createTempFile("test25", ".bitmap");
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            rbm1.serialize(out);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            ImmutableRoaringBitmap m = new ImmutableRoaringBitmap(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            System.out.println("应该是4295067296：" + m.getLongCardinality());
+            System.out.println("应该是true：" + m.contains(1474976710656L + 99999));
+            System.out.println("应该是false：" + m.contains(1474976710656L + 100000));
+            System.out.println("应该是true：" + m.contains((1L << 48) - 1));
+            System.out.println("应该是4295067296：" + m.toRoaringBitmap().getLongCardinality());
+        }
+
+        // mapLabel加载后立即可查，首次写入时转为可写的bitmap
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.setImei("label1", "861474976710656");
+        admin.setImei("label1", "861474976710657");
+        File labelFile = File.createTempFile("test25", ".bitmap");
+        labelFile.deleteOnExit();
+        admin.saveLabel("label1", labelFile);
+        ImeiDataAdmin mapped = new ImeiDataAdmin();
+        mapped.mapLabel("label1", labelFile);
+        System.out.println("应该是true：" + mapped.getIfExists("label1", "861474976710657"));
+        System.out.println("应该是[label1]：" + mapped.getLabels("861474976710656"));
+        System.out.println("应该是2：" + mapped.count("label1"));
+        mapped.setImei("label1", "865474976710656");
+        System.out.println("应该是true：" + mapped.getIfExists("label1", "861474976710656"));
+        System.out.println("应该是[label1]：" + mapped.getLabels("865474976710656"));
+        System.out.println("应该是3：" + mapped.count("label1"));
+    }
+}
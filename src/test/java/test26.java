@@ -0,0 +1,36 @@
+import org.roaringbitmap.BitmapContainer;
+import org.roaringbitmap.Container;
+
+public class test26 {
+    public static void main(String[] args) {
+        // 每页4096个值，用到的页和目录才分配
+        Container c = new BitmapContainer(0, 9999);
+        System.out.println("应该是10000：" + c.getCardinality());
+        System.out.println("应该是19968：" + c.getSizeInBytes());
+        c = c.add(1 << 22);
+        c = c.add(0xFFFFFFFF);
+        System.out.println("应该是41472：" + c.getSizeInBytes());
+        // 页空了就释放，目录在trim时释放
+        c = c.remove(1 << 22);
+        System.out.println("应该是40960：" + c.getSizeInBytes());
+        c.trim();
+        System.out.println("应该是30720：" + c.getSizeInBytes());
+        System.out.println("应该是10001：" + c.getCardinality());
+        System.out.println("应该是false：" + c.contains(1 << 22));
+        System.out.println("应该是true：" + c.contains(0xFFFFFFFF));
+        // andNot整页清空后不分配该页
+        Container d = c.andNot(new BitmapContainer(4096, 8191));
+        System.out.println("应该是5905：" + d.getCardinality());
+        System.out.println("应该是30208：" + d.getSizeInBytes());
+        System.out.println("应该是false：" + d.contains(5000));
+        System.out.println("应该是true：" + d.contains(8192));
+        // 逐个删除到4096个值时转为ArrayContainer
+        for (int i = 8192; i < 10000; i++) {
+            d = d.remove(i);
+        }
+        System.out.println("应该是BitmapContainer：" + d.getClass().getSimpleName());
+        d = d.remove(0xFFFFFFFF);
+        System.out.println("应该是ArrayContainer：" + d.getClass().getSimpleName());
+        System.out.println("应该是4096：" + d.getCardinality());
+    }
+}
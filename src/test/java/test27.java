@@ -0,0 +1,53 @@
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+public class test27 {
+    public static void main(String[] args) {
+        // 超过4096个值后ArrayContainer转为NestedContainer
+        Container c = new ArrayContainer();
+        for (int i = 0; i < 4096; i++) {
+            c = c.add(i * 16);
+        }
+        System.out.println("应该是ArrayContainer：" + c.getClass().getSimpleName());
+        c = c.add(1 << 16);
+        System.out.println("应该是NestedContainer：" + c.getClass().getSimpleName());
+        System.out.println("应该是8214：" + c.getSizeInBytes());
+        // 子container：array超过4096个值转为bitmap，删除后转回array，整段为run
+        c = c.add(1);
+        System.out.println("应该是8210：" + c.getSizeInBytes());
+        c = c.remove(1);
+        System.out.println("应该是8214：" + c.getSizeInBytes());
+        c = c.iadd(2 << 16, 3 << 16);
+        System.out.println("应该是8226：" + c.getSizeInBytes());
+        System.out.println("应该是69633：" + c.getCardinality());
+        // 删除到4096个值时转回ArrayContainer
+        c = c.iremove(2 << 16, 3 << 16);
+        c = c.remove(1 << 16);
+        System.out.println("应该是ArrayContainer：" + c.getClass().getSimpleName());
+
+        // 前面的子container变化后，之后的前缀基数重新计算
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        for (int i = 0; i < 5000; i++) {
+            rbm1.add(i * 2);
+        }
+        rbm1.add(3 << 16);
+        System.out.println("应该是196608：" + rbm1.select(5000));
+        for (int i = 0; i < 5; i++) {
+            rbm1.add((1 << 16) + i);
+        }
+        System.out.println("应该是65536：" + rbm1.select(5000));
+        System.out.println("应该是196608：" + rbm1.select(5005));
+        System.out.println("应该是5006：" + rbm1.rank(3 << 16));
+        rbm1.remove(1 << 16, (1 << 16) + 5);
+        System.out.println("应该是196608：" + rbm1.select(5000));
+
+        // 与满的container求并集，不为每个16位key分配bitmap
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0, 1L << 32);
+        RoaringBitmap or = FastAggregation.or(rbm1, full);
+        System.out.println("应该是4294967296：" + or.getLongCardinality());
+        System.out.println("应该是true：" + (or.getSizeInBytes() < 100));
+    }
+}
@@ -0,0 +1,34 @@
+import org.roaringbitmap.RoaringBitmap;
+
+public class test3 {
+    public static void main(String[] args) {
+        RoaringBitmap rbm1 = new RoaringBitmap();
+        // 同一TAC下连续的一百万个IMEI
+        for (long i = 0; i < 1000000; i++) {
+            rbm1.add(1474976710656L + i);
+        }
+        System.out.println("压缩前：" + rbm1.getSizeInBytes());
+        System.out.println("应该是true：" + rbm1.runOptimize());
+        System.out.println("压缩后：" + rbm1.getSizeInBytes());
+        System.out.println("应该是1000000：" + rbm1.getCardinality());
+        System.out.println("应该是true：" + rbm1.contains(1474976710656L + 999999));
+        System.out.println("应该是false：" + rbm1.contains(1474976710656L + 1000000));
+        rbm1.remove(1474976710656L + 500000);
+        System.out.println("应该是false：" + rbm1.contains(1474976710656L + 500000));
+        System.out.println("应该是999999：" + rbm1.getCardinality());
+
+        // 满的container与超过2^31个值的container，int的基数会溢出
+        RoaringBitmap full = new RoaringBitmap();
+        full.add(0L, 1L << 32);
+        full.runOptimize();
+        System.out.println("应该是4294967296：" + full.getLongCardinality());
+        System.out.println("应该是true：" + full.contains(5));
+        RoaringBitmap big = new RoaringBitmap();
+        big.add(0L, 3000000000L);
+        big.remove(7);
+        big.runOptimize();
+        System.out.println("应该是2999999999：" + big.getLongCardinality());
+        System.out.println("应该是true：" + big.contains(2999999999L));
+        System.out.println("应该是false：" + big.contains(7));
+    }
+}
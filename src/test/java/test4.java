@@ -0,0 +1,20 @@
+import org.roaringbitmap.RoaringBitmap;
+
+public class test4 {
+    public static void main(String[] args) {
+        RoaringBitmap label1 = new RoaringBitmap();
+        RoaringBitmap label2 = new RoaringBitmap();
+        for (long i = 0; i < 10000; i++) {
+            label1.add(1474976710656L + i);
+            label2.add(1474976710656L + 5000 + i);
+        }
+        System.out.println("应该是5000：" + RoaringBitmap.and(label1, label2).getCardinality());
+        System.out.println("应该是15000：" + RoaringBitmap.or(label1, label2).getCardinality());
+        System.out.println("应该是10000：" + RoaringBitmap.xor(label1, label2).getCardinality());
+        System.out.println("应该是5000：" + RoaringBitmap.andNot(label1, label2).getCardinality());
+        // 原地运算
+        label1.and(label2);
+        System.out.println("应该是true：" + label1.contains(1474976710656L + 5000));
+        System.out.println("应该是false：" + label1.contains(1474976710656L + 4999));
+    }
+}
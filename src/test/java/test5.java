@@ -0,0 +1,60 @@
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class test5 {
+    public static void main(String[] args) throws IOException {
+        RoaringBitmap label = new RoaringBitmap();
+        for (long i = 0; i < 100000; i++) {
+            label.add(1474976710656L + i * 3);
+            label.add(4474976710656L + i);
+        }
+        label.runOptimize();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        label.serialize(new DataOutputStream(bos));
+        System.out.println("应该是true：" + (bos.size() == label.serializedSizeInBytes()));
+        RoaringBitmap copy = new RoaringBitmap();
+        copy.deserialize(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        System.out.println("应该是true：" + copy.equals(label));
+
+        ByteBuffer buffer = ByteBuffer.allocate(label.serializedSizeInBytes());
+        label.serialize(buffer);
+        buffer.flip();
+        copy = new RoaringBitmap();
+        copy.deserialize(buffer);
+        System.out.println("应该是true：" + copy.contains(1474976710656L + 299997));
+        System.out.println("应该是200000：" + copy.getCardinality());
+
+        // 头部损坏时抛出IOException，不按头部中的长度分配内存
+        byte[] bytes = bos.toByteArray();
+        bytes[4] = (byte) 0xFF;
+        bytes[5] = (byte) 0xFF;
+        bytes[6] = (byte) 0xFF;
+        bytes[7] = (byte) 0x7F;
+        try {
+            new RoaringBitmap().deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+            System.out.println("应该抛出异常");
+        } catch (IOException e) {
+            System.out.println("应该抛出异常：" + e);
+        }
+        // 第二个container是run，段数损坏时同样抛出IOException
+        bytes = bos.toByteArray();
+        ByteBuffer corrupt = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        corrupt.putInt(corrupt.getInt(12 + 11 + 7), 0x7FFFFFFF);
+        try {
+            new RoaringBitmap().deserialize(corrupt);
+            System.out.println("应该抛出异常");
+        } catch (IOException e) {
+            System.out.println("应该抛出异常：" + e.getMessage());
+        }
+        try {
+            new RoaringBitmap().deserialize(new DataInputStream(new ByteArrayInputStream("not a bitmap".getBytes())));
+            System.out.println("应该抛出异常");
+        } catch (IOException e) {
+            System.out.println("应该抛出异常：" + e.getMessage());
+        }
+    }
+}
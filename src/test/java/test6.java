@@ -0,0 +1,29 @@
+import org.roaringbitmap.LongIterator;
+import org.roaringbitmap.PeekableLongIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+public class test6 {
+    public static void main(String[] args) {
+        RoaringBitmap label = new RoaringBitmap();
+        label.add(86123456789012L);
+        label.add(86123456789013L);
+        label.add(4474976710656L);
+        System.out.println("应该是{4474976710656,86123456789012,86123456789013}：" + label);
+
+        PeekableLongIterator it = label.getLongIterator();
+        System.out.println("应该是4474976710656：" + it.peekNext());
+        System.out.println("应该是4474976710656：" + it.next());
+        System.out.println("应该是86123456789012：" + it.next());
+
+        final long[] sum = new long[1];
+        label.forEachLong(imei -> sum[0] += imei);
+        System.out.println("应该是176721890288681：" + sum[0]);
+
+        LongIterator remover = label.getLongIterator();
+        while (remover.hasNext()) {
+            if (remover.next() % 2 == 1)
+                remover.remove();
+        }
+        System.out.println("应该是{4474976710656,86123456789012}：" + label);
+    }
+}
@@ -0,0 +1,38 @@
+import org.roaringbitmap.RoaringBitmap;
+
+public class test7 {
+    public static void main(String[] args) {
+        RoaringBitmap label = new RoaringBitmap();
+        for (long i = 0; i < 100000; i++) {
+            label.add(1474976710656L + i * 3);
+            label.add(4474976710656L + i);
+        }
+        System.out.println("应该是1：" + label.rank(1474976710656L));
+        System.out.println("应该是100000：" + label.rank(4474976710655L));
+        System.out.println("应该是100001：" + label.rank(4474976710656L));
+        System.out.println("应该是1474976710659：" + label.select(1));
+        System.out.println("应该是4474976710656：" + label.select(100000));
+        System.out.println("应该是200000：" + label.getLongCardinality());
+
+        // 修改后前缀基数重新计算
+        label.remove(1474976710656L);
+        System.out.println("应该是99999：" + label.rank(4474976710655L));
+        System.out.println("应该是4474976710657：" + label.select(100000));
+
+        // 行程编码按各段的前缀基数二分查找，修改前面的段后重新计算
+        RoaringBitmap runs = new RoaringBitmap();
+        for (long i = 0; i < 1000; i++) {
+            runs.add(4474976710656L + i * 100000, 4474976710656L + i * 100000 + 5);
+        }
+        runs.runOptimize();
+        System.out.println("应该是2503：" + runs.rank(4475026710658L));
+        System.out.println("应该是4475026710659：" + runs.select(2503));
+        runs.remove(4474977710658L);
+        System.out.println("应该是2502：" + runs.rank(4475026710658L));
+        System.out.println("应该是4475026710660：" + runs.select(2503));
+        runs.add(4474976710661L);
+        System.out.println("应该是4475026710659：" + runs.select(2503));
+        runs.add(0xFFFFL << 32, 1L << 48);
+        System.out.println("应该是281473681743360：" + runs.select(5000 + 3000000000L));
+    }
+}
@@ -0,0 +1,131 @@
+import org.imei.ImeiDataAdmin;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class test8 {
+    static final int LABELS = 4;
+    static final int WRITERS = 4;
+    static final int PER_WRITER = 50000;
+
+    static String imei(long v) {
+        return String.format("86%013d", v);
+    }
+
+    // 第w个写线程写入的第k个值，各线程互不重叠，跨多个高位key
+    static long value(int w, long k) {
+        return 1474976710656L + k * 1000003L * WRITERS + w;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final ImeiDataAdmin admin = new ImeiDataAdmin();
+        final AtomicLongArray progress = new AtomicLongArray(WRITERS);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread[] writers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            final int id = w;
+            writers[w] = new Thread(() -> {
+                for (long k = 0; k < PER_WRITER; k++) {
+                    admin.setImei("label" + (k % LABELS), imei(value(id, k)));
+                    progress.set(id, k + 1);
+                }
+            });
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        Thread[] readers = new Thread[Math.max(2, cores)];
+        for (int r = 0; r < readers.length; r++) {
+            final Random random = new Random(r);
+            readers[r] = new Thread(() -> {
+                long n = 0;
+                while (!done.get() || n == 0) {
+                    // 已经写入的值一定能读到，没写过的值一定读不到
+                    int w = random.nextInt(WRITERS);
+                    long p = progress.get(w);
+                    if (p == 0) {
+                        continue;
+                    }
+                    long k = (long) (random.nextDouble() * p);
+                    try {
+                        if (!admin.getIfExists("label" + (k % LABELS), imei(value(w, k)))) {
+                            errors.incrementAndGet();
+                        }
+                        if (admin.getIfExists("label" + (k % LABELS), imei(value(w, k) + WRITERS * 1000003L / 2))) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                    n++;
+                }
+            });
+        }
+        for (Thread t : readers) {
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        done.set(true);
+        for (Thread t : readers) {
+            t.join();
+        }
+        System.out.println("应该是0：" + errors.get());
+
+        // 所有写入都没有丢失
+        int missing = 0;
+        for (int w = 0; w < WRITERS; w++) {
+            for (int l = 0; l < LABELS; l++) {
+                String[] imeis = new String[PER_WRITER / LABELS];
+                for (int i = 0; i < imeis.length; i++) {
+                    imeis[i] = imei(value(w, (long) i * LABELS + l));
+                }
+                for (boolean b : admin.getIfExists("label" + l, imeis)) {
+                    if (!b) {
+                        missing++;
+                    }
+                }
+            }
+        }
+        System.out.println("应该是0：" + missing);
+
+        // 只读吞吐随线程数的变化
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            System.out.println(threads + "个读线程：" + readThroughput(admin, threads) + "次/秒");
+        }
+    }
+
+    static long readThroughput(final ImeiDataAdmin admin, int threads) throws InterruptedException {
+        final long deadline = System.nanoTime() + 500_000_000L;
+        final AtomicLong total = new AtomicLong();
+        final String[] probes = new String[1024];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = imei(value(i % WRITERS, i));
+        }
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            ts[t] = new Thread(() -> {
+                long n = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < probes.length; i++) {
+                        admin.getIfExists("label" + (i % LABELS), probes[i]);
+                    }
+                    n += probes.length;
+                }
+                total.addAndGet(n);
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        return total.get() * 2;
+    }
+}
@@ -0,0 +1,32 @@
+import org.imei.ImeiDataAdmin;
+import org.imei.LabelSnapshot;
+import org.roaringbitmap.RoaringBitmap;
+
+public class test9 {
+    public static void main(String[] args) {
+        RoaringBitmap label = new RoaringBitmap();
+        for (long i = 0; i < 100000; i++) {
+            label.add(1474976710656L + i * 3);
+        }
+        RoaringBitmap snapshot = label.snapshot();
+        // 快照之后的修改互不可见
+        label.add(1474976710657L);
+        label.remove(1474976710656L);
+        snapshot.add(4474976710656L);
+        System.out.println("应该是true：" + snapshot.contains(1474976710656L));
+        System.out.println("应该是false：" + snapshot.contains(1474976710657L));
+        System.out.println("应该是false：" + label.contains(4474976710656L));
+        System.out.println("应该是100001：" + snapshot.getCardinality());
+        System.out.println("应该是100000：" + label.getCardinality());
+
+        ImeiDataAdmin admin = new ImeiDataAdmin();
+        admin.setImei("label", "861474976710656");
+        LabelSnapshot s1 = admin.snapshot("label");
+        admin.setImei("label", "861474976710657");
+        LabelSnapshot s2 = admin.snapshot("label");
+        System.out.println("应该是1：" + s1.getBitmap().getCardinality());
+        System.out.println("应该是2：" + s2.getBitmap().getCardinality());
+        System.out.println("应该是true：" + (s2.getVersion() > s1.getVersion()));
+        System.out.println("应该是true：" + (admin.snapshot("label") == s2));
+    }
+}